@@ -0,0 +1,44 @@
+package replicatorg.app;
+
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Parse a million lines like a slicer's output, moves with the odd comment
+ * and M code, and print how many lines a second were parsed.
+ *
+ * <pre>
+ * ant bench
+ * java -cp build/classes:build/bench:build/shared/lib/* replicatorg.app.GCodeParserBenchmark [LINES]
+ * </pre>
+ */
+public class GCodeParserBenchmark {
+	public static void main(String[] args) {
+		int n = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		Random random = new Random(1);
+		String[] lines = new String[n];
+		for (int i = 0; i < n; i++) {
+			if (i % 1000 == 0)
+				lines[i] = "(layer " + i / 1000 + ")";
+			else if (i % 97 == 0)
+				lines[i] = "M108 S" + (200 + random.nextInt(55));
+			else
+				lines[i] = String.format(Locale.US, "G1 X%.3f Y%.3f Z%.2f F%d",
+						random.nextDouble() * 100 - 50, random.nextDouble() * 100 - 50,
+						i / 1000 * 0.3, random.nextBoolean() ? 1800 : 3000)
+					+ (i % 50 == 0 ? " (perimeter)" : "");
+		}
+		GCodeParser parser = new GCodeParser();
+		for (int run = 0; run < 5; run++) {
+			long start = System.nanoTime();
+			double sum = 0;
+			for (String line : lines) {
+				parser.parse(line);
+				sum += parser.getCodeValue('X');
+			}
+			double seconds = (System.nanoTime() - start) / 1e9;
+			System.out.println(String.format(Locale.US, "%d lines in %.3f s: %.0f lines/s (%.0f)",
+					n, seconds, n / seconds, sum));
+		}
+	}
+}
@@ -0,0 +1,48 @@
+package replicatorg.drivers;
+
+import java.util.Locale;
+import java.util.Random;
+
+import javax.vecmath.Point3d;
+
+/**
+ * Time a few million short moves, like those of a part with lots of small
+ * features, and print how many moves a second were estimated. The moves go
+ * straight to the estimator, so this is moves a second, not G-code lines:
+ * lines also pay for parsing, as GCodeParserBenchmark measures.
+ *
+ * <pre>
+ * ant bench
+ * java -cp build/classes:build/bench:build/shared/lib/* replicatorg.drivers.MotionEstimatorBenchmark [MOVES]
+ * </pre>
+ */
+public class MotionEstimatorBenchmark {
+	public static void main(String[] args) {
+		int n = args.length > 0 ? Integer.parseInt(args[0]) : 5000000;
+		Random random = new Random(1);
+		double[] path = new double[n * 4];
+		double x = 0, y = 0, z = 0;
+		for (int i = 0; i < n; i++) {
+			if (i % 5000 == 0) z += 0.3;
+			x = Math.max(-50, Math.min(50, x + random.nextGaussian() * 2));
+			y = Math.max(-50, Math.min(50, y + random.nextGaussian() * 2));
+			path[i * 4] = x;
+			path[i * 4 + 1] = y;
+			path[i * 4 + 2] = z;
+			path[i * 4 + 3] = random.nextBoolean() ? 1800 : 3000;
+		}
+		for (int run = 0; run < 5; run++) {
+			MotionEstimator estimator = new MotionEstimator(new Point3d(5000, 5000, 150),
+					new Point3d(1000, 1000, 100), 0.2, 16);
+			long start = System.nanoTime();
+			for (int i = 0; i < n; i++)
+				estimator.add(path[i * 4], path[i * 4 + 1], path[i * 4 + 2], path[i * 4 + 3]);
+			estimator.flush();
+			double seconds = (System.nanoTime() - start) / 1e9;
+			System.out.println(String.format(Locale.US,
+					"%d moves (not lines; no parsing) in %.3f s: %.0f moves/s, build time %s",
+					n, seconds, n / seconds,
+					EstimationDriver.getBuildTimeString(estimator.getTime(), true)));
+		}
+	}
+}
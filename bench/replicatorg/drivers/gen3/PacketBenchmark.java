@@ -0,0 +1,166 @@
+package replicatorg.drivers.gen3;
+
+import java.util.Locale;
+
+import replicatorg.drivers.gen3.Sanguino3GDriver.CommandCodeMaster;
+import replicatorg.drivers.gen3.Sanguino3GDriver.CommandCodeSlave;
+
+/**
+ * Encode and decode a few million packets, taking every master command in
+ * turn with the payload the driver sends for it, and print how many packets
+ * a second each way manages.
+ *
+ * The first way is as before builders and processors were reused and the
+ * crc was table driven: a new builder and a bit-by-bit crc for each packet,
+ * and a new payload and bit-by-bit crc to decode it. The builder still works
+ * out its own crc the table way too, so that way comes out a little slow.
+ * The second way is as the driver does it now.
+ *
+ * <pre>
+ * ant bench
+ * java -cp build/classes:build/bench:build/shared/lib/* replicatorg.drivers.gen3.PacketBenchmark [PACKETS]
+ * </pre>
+ */
+public class PacketBenchmark implements PacketConstants {
+	private static final CommandCodeMaster[] COMMANDS = CommandCodeMaster.values();
+
+	private static final byte[] FILENAME = "benchmark.s3g".getBytes();
+
+	public static void main(String[] args) {
+		int n = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+		for (int run = 0; run < 5; run++) {
+			for (int reuse = 0; reuse < 2; reuse++) {
+				long start = System.nanoTime();
+				int decoded = 0;
+				long bytes = 0;
+				PacketProcessor pp = new PacketProcessor();
+				for (int i = 0; i < n; i++) {
+					int command = COMMANDS[i % COMMANDS.length].getCode();
+					PacketBuilder pb = reuse == 1 ? PacketBuilder.obtain(command)
+							: new PacketBuilder(command);
+					addPayload(pb, COMMANDS[i % COMMANDS.length], i);
+					if (reuse == 0)
+						pb.crc = bitwiseCrc(pb.data, 2, pb.idx);
+					byte[] packet = pb.getPacket();
+					bytes += packet.length;
+					if (reuse == 0) {
+						if (decodeBitwise(packet))
+							decoded++;
+					} else {
+						pp.reset();
+						for (byte b : packet) {
+							if (pp.processByte(b))
+								decoded++;
+						}
+					}
+				}
+				double seconds = (System.nanoTime() - start) / 1e9;
+				System.out.println(String.format(Locale.US,
+						"%s: %d packets (%d bytes, %d commands) in %.3f s: %.0f packets/s, %d decoded",
+						reuse == 1 ? "reused, table crc  " : "allocated, bit crc ",
+						n, bytes, COMMANDS.length, seconds, n / seconds, decoded));
+			}
+		}
+	}
+
+	// the payload the driver sends with each command, more or less.
+	private static void addPayload(PacketBuilder pb, CommandCodeMaster command, int i) {
+		switch (command) {
+		case VERSION:
+			pb.add16(18);
+			break;
+		case SET_RANGE:
+			for (int axis = 0; axis < 6; axis++)
+				pb.add32(i + axis);
+			break;
+		case TOOL_QUERY:
+			pb.add8(0);
+			pb.add8(CommandCodeSlave.GET_TEMP.getCode());
+			break;
+		case READ_EEPROM:
+			pb.add16(i & 0xff);
+			pb.add8(16);
+			break;
+		case WRITE_EEPROM:
+			pb.add16(i & 0xff);
+			pb.add8(16);
+			for (int b = 0; b < 16; b++)
+				pb.add8(i + b);
+			break;
+		case CAPTURE_TO_FILE:
+		case PLAYBACK_CAPTURE:
+			for (byte b : FILENAME)
+				pb.add8(b);
+			pb.add8(0);
+			break;
+		case NEXT_FILENAME:
+			pb.add8(i & 1);
+			break;
+		case QUEUE_POINT_ABS:
+			pb.add32(i);
+			pb.add32(-i);
+			pb.add32(i >> 4);
+			pb.add32(1000 + i % 5000);
+			break;
+		case SET_POSITION:
+			pb.add32(i);
+			pb.add32(-i);
+			pb.add32(i >> 4);
+			break;
+		case FIND_AXES_MINIMUM:
+		case FIND_AXES_MAXIMUM:
+			pb.add8(7);
+			pb.add32(2000);
+			pb.add16(60);
+			break;
+		case DELAY:
+			pb.add32(i % 5000);
+			break;
+		case CHANGE_TOOL:
+			pb.add8(i & 1);
+			break;
+		case WAIT_FOR_TOOL:
+			pb.add8(0);
+			pb.add16(100);
+			pb.add16(120);
+			break;
+		case TOOL_COMMAND:
+			pb.add8(0);
+			pb.add8(CommandCodeSlave.SET_TEMP.getCode());
+			pb.add8(2);
+			pb.add16(200 + i % 30);
+			break;
+		case ENABLE_AXES:
+			pb.add8(0x87);
+			break;
+		default:
+			// no payload.
+		}
+	}
+
+	// the decode as it was: a new payload for each packet, and the crc
+	// worked out bit by bit.
+	private static boolean decodeBitwise(byte[] packet) {
+		if (packet[0] != START_BYTE)
+			return false;
+		int length = packet[1] & 0xff;
+		byte[] payload = new byte[length];
+		System.arraycopy(packet, 2, payload, 0, length);
+		return (byte) bitwiseCrc(payload, 0, length) == packet[2 + length];
+	}
+
+	// the crc as it was worked out before the table.
+	private static int bitwiseCrc(byte[] data, int from, int to) {
+		int crc = 0;
+		for (int i = from; i < to; i++) {
+			crc = (crc ^ data[i]) & 0xff;
+			for (int j = 0; j < 8; j++) {
+				if ((crc & 0x01) != 0)
+					crc = ((crc >>> 1) ^ 0x8c) & 0xff;
+				else
+					crc = (crc >>> 1) & 0xff;
+			}
+		}
+		return crc;
+	}
+}
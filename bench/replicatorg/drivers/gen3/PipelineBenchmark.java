@@ -0,0 +1,55 @@
+package replicatorg.drivers.gen3;
+
+import java.util.Locale;
+
+import javax.vecmath.Point3d;
+
+import replicatorg.app.Serial;
+import replicatorg.app.SerialTransport;
+import replicatorg.machine.model.MachineModel;
+
+/**
+ * Send a few thousand short moves to the emulator with pipelining off and
+ * on, and print how many moves a second went out each way. Responses come
+ * back after the given round trip, as over a USB serial link.
+ *
+ * <pre>
+ * ant bench
+ * java -cp build/classes:build/bench:build/shared/lib/* replicatorg.drivers.gen3.PipelineBenchmark [MOVES [LATENCY_MICROS]]
+ * </pre>
+ */
+public class PipelineBenchmark {
+	public static void main(String[] args) throws Exception {
+		int n = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		final long latency = args.length > 1 ? Long.parseLong(args[1]) : 1000;
+		Serial.registerTransport("sanguino3g-benchmark", new SerialTransport.Factory() {
+			public SerialTransport open(String name) {
+				Sanguino3GEmulator emulator = new Sanguino3GEmulator(0);
+				emulator.setLatency(latency);
+				return emulator;
+			}
+		});
+		for (int run = 0; run < 3; run++) {
+			for (int window : new int[] { 0, 128 }) {
+				Sanguino3GDriver driver = new Sanguino3GDriver();
+				driver.setWindowBytes(window);
+				MachineModel model = new MachineModel();
+				model.getMaximumFeedrates().set(5000, 5000, 150);
+				driver.setMachine(model);
+				driver.setSerial(new Serial("sanguino3g-benchmark"));
+				driver.initialize();
+				driver.setFeedrate(3000);
+				long start = System.nanoTime();
+				for (int i = 0; i < n; i++)
+					driver.queuePoint(new Point3d(i % 2 * 10, i % 100, 0));
+				// waits for every answer still in flight, then one more.
+				driver.isFinished();
+				double seconds = (System.nanoTime() - start) / 1e9;
+				System.out.println(String.format(Locale.US,
+						"window %3d: %d moves in %.3f s: %.0f moves/s, %d pipelined",
+						window, n, seconds, n / seconds, driver.getPipelinedPacketCount()));
+				driver.dispose();
+			}
+		}
+	}
+}
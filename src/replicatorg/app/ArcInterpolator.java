@@ -0,0 +1,175 @@
+package replicatorg.app;
+
+import javax.vecmath.Point3d;
+
+/**
+ * Cuts an arc in the XY plane (optionally rising in Z, for a helix) into
+ * straight moves. The number of moves is the fewest that keep every chord
+ * within the tolerance of the true arc; a tolerance finer than half a step
+ * can't be cut by the machine, so it is never asked for.
+ *
+ * Points are found by turning the radius vector through the same small angle
+ * each time, which needs only multiplications; every few points the vector is
+ * recomputed exactly so that rounding can't build up.
+ *
+ * Use it by calling start() and then next() until it returns false.
+ */
+public class ArcInterpolator {
+
+	// how often the rotated vector is recomputed with trig.
+	private static final int CORRECTION_INTERVAL = 16;
+
+	// the old fixed limit: never turn more than 1/2.4 radian in one move.
+	private static final double MAX_SEGMENT_ANGLE = 1 / 2.4;
+
+	private final double tolerance;
+
+	private Point3d center;
+
+	private Point3d end;
+
+	private double startZ;
+
+	private double startAngle;
+
+	private double radius;
+
+	// the signed angle turned by each move.
+	private double segmentAngle;
+
+	private double cosSegment;
+
+	private double sinSegment;
+
+	// the radius vector of the last point.
+	private double rX;
+
+	private double rY;
+
+	private int segments;
+
+	private int segment;
+
+	/**
+	 * @param tolerance
+	 *            the largest distance, in mm, allowed between a chord and
+	 *            the arc
+	 * @param stepsPerMM
+	 *            the machine's resolution, or null if unknown
+	 */
+	public ArcInterpolator(double tolerance, Point3d stepsPerMM) {
+		if (stepsPerMM != null) {
+			double steps = Math.max(stepsPerMM.x, stepsPerMM.y);
+			if (steps > 0)
+				tolerance = Math.max(tolerance, 0.5 / steps);
+		}
+		this.tolerance = tolerance;
+	}
+
+	public double getTolerance() {
+		return tolerance;
+	}
+
+	/**
+	 * @return the number of straight moves used for an arc of the given
+	 * radius turning through the given angle.
+	 */
+	public int getSegmentCount(double radius, double angle) {
+		double maxAngle = MAX_SEGMENT_ANGLE;
+		if (tolerance < radius)
+			maxAngle = Math.min(maxAngle, 2 * Math.acos(1 - tolerance / radius));
+		return Math.max(1, (int) Math.ceil(Math.abs(angle) / maxAngle));
+	}
+
+	/**
+	 * Begin a new arc. A start and end at the same place make a full circle.
+	 */
+	public void start(Point3d from, Point3d center, Point3d end,
+			boolean clockwise) {
+		this.center = new Point3d(center);
+		this.end = new Point3d(end);
+		startZ = from.z;
+
+		double aX = from.x - center.x;
+		double aY = from.y - center.y;
+		double bX = end.x - center.x;
+		double bY = end.y - center.y;
+		startAngle = Math.atan2(aY, aX);
+		double angle = Math.atan2(bY, bX) - startAngle;
+		if (clockwise) {
+			if (angle >= 0)
+				angle -= 2 * Math.PI;
+		} else {
+			if (angle <= 0)
+				angle += 2 * Math.PI;
+		}
+		radius = Math.sqrt(aX * aX + aY * aY);
+
+		segments = getSegmentCount(radius, angle);
+		segment = 0;
+		segmentAngle = angle / segments;
+		cosSegment = Math.cos(segmentAngle);
+		sinSegment = Math.sin(segmentAngle);
+		rX = aX;
+		rY = aY;
+	}
+
+	/**
+	 * Find the next point along the arc.
+	 *
+	 * @return false once the end has been reached.
+	 */
+	public boolean next(Point3d p) {
+		if (segment == segments)
+			return false;
+		segment++;
+		if (segment == segments) {
+			p.set(end);
+			return true;
+		}
+		if (segment % CORRECTION_INTERVAL == 0) {
+			double a = startAngle + segmentAngle * segment;
+			rX = radius * Math.cos(a);
+			rY = radius * Math.sin(a);
+		} else {
+			double x = rX * cosSegment - rY * sinSegment;
+			rY = rX * sinSegment + rY * cosSegment;
+			rX = x;
+		}
+		p.x = center.x + rX;
+		p.y = center.y + rY;
+		p.z = startZ + (end.z - startZ) * segment / segments;
+		return true;
+	}
+
+	/**
+	 * Find the center of an arc given by its radius (G2/G3 with R). A
+	 * positive radius picks the arc of at most half a turn, a negative one the
+	 * longer way round.
+	 *
+	 * @return the center, or null if the endpoint is out of reach.
+	 */
+	public static Point3d findCenter(Point3d from, Point3d end, double r,
+			boolean clockwise) {
+		double x = end.x - from.x;
+		double y = end.y - from.y;
+		double d = Math.sqrt(x * x + y * y);
+		if (d == 0 || r == 0)
+			return null;
+		double h = 4 * r * r - d * d;
+		if (h < 0) {
+			// let a radius that's only just too short through.
+			if (d - 2 * Math.abs(r) > 0.001)
+				return null;
+			h = 0;
+		}
+		// the distance from the midpoint to the center, over half the chord.
+		h = -Math.sqrt(h) / d;
+		if (!clockwise)
+			h = -h;
+		if (r < 0)
+			h = -h;
+		return new Point3d(from.x + 0.5 * (x - y * h), from.y + 0.5 * (y + x * h),
+				from.z);
+	}
+}
@@ -115,6 +115,12 @@ public class Base {
 	 */
 	static public String openedAtStartup;
 
+	/**
+	 * True when running without a display, as HeadlessBuild does. Messages
+	 * that would otherwise pop up a dialog are logged instead.
+	 */
+	static public boolean headless = false;
+
 	
 	static public Preferences preferences = Preferences.userNodeForPackage(Base.class);
 
@@ -710,6 +716,10 @@ public class Base {
 	static public void showMessage(String title, String message) {
 		if (title == null)
 			title = "Message";
+		if (headless) {
+			logger.info(title + ": " + message);
+			return;
+		}
 		JOptionPane.showMessageDialog(new Frame(), message, title,
 				JOptionPane.INFORMATION_MESSAGE);
 	}
@@ -720,8 +730,11 @@ public class Base {
 	static public void showWarning(String title, String message, Exception e) {
 		if (title == null)
 			title = "Warning";
-		JOptionPane.showMessageDialog(new Frame(), message, title,
-				JOptionPane.WARNING_MESSAGE);
+		if (headless)
+			logger.warning(title + ": " + message);
+		else
+			JOptionPane.showMessageDialog(new Frame(), message, title,
+					JOptionPane.WARNING_MESSAGE);
 
 		// System.err.println(e.toString());
 		if (e != null)
@@ -736,8 +749,11 @@ public class Base {
 	static public void showError(String title, String message, Throwable e) {
 		if (title == null)
 			title = "Error";
-		JOptionPane.showMessageDialog(new Frame(), message, title,
-				JOptionPane.ERROR_MESSAGE);
+		if (headless)
+			logger.severe(title + ": " + message);
+		else
+			JOptionPane.showMessageDialog(new Frame(), message, title,
+					JOptionPane.ERROR_MESSAGE);
 
 		if (e != null)
 			e.printStackTrace();
@@ -972,7 +988,7 @@ public class Base {
 	 * our singleton interface to get our machine.
 	 */
 	static public MachineController loadMachine(String name) {
-		if (machine == null || machine.name != name) {
+		if (machine == null || !machine.name.equals(name)) {
 			machine = MachineFactory.load(name);
 		}
 		return machine;
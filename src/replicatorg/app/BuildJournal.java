@@ -0,0 +1,274 @@
+package replicatorg.app;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import javax.vecmath.Point3d;
+
+/**
+ * An append-only record of how far a build has got, kept next to the gcode
+ * file so that a build cut short by a crash or a lost connection can be
+ * continued later.
+ *
+ * The build thread only ever hands checkpoints to a queue; a separate thread
+ * writes them out and syncs the file once for everything it wrote in one go.
+ * If the queue is ever full the checkpoint is dropped rather than holding up
+ * the machine. Each record carries a checksum, so one torn by a crash is
+ * recognised and the one before it is used.
+ */
+public class BuildJournal {
+
+	/** Suffix of the journal file written next to a gcode file. */
+	public static final String SUFFIX = ".journal";
+
+	private static final int MAGIC = 0x52474a4e; // "RGJN"
+
+	private static final int FORMAT_VERSION = 2;
+
+	private static final int QUEUE_SIZE = 16;
+
+	/**
+	 * A point the build is known to have got past: every line before the
+	 * given one had been handed to the driver and accepted.
+	 */
+	public static class Checkpoint {
+		private final long time;
+		private final int line;
+		private final int position;
+		private final GCodeParser.ModalState state;
+		private final Point3d machinePosition;
+		// index, current and target temperature of each tool.
+		private final double[] temperatures;
+
+		public Checkpoint(int line, int position, GCodeParser.ModalState state,
+				Point3d machinePosition, double[] temperatures) {
+			this(System.currentTimeMillis(), line, position, state,
+					machinePosition, temperatures);
+		}
+
+		private Checkpoint(long time, int line, int position,
+				GCodeParser.ModalState state, Point3d machinePosition,
+				double[] temperatures) {
+			this.time = time;
+			this.line = line;
+			this.position = position;
+			this.state = state;
+			this.machinePosition = new Point3d(machinePosition);
+			this.temperatures = temperatures.clone();
+		}
+
+		public long getTime() { return time; }
+		/** @return the zero-based number of the first line not yet done. */
+		public int getLine() { return line; }
+		/** @return the compiled stream position of that line. */
+		public int getPosition() { return position; }
+		public GCodeParser.ModalState getState() { return state; }
+		public Point3d getMachinePosition() { return new Point3d(machinePosition); }
+		/**
+		 * @return three entries per tool: its index, its current temperature
+		 * and its target temperature.
+		 */
+		public double[] getTemperatures() { return temperatures.clone(); }
+
+		void write(DataOutputStream out) throws IOException {
+			out.writeLong(time);
+			out.writeInt(line);
+			out.writeInt(position);
+			state.write(out);
+			out.writeDouble(machinePosition.x);
+			out.writeDouble(machinePosition.y);
+			out.writeDouble(machinePosition.z);
+			out.writeShort(temperatures.length);
+			for (double t : temperatures)
+				out.writeDouble(t);
+		}
+
+		static Checkpoint read(DataInputStream in) throws IOException {
+			long time = in.readLong();
+			int line = in.readInt();
+			int position = in.readInt();
+			GCodeParser.ModalState state = GCodeParser.ModalState.read(in);
+			Point3d machinePosition = new Point3d(in.readDouble(),
+					in.readDouble(), in.readDouble());
+			double[] temperatures = new double[in.readShort()];
+			for (int i = 0; i < temperatures.length; i++)
+				temperatures[i] = in.readDouble();
+			return new Checkpoint(time, line, position, state, machinePosition,
+					temperatures);
+		}
+	}
+
+	/**
+	 * Returns the journal file used for the given gcode file.
+	 */
+	public static File getJournalFile(File gcodeFile) {
+		return new File(gcodeFile.getParentFile(), gcodeFile.getName() + SUFFIX);
+	}
+
+	private final File file;
+
+	private final BlockingQueue<Checkpoint> queue =
+		new ArrayBlockingQueue<Checkpoint>(QUEUE_SIZE);
+
+	private final FileOutputStream out;
+
+	private final Thread writer;
+
+	private volatile boolean closing = false;
+
+	private int dropped = 0;
+
+	/**
+	 * Start a new journal for a build, replacing any left by an earlier one.
+	 *
+	 * @param hash
+	 *            the hash of the source text, from GCodeStream.getHash()
+	 */
+	public BuildJournal(File file, byte[] hash) throws IOException {
+		this.file = file;
+		out = new FileOutputStream(file);
+		DataOutputStream header = new DataOutputStream(out);
+		header.writeInt(MAGIC);
+		header.writeInt(FORMAT_VERSION);
+		header.writeInt(hash.length);
+		header.write(hash);
+		header.flush();
+		writer = new Thread("Build journal " + file.getName()) {
+			public void run() {
+				writeCheckpoints();
+			}
+		};
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Hand a checkpoint to the writer. Never waits.
+	 */
+	public void checkpoint(Checkpoint checkpoint) {
+		if (!queue.offer(checkpoint))
+			dropped++;
+	}
+
+	private void writeCheckpoints() {
+		List<Checkpoint> batch = new ArrayList<Checkpoint>();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		CRC32 crc = new CRC32();
+		try {
+			while (!closing || !queue.isEmpty()) {
+				Checkpoint first = queue.poll(100, TimeUnit.MILLISECONDS);
+				if (first == null) continue;
+				batch.add(first);
+				queue.drainTo(batch);
+				bytes.reset();
+				DataOutputStream record = new DataOutputStream(bytes);
+				for (Checkpoint c : batch) {
+					ByteArrayOutputStream body = new ByteArrayOutputStream();
+					c.write(new DataOutputStream(body));
+					byte[] b = body.toByteArray();
+					crc.reset();
+					crc.update(b);
+					record.writeInt(b.length);
+					record.write(b);
+					record.writeInt((int) crc.getValue());
+				}
+				batch.clear();
+				out.write(bytes.toByteArray());
+				// one sync for the whole batch.
+				out.getFD().sync();
+			}
+		} catch (InterruptedException e) {
+		} catch (IOException e) {
+			Base.logger.warning("Build journal " + file + " stopped: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Stop writing, once everything already handed over is written.
+	 *
+	 * @param finished
+	 *            true if the build ran to the end, in which case there's
+	 *            nothing to continue and the journal is removed.
+	 */
+	public void close(boolean finished) {
+		closing = true;
+		try {
+			writer.join(5000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		try {
+			out.close();
+		} catch (IOException e) {
+		}
+		if (dropped > 0)
+			Base.logger.info("Build journal dropped " + dropped + " checkpoints");
+		if (finished && !file.delete())
+			Base.logger.info("Could not remove build journal " + file);
+	}
+
+	/**
+	 * Read the last intact checkpoint of an unfinished build.
+	 *
+	 * @param sourceHash
+	 *            the hash of the source text now; a journal kept for other
+	 *            text is ignored.
+	 * @return the checkpoint, or null if there is none.
+	 */
+	public static Checkpoint readLast(File file, byte[] sourceHash) {
+		if (!file.exists()) return null;
+		Checkpoint last = null;
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(file)));
+			try {
+				if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION)
+					return null;
+				int hashLength = in.readInt();
+				if (hashLength != sourceHash.length)
+					return null;
+				byte[] hash = new byte[hashLength];
+				in.readFully(hash);
+				if (!Arrays.equals(hash, sourceHash))
+					return null;
+				CRC32 crc = new CRC32();
+				while (true) {
+					int length = in.readInt();
+					if (length <= 0 || length > 4096)
+						break;
+					byte[] b = new byte[length];
+					in.readFully(b);
+					crc.reset();
+					crc.update(b);
+					if (in.readInt() != (int) crc.getValue())
+						break;
+					last = Checkpoint.read(new DataInputStream(
+							new ByteArrayInputStream(b)));
+				}
+			} finally {
+				in.close();
+			}
+		} catch (EOFException e) {
+			// the last record was cut short.
+		} catch (IOException e) {
+			Base.logger.info("Could not read build journal " + file + ": "
+					+ e.getMessage());
+		}
+		return last;
+	}
+}
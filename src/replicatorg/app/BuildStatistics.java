@@ -0,0 +1,161 @@
+package replicatorg.app;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import javax.vecmath.Point3d;
+
+import replicatorg.drivers.EstimationDriver;
+
+/**
+ * What a build comes to as a whole: how long it takes, the space the head
+ * moves through, how far it moves with and without extruding, and how long
+ * each tool's motor runs and how much material it feeds. It is gathered in
+ * the same pass that finds the layers, kept with the layer index, and never
+ * changes, so the job queue and the windows can all share one.
+ *
+ * Material is only counted for a tool whose motor_mm_per_revolution is
+ * given in machines.xml, and only while its speed was set in RPM.
+ */
+public class BuildStatistics {
+
+	/**
+	 * One tool's share of a build.
+	 */
+	public static class Tool {
+		private final int index;
+		private final String name;
+		private final double motorTime;
+		private final double revolutions;
+		private final double material;
+
+		Tool(int index, String name, double motorTime, double revolutions,
+				double material) {
+			this.index = index;
+			this.name = name;
+			this.motorTime = motorTime;
+			this.revolutions = revolutions;
+			this.material = material;
+		}
+
+		public int getIndex() { return index; }
+		public String getName() { return name; }
+		/** @return the ms the tool's motor runs for. */
+		public double getMotorTime() { return motorTime; }
+		/** @return the motor's turns, less any turned backwards. */
+		public double getRevolutions() { return revolutions; }
+		/** @return the mm of material fed, or zero if it isn't known. */
+		public double getMaterial() { return material; }
+
+		public String toString() {
+			if (motorTime == 0)
+				return name + " (" + index + "): motor not run";
+			return name + " (" + index + "): motor on for "
+				+ EstimationDriver.getBuildTimeString(motorTime, true)
+				+ (material > 0 ? String.format(", %.1f mm fed", material) : "");
+		}
+	}
+
+	private final int lines;
+	private final int layers;
+	private final double buildTime;
+	private final Point3d minimum;
+	private final Point3d maximum;
+	private final double travelDistance;
+	private final double extrudeDistance;
+	private final Tool[] tools;
+
+	BuildStatistics(int lines, int layers, double buildTime, Point3d minimum,
+			Point3d maximum, double travelDistance, double extrudeDistance,
+			Tool[] tools) {
+		this.lines = lines;
+		this.layers = layers;
+		this.buildTime = buildTime;
+		this.minimum = new Point3d(minimum);
+		this.maximum = new Point3d(maximum);
+		this.travelDistance = travelDistance;
+		this.extrudeDistance = extrudeDistance;
+		this.tools = tools.clone();
+	}
+
+	public int getLineCount() { return lines; }
+	public int getLayerCount() { return layers; }
+	/** @return the estimated build time in ms, dwells and all. */
+	public double getBuildTime() { return buildTime; }
+	/** @return the least X, Y and Z the head moves to. */
+	public Point3d getMinimum() { return new Point3d(minimum); }
+	/** @return the greatest X, Y and Z the head moves to. */
+	public Point3d getMaximum() { return new Point3d(maximum); }
+	/** @return the mm moved with no motor running. */
+	public double getTravelDistance() { return travelDistance; }
+	/** @return the mm moved with a motor running. */
+	public double getExtrudeDistance() { return extrudeDistance; }
+
+	/** @return each tool that moved or ran, in the order first used. */
+	public Tool[] getTools() { return tools.clone(); }
+
+	/** @return the mm of material fed by every tool that says. */
+	public double getMaterial() {
+		double material = 0;
+		for (Tool tool : tools)
+			material += tool.getMaterial();
+		return material;
+	}
+
+	public String toString() {
+		double material = getMaterial();
+		return String.format("%d layers, %.1f x %.1f x %.1f mm, %.2f m extruded, %.2f m travel",
+				layers, maximum.x - minimum.x, maximum.y - minimum.y,
+				maximum.z - minimum.z, extrudeDistance / 1000, travelDistance / 1000)
+			+ (material > 0 ? String.format(", %.2f m of material", material / 1000) : "")
+			+ ", " + EstimationDriver.getBuildTimeString(buildTime);
+	}
+
+	void write(DataOutputStream out) throws IOException {
+		out.writeInt(lines);
+		out.writeInt(layers);
+		out.writeDouble(buildTime);
+		writePoint(out, minimum);
+		writePoint(out, maximum);
+		out.writeDouble(travelDistance);
+		out.writeDouble(extrudeDistance);
+		out.writeInt(tools.length);
+		for (Tool tool : tools) {
+			out.writeInt(tool.index);
+			out.writeUTF(tool.name);
+			out.writeDouble(tool.motorTime);
+			out.writeDouble(tool.revolutions);
+			out.writeDouble(tool.material);
+		}
+	}
+
+	static BuildStatistics read(DataInputStream in) throws IOException {
+		int lines = in.readInt();
+		int layers = in.readInt();
+		double buildTime = in.readDouble();
+		Point3d minimum = readPoint(in);
+		Point3d maximum = readPoint(in);
+		double travelDistance = in.readDouble();
+		double extrudeDistance = in.readDouble();
+		int count = in.readInt();
+		if (count < 0 || count > 256)
+			throw new IOException("corrupt build statistics");
+		Tool[] tools = new Tool[count];
+		for (int i = 0; i < count; i++)
+			tools[i] = new Tool(in.readInt(), in.readUTF(), in.readDouble(),
+					in.readDouble(), in.readDouble());
+		return new BuildStatistics(lines, layers, buildTime, minimum, maximum,
+				travelDistance, extrudeDistance, tools);
+	}
+
+	private static void writePoint(DataOutputStream out, Point3d p) throws IOException {
+		out.writeDouble(p.x);
+		out.writeDouble(p.y);
+		out.writeDouble(p.z);
+	}
+
+	private static Point3d readPoint(DataInputStream in) throws IOException {
+		return new Point3d(in.readDouble(), in.readDouble(), in.readDouble());
+	}
+}
@@ -0,0 +1,539 @@
+package replicatorg.app;
+
+import java.awt.geom.Rectangle2D;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import replicatorg.drivers.EstimationDriver;
+import replicatorg.drivers.MotionEstimator;
+import replicatorg.machine.model.MachineModel;
+import replicatorg.model.GCodeSource;
+import replicatorg.model.GCodeStream;
+
+/**
+ * Estimates build times for one machine, keeping what it worked out about
+ * each stretch of a file so that estimating it again after a small edit only
+ * reads the lines that changed.
+ *
+ * A source is cut into chunks of about a thousand lines. Where a chunk ends
+ * is decided by the text of its lines rather than by counting, so a line
+ * added or removed only changes the chunk it falls in. Each chunk's time and
+ * bounds are kept under a hash of its text and the modal state it started
+ * in; a chunk is only estimated again if its text changed or an earlier edit
+ * left it starting somewhere else. An unchanged file is all cache hits.
+ *
+ * A compiled stream, which can be jumped into anywhere, is instead read on
+ * several threads at once; that is quicker for a big file opened once.
+ */
+public class EstimationService {
+
+	// a chunk ends after a line whose hash has these bits clear...
+	private static final int BOUNDARY_MASK = 0x3ff;
+
+	// ...as long as it's at least this long, and always at this length.
+	private static final int MIN_CHUNK_LINES = 256;
+
+	private static final int MAX_CHUNK_LINES = 8192;
+
+	// a compiled stream is read on several threads in parts of this size.
+	private static final int MIN_PART_LINES = 4096;
+
+	private static final int MAX_PART_LINES = 65536;
+
+	/**
+	 * The estimate for a whole source.
+	 */
+	public static class Estimate {
+		private final double buildTime;
+		private final Rectangle2D.Double bounds;
+		private final int lines;
+		private final int chunks;
+		private final int reused;
+
+		Estimate(double buildTime, double[] extent, int lines, int chunks,
+				int reused) {
+			this.buildTime = buildTime;
+			this.bounds = new Rectangle2D.Double(extent[0], extent[1],
+					extent[2] - extent[0], extent[3] - extent[1]);
+			this.lines = lines;
+			this.chunks = chunks;
+			this.reused = reused;
+		}
+
+		/** @return the estimated build time in ms. */
+		public double getBuildTime() { return buildTime; }
+		/** @return the XY bounds of every move, always including the origin. */
+		public Rectangle2D.Double getBounds() {
+			return (Rectangle2D.Double) bounds.clone();
+		}
+		public int getLineCount() { return lines; }
+		public int getChunkCount() { return chunks; }
+		/** @return how many chunks were taken from the cache. */
+		public int getReusedChunks() { return reused; }
+	}
+
+	/**
+	 * Where the lines before a chunk left the parser and driver.
+	 */
+	private static class Entry {
+		final GCodeParser.ModalState state;
+		// the driver's, which isn't always the parser's; arcs are drawn at it.
+		final double feedrate;
+
+		Entry(GCodeParser.ModalState state, double feedrate) {
+			this.state = state;
+			this.feedrate = feedrate;
+		}
+
+		/**
+		 * Set a new driver up as if it had read the lines before the chunk.
+		 */
+		void apply(EstimationDriver estimator) {
+			estimator.getParser().setModalState(state);
+			estimator.setCurrentPosition(state.getPosition());
+			estimator.setFeedrate(feedrate);
+		}
+
+		public boolean equals(Object o) {
+			if (!(o instanceof Entry)) return false;
+			Entry e = (Entry) o;
+			return state.equals(e.state) && Double.compare(feedrate, e.feedrate) == 0;
+		}
+
+		public int hashCode() {
+			long bits = Double.doubleToLongBits(feedrate);
+			return state.hashCode() ^ (int) (bits ^ (bits >>> 32));
+		}
+	}
+
+	/**
+	 * A chunk's text and the state it was read in.
+	 */
+	private static class Key {
+		final byte[] digest;
+		final Entry entry;
+		final MotionEstimator.State motion;
+
+		Key(byte[] digest, Entry entry, MotionEstimator.State motion) {
+			this.digest = digest;
+			this.entry = entry;
+			this.motion = motion;
+		}
+
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) return false;
+			Key k = (Key) o;
+			return Arrays.equals(digest, k.digest) && equal(entry, k.entry)
+				&& equal(motion, k.motion);
+		}
+
+		public int hashCode() {
+			return Arrays.hashCode(digest) ^ (entry == null ? 0 : entry.hashCode())
+				^ (motion == null ? 0 : motion.hashCode());
+		}
+	}
+
+	/**
+	 * What reading a chunk came to. The time leaves out the moves still held
+	 * back at its end, which are timed with the chunk after it.
+	 */
+	private static class Result {
+		final double buildTime;
+		final double[] extent;
+		final Entry exit;
+		final MotionEstimator.State motion;
+
+		Result(double buildTime, double[] extent, Entry exit,
+				MotionEstimator.State motion) {
+			this.buildTime = buildTime;
+			this.extent = extent;
+			this.exit = exit;
+			this.motion = motion;
+		}
+	}
+
+	/**
+	 * A stretch of a compiled stream read on its own thread, from the state a
+	 * quick scan found before it. Its moves are recorded rather than timed,
+	 * so they can be timed in order once the stretches before it are.
+	 */
+	private class Part implements Callable<Part> {
+		final GCodeStream stream;
+		final int position;
+		final int line;
+		final int count;
+		final Entry entry;
+		// estimating selects tools on a model, so each part has its own.
+		final MachineModel model;
+
+		final MotionEstimator.Recording recording = new MotionEstimator.Recording();
+		double[] extent;
+		Entry exit;
+
+		/**
+		 * @param position
+		 *            where the first line starts, from Cursor.getPosition()
+		 * @param line
+		 *            the zero-based number of the first line
+		 * @param entry
+		 *            the state before the first line, or null at the start
+		 */
+		Part(GCodeStream stream, int position, int line, int count, Entry entry,
+				MachineModel model) {
+			this.stream = stream;
+			this.position = position;
+			this.line = line;
+			this.count = count;
+			this.entry = entry;
+			this.model = model;
+		}
+
+		public Part call() throws InterruptedException {
+			EstimationDriver estimator = new EstimationDriver();
+			estimator.setMachine(model);
+			if (entry != null)
+				entry.apply(estimator);
+			estimator.setRecording(recording);
+			GCodeStream.Cursor cursor = stream.cursor();
+			cursor.seek(position, line - 1);
+			for (int i = 0; i < count && cursor.next(); i++) {
+				estimator.parse(cursor);
+				estimator.execute();
+			}
+			extent = estimator.getExtent();
+			exit = new Entry(estimator.getParser().getModalState(),
+					estimator.getCurrentFeedrate());
+			return this;
+		}
+	}
+
+	// shared by every service; threads are made as they're first needed.
+	private static ExecutorService executor;
+
+	private final MachineModel model;
+
+	private final Map<Key,Result> cache;
+
+	// the last compiled stream estimated, and what it came to.
+	private byte[] lastStreamHash;
+
+	private Estimate lastStreamEstimate;
+
+	/**
+	 * @param model
+	 *            the machine to estimate for, which shouldn't be shared since
+	 *            estimating selects tools on it
+	 */
+	public EstimationService(MachineModel model) {
+		this.model = model;
+		final int capacity = Base.preferences.getInt("estimate.cache_chunks", 4096);
+		cache = new LinkedHashMap<Key,Result>(64, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry<Key,Result> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	/**
+	 * @return how many threads a compiled stream is estimated on, from
+	 * estimate.threads; one per processor by default.
+	 */
+	public static int getThreads() {
+		return Math.max(1, Base.preferences.getInt("estimate.threads",
+				Runtime.getRuntime().availableProcessors()));
+	}
+
+	private static synchronized ExecutorService getExecutor() {
+		if (executor == null) {
+			executor = Executors.newFixedThreadPool(getThreads(), new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "Estimation");
+					t.setDaemon(true);
+					t.setPriority(Thread.MIN_PRIORITY);
+					return t;
+				}
+			});
+		}
+		return executor;
+	}
+
+	/**
+	 * Estimate a source, reading again only the chunks that aren't cached.
+	 *
+	 * @throws InterruptedException
+	 *             if the thread is interrupted between chunks
+	 */
+	public synchronized Estimate estimate(GCodeSource source)
+			throws InterruptedException {
+		MessageDigest digest = newDigest();
+		List<String> chunk = new ArrayList<String>(MIN_CHUNK_LINES * 4);
+		double[] extent = new double[4];
+		double buildTime = 0;
+		Entry entry = null;
+		MotionEstimator.State motion = null;
+		int lines = 0;
+		int chunks = 0;
+		int reused = 0;
+
+		Iterator<String> i = source.iterator();
+		while (readChunk(i, chunk, digest)) {
+			lines += chunk.size();
+			if (Thread.interrupted())
+				throw new InterruptedException();
+			Key key = new Key(digest.digest(), entry, motion);
+			Result result = cache.get(key);
+			if (result == null) {
+				result = estimate(chunk, entry, motion);
+				cache.put(key, result);
+			} else {
+				reused++;
+			}
+			chunks++;
+			buildTime += result.buildTime;
+			include(extent, result.extent);
+			entry = result.exit;
+			motion = result.motion;
+			chunk.clear();
+		}
+		// the machine comes to rest after the last moves.
+		if (motion != null) {
+			MotionEstimator last = MotionEstimator.create(model);
+			last.setState(motion);
+			last.flush();
+			buildTime += last.getTime();
+		}
+
+		Base.logger.fine("Estimated " + (chunks - reused) + " of " + chunks
+				+ " chunks of " + lines + " lines");
+		return new Estimate(buildTime, extent, lines, chunks, reused);
+	}
+
+	/**
+	 * Read the lines of a source up to the end of the next chunk, hashing
+	 * them as they are read.
+	 *
+	 * @return false if there were no lines left.
+	 */
+	private static boolean readChunk(Iterator<String> i, List<String> chunk,
+			MessageDigest digest) {
+		while (i.hasNext()) {
+			String line = i.next();
+			chunk.add(line);
+			update(digest, line);
+			int n = chunk.size();
+			if (n >= MAX_CHUNK_LINES || (n >= MIN_CHUNK_LINES
+					&& (spread(line.hashCode()) & BOUNDARY_MASK) == 0))
+				break;
+		}
+		return !chunk.isEmpty();
+	}
+
+	/**
+	 * @return true if the first chunk of the given text is cached, so that it
+	 * has been estimated a chunk at a time before, or is an edit of something
+	 * that was.
+	 */
+	public synchronized boolean isCached(GCodeSource source) {
+		List<String> chunk = new ArrayList<String>(MIN_CHUNK_LINES * 4);
+		MessageDigest digest = newDigest();
+		if (!readChunk(source.iterator(), chunk, digest))
+			return true;
+		return cache.containsKey(new Key(digest.digest(), null, null));
+	}
+
+	/**
+	 * Estimate the first chunk of the given text into the cache, e.g. after
+	 * estimating its compiled form, so that isCached() knows it.
+	 */
+	public synchronized void cacheStart(GCodeSource source)
+			throws InterruptedException {
+		List<String> chunk = new ArrayList<String>(MIN_CHUNK_LINES * 4);
+		MessageDigest digest = newDigest();
+		if (!readChunk(source.iterator(), chunk, digest))
+			return;
+		Key key = new Key(digest.digest(), null, null);
+		if (!cache.containsKey(key))
+			cache.put(key, estimate(chunk, null, null));
+	}
+
+	/**
+	 * Read one chunk, starting from where the chunk before it left off.
+	 *
+	 * @param entry
+	 *            the state before the chunk, or null for the start of the
+	 *            source
+	 * @param motion
+	 *            the moves held back before the chunk, or null at the start
+	 */
+	private Result estimate(List<String> chunk, Entry entry,
+			MotionEstimator.State motion) throws InterruptedException {
+		EstimationDriver estimator = new EstimationDriver();
+		estimator.setMachine(model);
+		if (entry != null) {
+			entry.apply(estimator);
+			estimator.getMotion().setState(motion);
+		}
+		for (String line : chunk) {
+			estimator.parse(line);
+			estimator.execute();
+		}
+		MotionEstimator timed = estimator.getMotion();
+		return new Result(timed.getTime(), estimator.getExtent(),
+				new Entry(estimator.getParser().getModalState(),
+						estimator.getCurrentFeedrate()), timed.getState());
+	}
+
+	/**
+	 * Estimate a compiled stream, reading stretches of it on several threads.
+	 * A quick scan, which only follows the modal state, finds where each
+	 * stretch starts; each is then read in full from there, and their moves
+	 * are timed in order. A stretch whose scanned start turns out not to be
+	 * where the one before really ended is read again, so the result is
+	 * always the same as reading the stream straight through.
+	 *
+	 * @throws InterruptedException
+	 *             if the thread is interrupted while waiting for a stretch
+	 */
+	public synchronized Estimate estimate(GCodeStream stream)
+			throws InterruptedException {
+		if (lastStreamEstimate != null && stream.matches(lastStreamHash))
+			return lastStreamEstimate;
+
+		int threads = getThreads();
+		int lines = stream.getLineCount();
+		int partLines = Math.max(MIN_PART_LINES,
+				Math.min(MAX_PART_LINES, lines / (threads * 4) + 1));
+		ExecutorService executor = getExecutor();
+		LinkedList<Future<Part>> pending = new LinkedList<Future<Part>>();
+
+		EstimationDriver scanner = new EstimationDriver();
+		scanner.setMachine(model);
+		GCodeParser scan = scanner.getParser();
+		GCodeStream.Cursor cursor = stream.cursor();
+
+		MotionEstimator timer = MotionEstimator.create(model);
+		// models for the parts, made here as reading the machine description
+		// isn't safe on several threads, and reused once a part is done.
+		LinkedList<MachineModel> models = new LinkedList<MachineModel>();
+		double[] extent = new double[4];
+		Entry actual = null;
+		int parts = 0;
+		int rereads = 0;
+		Entry entry = null;
+		try {
+			while (true) {
+				int position = cursor.getPosition();
+				int line = cursor.getLine() + 1;
+				int count = 0;
+				while (count < partLines && cursor.next()) {
+					scan.parse(cursor);
+					scan.scan();
+					count++;
+				}
+				if (count > 0) {
+					MachineModel partModel = models.isEmpty() ? model.copy()
+						: models.removeFirst();
+					pending.add(executor.submit(new Part(stream, position, line,
+							count, entry, partModel)));
+					entry = new Entry(scan.getModalState(),
+							scanner.getCurrentFeedrate());
+				}
+				// keep the workers busy, but don't hold every stretch's moves.
+				while (!pending.isEmpty() && (count == 0 || pending.size() > threads * 2)) {
+					Part part = getPart(pending.removeFirst());
+					if (!equal(part.entry, actual)) {
+						part = new Part(stream, part.position, part.line,
+								part.count, actual, part.model).call();
+						rereads++;
+					}
+					models.add(part.model);
+					part.recording.replay(timer);
+					include(extent, part.extent);
+					actual = part.exit;
+					parts++;
+				}
+				if (count == 0) break;
+			}
+		} finally {
+			for (Future<Part> f : pending)
+				f.cancel(true);
+		}
+		timer.flush();
+
+		Base.logger.fine("Estimated " + lines + " lines in " + parts
+				+ " parts on " + threads + " threads; " + rereads + " read again");
+		lastStreamHash = stream.getHash();
+		lastStreamEstimate = new Estimate(timer.getTime(), extent, lines, parts, 0);
+		return lastStreamEstimate;
+	}
+
+	private static Part getPart(Future<Part> future) throws InterruptedException {
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+			throw new RuntimeException(cause);
+		}
+	}
+
+	/**
+	 * Forget every cached chunk.
+	 */
+	public synchronized void clear() {
+		cache.clear();
+		lastStreamHash = null;
+		lastStreamEstimate = null;
+	}
+
+	// widen an extent, as from EstimationDriver.getExtent(), to take in another.
+	private static void include(double[] extent, double[] other) {
+		extent[0] = Math.min(extent[0], other[0]);
+		extent[1] = Math.min(extent[1], other[1]);
+		extent[2] = Math.max(extent[2], other[2]);
+		extent[3] = Math.max(extent[3], other[3]);
+	}
+
+	private static boolean equal(Object a, Object b) {
+		return a == null ? b == null : a.equals(b);
+	}
+
+	// line hashes differ mostly in their low bits; mix in the high ones.
+	private static int spread(int h) {
+		return h ^ (h >>> 16);
+	}
+
+	private static void update(MessageDigest digest, String line) {
+		try {
+			digest.update(line.getBytes("UTF-8"));
+			digest.update((byte) '\n');
+		} catch (UnsupportedEncodingException e) {
+			// UTF-8 is always supported.
+		}
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException("MD5 is not available", e);
+		}
+	}
+}
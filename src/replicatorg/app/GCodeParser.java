@@ -23,8 +23,13 @@
 
 package replicatorg.app;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.EnumSet;
-import java.util.Hashtable;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -38,6 +43,7 @@ import replicatorg.app.exceptions.JobRewindException;
 import replicatorg.drivers.Driver;
 import replicatorg.machine.model.Axis;
 import replicatorg.machine.model.ToolModel;
+import replicatorg.model.GCodeStream;
 
 public class GCodeParser {
 	// command to parse
@@ -46,20 +52,30 @@ public class GCodeParser {
 	// our driver we use.
 	protected Driver driver;
 
-	// our code data storage guys.
-	protected Hashtable<String, Double> codeValues;
+	// our code data storage guys. values are indexed by letter ('A' = 0),
+	// and the masks hold one bit per letter.
+	protected double[] codeValues = new double[26];
 
-	protected Hashtable<String, Boolean> seenCodes;
+	protected int seenCodes = 0;
+
+	protected int valuedCodes = 0;
 
 	static protected String[] codes = { "D", "F", "G", "H", "I", "J", "K", "L",
 			"M", "P", "Q", "R", "S", "T", "X", "Y", "Z" };
 
-	// our curve section variables.
-	public static double curveSectionInches = 0.019685;
-
-	public static double curveSectionMM = 0.05;
+	// bitmask of the letters in codes[], so the tokenizer can skip the rest.
+	static protected final int CODE_MASK;
+	static {
+		int mask = 0;
+		for (int i = 0; i < codes.length; i++)
+			mask |= 1 << (codes[i].charAt(0) - 'A');
+		CODE_MASK = mask;
+	}
 
-	protected double curveSection = 0.0;
+	// powers of ten that are exactly representable as doubles.
+	static private final double[] POWERS_OF_TEN = { 1e0, 1e1, 1e2, 1e3, 1e4,
+			1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16,
+			1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
 
 	// our plane selection variables
 	protected static int XY_PLANE = 0;
@@ -95,6 +111,9 @@ public class GCodeParser {
 	// current selected tool
 	protected int tool = -1;
 
+	// what the lines read so far told each tool to do, by tool index.
+	private Map<Integer, ToolState> toolStates = new TreeMap<Integer, ToolState>();
+
 	// a comment passed in
 	protected String comment = "";
 
@@ -123,13 +142,25 @@ public class GCodeParser {
 
 	protected double drillPecksize = 0.0;
 
+	// holds back moves to plan the speed through their junctions; null if
+	// look-ahead is turned off.
+	protected MotionPlanner planner;
+
+	// merges nearly collinear moves before they are planned; null if off.
+	protected SegmentMerger merger;
+
+	// points handed on by setTarget, whether sent yet or still held.
+	private long pointsQueued = 0;
+
+	// cuts arcs into moves; made when the first arc is drawn.
+	protected ArcInterpolator arcs;
+
 	/**
 	 * Creates the driver object.
 	 */
 	public GCodeParser() {
 		// we default to millimeters
 		units = UNITS_MM;
-		curveSection = curveSectionMM;
 
 		// precompile regexes for speed
 		parenPattern = Pattern.compile("\\((.*)\\)");
@@ -142,10 +173,6 @@ public class GCodeParser {
 		delta = new Point3d();
 		drillTarget = new Point3d();
 
-		// init our value tables.
-		codeValues = new Hashtable<String, Double>(codes.length, 1);
-		seenCodes = new Hashtable<String, Boolean>(codes.length, 1);
-
 		// init our offset
 		currentOffset = new Point3d();
 	}
@@ -170,6 +197,76 @@ public class GCodeParser {
 
 		// init our offset variables
 		currentOffset = driver.getOffset(0);
+
+		planner = MotionPlanner.create(driver);
+		merger = SegmentMerger.create(driver, planner);
+		arcs = null;
+	}
+
+	/**
+	 * Hand every move to the driver as it is read, unmerged and unplanned, for
+	 * drivers that work out the machine's speeds for themselves.
+	 */
+	public void disablePlanning() {
+		flushMotion();
+		merger = null;
+		planner = null;
+	}
+
+	/**
+	 * @return the segment merger, or null if merging is turned off.
+	 */
+	public SegmentMerger getSegmentMerger() {
+		return merger;
+	}
+
+	/**
+	 * Send any moves the planner is still holding back to the driver. This
+	 * must be done at the end of a build and before anything that waits for
+	 * the machine to catch up.
+	 */
+	public void flushMotion() {
+		if (merger != null)
+			merger.flush();
+		if (planner != null)
+			planner.flush();
+	}
+
+	/**
+	 * Forget any moves the planner is still holding back, e.g. when a build
+	 * is stopped.
+	 */
+	public void discardMotion() {
+		if (merger != null)
+			merger.discard();
+		if (planner != null)
+			planner.discard();
+	}
+
+	/**
+	 * @return true if the current line does nothing but move, or change how
+	 * later moves are read, so the planner may keep holding moves back.
+	 */
+	private boolean isMotionOnly() {
+		if (hasCode('M') || hasCode('T'))
+			return false;
+		if (!hasCode('G'))
+			return true;
+		switch ((int) getCodeValue('G')) {
+		case 0:
+		case 1:
+		case 2:
+		case 3:
+		case 17:
+		case 18:
+		case 19:
+		case 20:
+		case 21:
+		case 90:
+		case 91:
+			return true;
+		}
+		return false;
 	}
 
 	/**
@@ -185,31 +282,151 @@ public class GCodeParser {
 		// save our command
 		command = cmd;
 
-		// handle comments.
-		parseComments();
-		stripComments();
+		// handle comments. most lines have none, so skip the regexes then.
+		if (command.indexOf('(') >= 0 || command.indexOf(';') >= 0) {
+			parseComments();
+			stripComments();
+		}
+
+		// load all codes in a single pass over the line
+		tokenize();
+		useLastGCode();
+
+		return true;
+	}
+
+	/**
+	 * Loads a line that was already tokenized into a compiled stream, so no
+	 * text needs to be parsed at all.
+	 * 
+	 * @param cursor
+	 *            a stream cursor positioned on the line to load
+	 */
+	public boolean parse(GCodeStream.Cursor cursor) {
+		cleanup();
+
+		// the text is rebuilt from the codes if anybody asks for it.
+		command = null;
+		comment = cursor.getComment();
 
-		// load all codes
-		for (int i = 0; i < codes.length; i++) {
-			double value = parseCode(codes[i]);
-			codeValues.put(new String(codes[i]), new Double(value));
+		seenCodes = cursor.getSeenCodes();
+		valuedCodes = cursor.getValuedCodes();
+		cursor.getCodeValues(codeValues);
+		useLastGCode();
+
+		return true;
+	}
+
+	/**
+	 * if no command was seen, but parameters were, then use the last G code
+	 * as the current command
+	 */
+	private void useLastGCode() {
+		if (!hasCode('G') && (hasCode('X') || hasCode('Y') || hasCode('Z'))) {
+			int bit = 1 << ('G' - 'A');
+			seenCodes |= bit;
+			valuedCodes |= bit;
+			codeValues['G' - 'A'] = lastGCode;
 		}
+	}
 
-		// if no command was seen, but parameters were,
-		// then use the last G code as the current command
-		if (!hasCode("G") && (hasCode("X") || hasCode("Y") || hasCode("Z"))) {
-			seenCodes.put(new String("G"), new Boolean(true));
-			codeValues.put(new String("G"), new Double(lastGCode));
+	/**
+	 * @return a bitmask of the codes seen on the current line ('A' = bit 0).
+	 */
+	public int getSeenCodes() {
+		return seenCodes;
+	}
+
+	/**
+	 * @return a bitmask of the codes on the current line that carry a value.
+	 */
+	public int getValuedCodes() {
+		return valuedCodes;
+	}
+
+	/**
+	 * @return the comment on the current line, or an empty string.
+	 */
+	public String getComment() {
+		return comment;
+	}
+
+	/**
+	 * Scans the command once, recording every code letter that appears and the
+	 * value of the first occurrence of that letter that is followed by a
+	 * number.
+	 */
+	private void tokenize() {
+		final String cmd = command;
+		final int length = cmd.length();
+
+		for (int i = 0; i < length; i++) {
+			int letter = cmd.charAt(i) - 'A';
+			if (letter < 0 || letter >= 26)
+				continue;
+
+			int bit = 1 << letter;
+			if ((CODE_MASK & bit) == 0)
+				continue;
+			seenCodes |= bit;
+
+			// find the run of number characters after the letter
+			int end = i + 1;
+			while (end < length && isNumberChar(cmd.charAt(end)))
+				end++;
+
+			if (end > i + 1 && (valuedCodes & bit) == 0) {
+				codeValues[letter] = parseNumber(cmd, i + 1, end);
+				valuedCodes |= bit;
+			}
+			i = end - 1;
 		}
+	}
 
-		return true;
+	private static boolean isNumberChar(char c) {
+		return (c >= '0' && c <= '9') || c == '.' || c == '+' || c == '-';
 	}
 
-	private boolean findCode(String code) {
-		if (command.indexOf(code) >= 0)
-			return true;
-		else
-			return false;
+	/**
+	 * Parses a plain decimal number without allocating. Anything that can't be
+	 * converted exactly this way falls back to Double.parseDouble, which also
+	 * reports malformed numbers just like before.
+	 */
+	private static double parseNumber(String s, int start, int end) {
+		int i = start;
+		boolean negative = false;
+		char c = s.charAt(i);
+		if (c == '-' || c == '+') {
+			negative = (c == '-');
+			i++;
+		}
+
+		long mantissa = 0;
+		int digits = 0;
+		int fractionDigits = 0;
+		boolean seenPoint = false;
+		for (; i < end; i++) {
+			c = s.charAt(i);
+			if (c >= '0' && c <= '9') {
+				mantissa = mantissa * 10 + (c - '0');
+				digits++;
+				if (seenPoint)
+					fractionDigits++;
+				// more than this and the result might not be exact.
+				if (digits > 15)
+					return Double.parseDouble(s.substring(start, end));
+			} else if (c == '.' && !seenPoint) {
+				seenPoint = true;
+			} else {
+				return Double.parseDouble(s.substring(start, end));
+			}
+		}
+
+		if (digits == 0 || fractionDigits >= POWERS_OF_TEN.length)
+			return Double.parseDouble(s.substring(start, end));
+
+		double value = mantissa / POWERS_OF_TEN[fractionDigits];
+		return negative ? -value : value;
 	}
 
 	public double convertToMM(double value, int units) {
@@ -220,10 +437,18 @@ public class GCodeParser {
 	}
 
 	public double getCodeValue(String c) {
-		Double d = (Double) codeValues.get(c);
+		if (c.length() != 1)
+			return 0.0;
+		return getCodeValue(c.charAt(0));
+	}
 
-		if (d != null)
-			return d.doubleValue();
+	public double getCodeValue(char c) {
+		int letter = c - 'A';
+		if (letter < 0 || letter >= 26)
+			return 0.0;
+
+		if ((valuedCodes & (1 << letter)) != 0)
+			return codeValues[letter];
 		else
 			return 0.0;
 	}
@@ -235,42 +460,12 @@ public class GCodeParser {
 	 *            code the code to check for (G, M, X, etc.)
 	 * @return boolean if the code was found or not
 	 */
-	private boolean hasCode(String code) {
-		Boolean b = (Boolean) seenCodes.get(code);
-
-		if (b != null)
-			return b.booleanValue();
-		else
+	private boolean hasCode(char code) {
+		int letter = code - 'A';
+		if (letter < 0 || letter >= 26)
 			return false;
-	}
-
-	/**
-	 * Finds out the value of the code we're looking for
-	 * 
-	 * @param char
-	 *            code the code whose value we're looking up
-	 * @return double the value of the code, -1 if not found.
-	 */
-	private double parseCode(String code) {
-		Pattern myPattern = Pattern.compile(code + "([0-9.+-]+)");
-		Matcher myMatcher = myPattern.matcher(command);
 
-		if (findCode(code)) {
-			seenCodes.put(code, new Boolean(true));
-
-			if (myMatcher.find()) {
-				String match = myMatcher.group(1);
-				double number = Double.parseDouble(match);
-
-				return number;
-			}
-			// send a 0 to that its noted somewhere.
-			else
-				return 0.0;
-		}
-
-		// bail with something relatively harmless
-		return 0.0;
+		return (seenCodes & (1 << letter)) != 0;
 	}
 
 	private void parseComments() {
@@ -301,25 +496,55 @@ public class GCodeParser {
 	}
 
 	public String getCommand() {
+		if (command == null)
+			command = rebuildCommand();
 		return new String(command);
 	}
 
+	/**
+	 * Rebuilds a command string from the codes of a line loaded from a
+	 * compiled stream.
+	 */
+	private String rebuildCommand() {
+		StringBuffer buf = new StringBuffer();
+		for (int letter = 0; letter < 26; letter++) {
+			int bit = 1 << letter;
+			if ((seenCodes & bit) == 0)
+				continue;
+			if (buf.length() > 0)
+				buf.append(' ');
+			buf.append((char) ('A' + letter));
+			if ((valuedCodes & bit) != 0) {
+				double value = codeValues[letter];
+				if (value == Math.rint(value) && Math.abs(value) < 1e9)
+					buf.append((long) value);
+				else
+					buf.append(value);
+			}
+		}
+		return buf.toString();
+	}
+
 	/**
 	 * Actually execute the GCode we just parsed.
 	 */
 	public void execute() throws GCodeException {
 		// TODO: is this the proper way?
 		// Set spindle speed?
-		// if (hasCode("S"))
-		// driver.setSpindleRPM(getCodeValue("S"));
+		// if (hasCode('S'))
+		// driver.setSpindleRPM(getCodeValue('S'));
+
+		// anything else has to happen after the moves before it.
+		if (!isMotionOnly())
+			flushMotion();
 
 		// execute our other codes
 		executeMCodes();
 		executeGCodes();
 
 		// Select our tool?
-		int tempTool = (int) getCodeValue("T");
-		if (hasCode("T")) {
+		int tempTool = (int) getCodeValue('T');
+		if (hasCode('T')) {
 			if (tempTool != tool)
 				driver.selectTool(tempTool);
 
@@ -329,8 +554,8 @@ public class GCodeParser {
 
 	private void executeMCodes() throws GCodeException {
 		// find us an m code.
-		if (hasCode("M")) {
-			switch ((int) getCodeValue("M")) {
+		if (hasCode('M')) {
+			switch ((int) getCodeValue('M')) {
 			// stop codes... handled by handleStops();
 			case 0:
 			case 1:
@@ -356,8 +581,8 @@ public class GCodeParser {
 
 			// tool change
 			case 6:
-				if (hasCode("T"))
-					driver.requestToolChange((int) getCodeValue("T"));
+				if (hasCode('T'))
+					driver.requestToolChange((int) getCodeValue('T'));
 				else
 					throw new GCodeException(
 							"The T parameter is required for tool changes. (M6)");
@@ -381,8 +606,8 @@ public class GCodeParser {
 
 			// close clamp
 			case 10:
-				if (hasCode("Q"))
-					driver.closeClamp((int) getCodeValue("Q"));
+				if (hasCode('Q'))
+					driver.closeClamp((int) getCodeValue('Q'));
 				else
 					throw new GCodeException(
 							"The Q parameter is required for clamp operations. (M10)");
@@ -390,8 +615,8 @@ public class GCodeParser {
 
 			// open clamp
 			case 11:
-				if (hasCode("Q"))
-					driver.openClamp((int) getCodeValue("Q"));
+				if (hasCode('Q'))
+					driver.openClamp((int) getCodeValue('Q'));
 				else
 					throw new GCodeException(
 							"The Q parameter is required for clamp operations. (M11)");
@@ -467,23 +692,27 @@ public class GCodeParser {
 			case 101:
 				driver.setMotorDirection(ToolModel.MOTOR_CLOCKWISE);
 				driver.enableMotor();
+				followToolState();
 				break;
 
 			// turn extruder on, reverse
 			case 102:
 				driver.setMotorDirection(ToolModel.MOTOR_COUNTER_CLOCKWISE);
 				driver.enableMotor();
+				followToolState();
 				break;
 
 			// turn extruder off
 			case 103:
 				driver.disableMotor();
+				followToolState();
 				break;
 
 			// custom code for temperature control
 			case 104:
-				if (hasCode("S"))
-					driver.setTemperature(getCodeValue("S"));
+				if (hasCode('S'))
+					driver.setTemperature(getCodeValue('S'));
+				followToolState();
 				break;
 
 			// custom code for temperature reading
@@ -503,12 +732,13 @@ public class GCodeParser {
 
 			// set max extruder speed, RPM
 			case 108:
-				if (hasCode("S"))
+				if (hasCode('S'))
 					driver
 							.setMotorSpeedPWM((int) Math
-									.round(getCodeValue("S")));
-				else if (hasCode("R"))
-					driver.setMotorRPM(getCodeValue("R"));
+									.round(getCodeValue('S')));
+				else if (hasCode('R'))
+					driver.setMotorRPM(getCodeValue('R'));
+				followToolState();
 				break;
 
 			// valve open
@@ -563,31 +793,31 @@ public class GCodeParser {
 
 			default:
 				throw new GCodeException("Unknown M code: M"
-						+ (int) getCodeValue("M"));
+						+ (int) getCodeValue('M'));
 			}
 		}
 	}
 
 	private void executeGCodes() throws GCodeException {
 		// start us off at our current position...
-		Point3d temp = driver.getCurrentPosition();
+		Point3d temp = getPosition();
 
 		// initialize our points, etc.
-		double iVal = convertToMM(getCodeValue("I"), units); // / X offset
+		double iVal = convertToMM(getCodeValue('I'), units); // / X offset
 																// for arcs
-		double jVal = convertToMM(getCodeValue("J"), units); // / Y offset
+		double jVal = convertToMM(getCodeValue('J'), units); // / Y offset
 																// for arcs
 		@SuppressWarnings("unused")
-		double kVal = convertToMM(getCodeValue("K"), units); // / Z offset
+		double kVal = convertToMM(getCodeValue('K'), units); // / Z offset
 																// for arcs
 		@SuppressWarnings("unused")
-		double qVal = convertToMM(getCodeValue("Q"), units); // / feed
+		double qVal = convertToMM(getCodeValue('Q'), units); // / feed
 																// increment for
 																// G83
-		double rVal = convertToMM(getCodeValue("R"), units); // / arc radius
-		double xVal = convertToMM(getCodeValue("X"), units); // / X units
-		double yVal = convertToMM(getCodeValue("Y"), units); // / Y units
-		double zVal = convertToMM(getCodeValue("Z"), units); // / Z units
+		double rVal = convertToMM(getCodeValue('R'), units); // / arc radius
+		double xVal = convertToMM(getCodeValue('X'), units); // / X units
+		double yVal = convertToMM(getCodeValue('Y'), units); // / Y units
+		double zVal = convertToMM(getCodeValue('Z'), units); // / Z units
 
 		// adjust for our offsets
 		xVal += currentOffset.x;
@@ -596,32 +826,32 @@ public class GCodeParser {
 
 		// absolute just specifies the new position
 		if (absoluteMode) {
-			if (hasCode("X"))
+			if (hasCode('X'))
 				temp.x = xVal;
-			if (hasCode("Y"))
+			if (hasCode('Y'))
 				temp.y = yVal;
-			if (hasCode("Z"))
+			if (hasCode('Z'))
 				temp.z = zVal;
 		}
 		// relative specifies a delta
 		else {
-			if (hasCode("X"))
+			if (hasCode('X'))
 				temp.x += xVal;
-			if (hasCode("Y"))
+			if (hasCode('Y'))
 				temp.y += yVal;
-			if (hasCode("Z"))
+			if (hasCode('Z'))
 				temp.z += zVal;
 		}
 
 		// Get feedrate if supplied
-		if (hasCode("F")) {
-			feedrate = getCodeValue("F");
+		if (hasCode('F')) {
+			feedrate = getCodeValue('F');
 			driver.setFeedrate(feedrate);
 		}
 
 		// did we get a gcode?
-		if (hasCode("G")) {
-			int gCode = (int) getCodeValue("G");
+		if (hasCode('G')) {
+			int gCode = (int) getCodeValue('G');
 
 			switch (gCode) {
 			// Linear Interpolation
@@ -643,7 +873,7 @@ public class GCodeParser {
 				// Counterclockwise arc
 			case 3: {
 				// call our arc drawing function.
-				if (hasCode("I") || hasCode("J")) {
+				if (hasCode('I') || hasCode('J')) {
 					// our centerpoint
 					Point3d center = new Point3d();
 					center.x = current.x + iVal;
@@ -656,10 +886,7 @@ public class GCodeParser {
 						drawArc(center, temp, false);
 				}
 				// or we want a radius based one
-				else if (hasCode("R")) {
-					System.out
-							.println("G02/G03 arcs with (R)adius parameter are not supported yet.");
-
+				else if (hasCode('R')) {
 					if (gCode == 2)
 						drawRadius(temp, rVal, true);
 					else
@@ -670,7 +897,7 @@ public class GCodeParser {
 
 			// dwell
 			case 4:
-				driver.delay((long) getCodeValue("P"));
+				driver.delay((long) getCodeValue('P'));
 				break;
 
 			// plane selection codes
@@ -690,14 +917,12 @@ public class GCodeParser {
 			case 20:
 			case 70:
 				units = UNITS_INCHES;
-				curveSection = curveSectionInches;
 				break;
 
 			// mm for Units
 			case 21:
 			case 71:
 				units = UNITS_MM;
-				curveSection = curveSectionMM;
 				break;
 
 			// go home to your limit switches
@@ -705,9 +930,9 @@ public class GCodeParser {
 				// home all axes?
 				EnumSet<Axis> axes = EnumSet.noneOf(Axis.class);
 				
-				if (hasCode("X")) axes.add(Axis.X);
-				if (hasCode("Y")) axes.add(Axis.Y);
-				if (hasCode("Z")) axes.add(Axis.Z);
+				if (hasCode('X')) axes.add(Axis.X);
+				if (hasCode('Y')) axes.add(Axis.Y);
+				if (hasCode('Z')) axes.add(Axis.Z);
 				driver.homeAxes(axes);
 				break;
 
@@ -787,15 +1012,15 @@ public class GCodeParser {
 				boolean speedPeck = false;
 
 				// setup our parameters
-				if (hasCode("X"))
+				if (hasCode('X'))
 					drillTarget.x = temp.x;
-				if (hasCode("Y"))
+				if (hasCode('Y'))
 					drillTarget.y = temp.y;
-				if (hasCode("Z"))
+				if (hasCode('Z'))
 					drillTarget.z = temp.z;
-				if (hasCode("F"))
-					drillFeedrate = getCodeValue("F");
-				if (hasCode("R"))
+				if (hasCode('F'))
+					drillFeedrate = getCodeValue('F');
+				if (hasCode('R'))
 					drillRetract = rVal;
 
 				// set our vars for normal drilling
@@ -805,16 +1030,16 @@ public class GCodeParser {
 				}
 				// they want a dwell
 				else if (gCode == 82) {
-					if (hasCode("P"))
-						drillDwell = (int) getCodeValue("P");
+					if (hasCode('P'))
+						drillDwell = (int) getCodeValue('P');
 					drillPecksize = 0.0;
 				}
 				// fancy schmancy 'pecking' motion.
 				else if (gCode == 83 || gCode == 183) {
-					if (hasCode("P"))
-						drillDwell = (int) getCodeValue("P");
-					if (hasCode("Q"))
-						drillPecksize = Math.abs(getCodeValue("Q"));
+					if (hasCode('P'))
+						drillDwell = (int) getCodeValue('P');
+					if (hasCode('Q'))
+						drillPecksize = Math.abs(getCodeValue('Q'));
 
 					// oooh... do it fast!
 					if (gCode == 183)
@@ -839,11 +1064,11 @@ public class GCodeParser {
 
 				Point3d current = driver.getCurrentPosition();
 
-				if (hasCode("X"))
+				if (hasCode('X'))
 					current.x = xVal;
-				if (hasCode("Y"))
+				if (hasCode('Y'))
 					current.y = yVal;
-				if (hasCode("Z"))
+				if (hasCode('Z'))
 					current.z = zVal;
 
 				driver.setCurrentPosition(current);
@@ -860,13 +1085,13 @@ public class GCodeParser {
 
 			// spindle speed rate
 			case 97:
-				driver.setSpindleRPM((int) getCodeValue("S"));
+				driver.setSpindleRPM((int) getCodeValue('S'));
 				break;
 
 			// error, error!
 			default:
 				throw new GCodeException("Unknown G code: G"
-						+ (int) getCodeValue("G"));
+						+ (int) getCodeValue('G'));
 			}
 		}
 	}
@@ -938,84 +1163,32 @@ public class GCodeParser {
 		}
 	}
 
-	private void drawArc(Point3d center, Point3d endpoint, boolean clockwise) {
-		// System.out.println("Arc from " + current.toString() + " to " +
-		// endpoint.toString() + " with center " + center);
-
-		// angle variables.
-		double angleA;
-		double angleB;
-		double angle;
-		double radius;
-		double length;
-
-		// delta variables.
-		double aX;
-		double aY;
-		double bX;
-		double bY;
-
-		// figure out our deltas
-		aX = current.x - center.x;
-		aY = current.y - center.y;
-		bX = endpoint.x - center.x;
-		bY = endpoint.y - center.y;
-
-		// Clockwise
-		if (clockwise) {
-			angleA = Math.atan2(bY, bX);
-			angleB = Math.atan2(aY, aX);
-		}
-		// Counterclockwise
-		else {
-			angleA = Math.atan2(aY, aX);
-			angleB = Math.atan2(bY, bX);
+	private ArcInterpolator getArcInterpolator() {
+		if (arcs == null) {
+			arcs = new ArcInterpolator(
+					Base.preferences.getDouble("arc.tolerance", 0.005),
+					driver.getMachine().getStepsPerMM());
 		}
+		return arcs;
+	}
 
-		// Make sure angleB is always greater than angleA
-		// and if not add 2PI so that it is (this also takes
-		// care of the special case of angleA == angleB,
-		// ie we want a complete circle)
-		if (angleB <= angleA)
-			angleB += 2 * Math.PI;
-		angle = angleB - angleA;
-		// calculate a couple useful things.
-		radius = Math.sqrt(aX * aX + aY * aY);
-		length = radius * angle;
-
-		// for doing the actual move.
-		int steps;
-		int s;
-		int step;
-
-		// Maximum of either 2.4 times the angle in radians
-		// or the length of the curve divided by the curve section constant
-		steps = (int) Math.ceil(Math.max(angle * 2.4, length / curveSection));
+	private void drawArc(Point3d center, Point3d endpoint, boolean clockwise) {
+		ArcInterpolator arc = getArcInterpolator();
+		arc.start(current, center, endpoint, clockwise);
 
 		// this is the real draw action.
 		Point3d newPoint = new Point3d();
-		double arcStartZ = current.z;
-		for (s = 1; s <= steps; s++) {
-			// Forwards for CCW, backwards for CW
-			if (!clockwise)
-				step = s;
-			else
-				step = steps - s;
-
-			// calculate our waypoint.
-			newPoint.x = center.x + radius
-					* Math.cos(angleA + angle * ((double) step / steps));
-			newPoint.y = center.y + radius
-					* Math.sin(angleA + angle * ((double) step / steps));
-			newPoint.z = arcStartZ + (endpoint.z - arcStartZ) * s / steps;
-
-			// start the move
+		while (arc.next(newPoint)) {
 			setTarget(newPoint);
 		}
 	}
 
-	private void drawRadius(Point3d endpoint, double r, boolean clockwise) {
-		// not supported!
+	private void drawRadius(Point3d endpoint, double r, boolean clockwise)
+			throws GCodeException {
+		Point3d center = ArcInterpolator.findCenter(current, endpoint, r, clockwise);
+		if (center == null)
+			throw new GCodeException("Arc radius " + r + " can't reach " + endpoint);
+		drawArc(center, endpoint, clockwise);
 	}
 
 	private void setTarget(Point3d p) {
@@ -1026,12 +1199,53 @@ public class GCodeParser {
 		// toolpath.
 		// move z first
 		if (p.z != current.z) {
-			driver.queuePoint(new Point3d(current.x, current.y, p.z));
+			queuePoint(new Point3d(current.x, current.y, p.z));
 		}
-		driver.queuePoint(new Point3d(p));
+		queuePoint(new Point3d(p));
 		current = new Point3d(p);
 	}
 
+	/**
+	 * @return where the machine will be once every held move is sent.
+	 */
+	private Point3d getPosition() {
+		if (merger != null)
+			return merger.getPosition();
+		if (planner != null)
+			return planner.getPosition();
+		return driver.getCurrentPosition();
+	}
+
+	/**
+	 * @return how many points have been sent on to the driver; every point
+	 * before that count has been, the rest are still held back.
+	 */
+	public long getPointsSent() {
+		long held = 0;
+		if (merger != null)
+			held += merger.getHeldPoints();
+		if (planner != null)
+			held += planner.getHeldPoints();
+		return pointsQueued - held;
+	}
+
+	/**
+	 * @return how many points have been queued, sent or not.
+	 */
+	public long getPointsQueued() {
+		return pointsQueued;
+	}
+
+	private void queuePoint(Point3d p) {
+		pointsQueued++;
+		if (merger != null)
+			merger.queuePoint(p);
+		else if (planner != null)
+			planner.queuePoint(p);
+		else
+			driver.queuePoint(p);
+	}
+
 	/**
 	 * StopInfo defines an optional or mandatory stop, the message to display with
 	 * said stop, and the exceptions to be triggered on success of failure of the
@@ -1072,6 +1286,362 @@ public class GCodeParser {
 		public boolean isOptional() { return optional; }
 	}
 	
+	/**
+	 * What the lines read so far told one tool to do: its heater's target,
+	 * and its motor's direction, speed and whether it is running. Whatever
+	 * they never said is NaN, or -1 for the PWM speed.
+	 */
+	public static class ToolState {
+		private final int index;
+		private final double temperature;
+		private final boolean motorEnabled;
+		private final int motorDirection;
+		// only one of these is set, by whichever M108 came last.
+		private final int motorSpeedPWM;
+		private final double motorRPM;
+
+		ToolState(int index) {
+			this(index, Double.NaN, false, ToolModel.MOTOR_CLOCKWISE, -1, Double.NaN);
+		}
+
+		ToolState(int index, double temperature, boolean motorEnabled,
+				int motorDirection, int motorSpeedPWM, double motorRPM) {
+			this.index = index;
+			this.temperature = temperature;
+			this.motorEnabled = motorEnabled;
+			this.motorDirection = motorDirection;
+			this.motorSpeedPWM = motorSpeedPWM;
+			this.motorRPM = motorRPM;
+		}
+
+		public int getIndex() { return index; }
+		public double getTemperature() { return temperature; }
+		public boolean isMotorEnabled() { return motorEnabled; }
+		public int getMotorDirection() { return motorDirection; }
+		public int getMotorSpeedPWM() { return motorSpeedPWM; }
+		public double getMotorRPM() { return motorRPM; }
+
+		public boolean equals(Object o) {
+			if (!(o instanceof ToolState)) return false;
+			ToolState t = (ToolState) o;
+			return index == t.index && Double.compare(temperature, t.temperature) == 0
+				&& motorEnabled == t.motorEnabled && motorDirection == t.motorDirection
+				&& motorSpeedPWM == t.motorSpeedPWM
+				&& Double.compare(motorRPM, t.motorRPM) == 0;
+		}
+
+		public int hashCode() {
+			long bits = Double.doubleToLongBits(temperature) ^ Double.doubleToLongBits(motorRPM);
+			return index + 31 * (motorDirection + 31 * motorSpeedPWM)
+				^ (motorEnabled ? 1 : 0) ^ (int) (bits ^ (bits >>> 32));
+		}
+
+		void write(DataOutput out) throws IOException {
+			out.writeInt(index);
+			out.writeDouble(temperature);
+			out.writeBoolean(motorEnabled);
+			out.writeByte(motorDirection);
+			out.writeInt(motorSpeedPWM);
+			out.writeDouble(motorRPM);
+		}
+
+		static ToolState read(DataInput in) throws IOException {
+			return new ToolState(in.readInt(), in.readDouble(), in.readBoolean(),
+					in.readByte(), in.readInt(), in.readDouble());
+		}
+	}
+
+	/**
+	 * Note what the M code just read told the current tool to do.
+	 */
+	private void followToolState() {
+		int code = (int) getCodeValue('M');
+		// before any T code, it's whichever tool the machine started on.
+		int index = tool >= 0 ? tool : driver.getMachine().currentTool().getIndex();
+		ToolState t = toolStates.get(index);
+		if (t == null) t = new ToolState(index);
+		double temperature = t.temperature;
+		boolean enabled = t.motorEnabled;
+		int direction = t.motorDirection;
+		int pwm = t.motorSpeedPWM;
+		double rpm = t.motorRPM;
+		switch (code) {
+		case 101:
+			enabled = true;
+			direction = ToolModel.MOTOR_CLOCKWISE;
+			break;
+		case 102:
+			enabled = true;
+			direction = ToolModel.MOTOR_COUNTER_CLOCKWISE;
+			break;
+		case 103:
+			enabled = false;
+			break;
+		case 104:
+			if (!hasCode('S')) return;
+			temperature = getCodeValue('S');
+			break;
+		case 108:
+			if (hasCode('S')) {
+				pwm = (int) Math.round(getCodeValue('S'));
+				rpm = Double.NaN;
+			} else if (hasCode('R')) {
+				rpm = getCodeValue('R');
+				pwm = -1;
+			} else {
+				return;
+			}
+			break;
+		default:
+			return;
+		}
+		toolStates.put(index, new ToolState(index, temperature, enabled,
+				direction, pwm, rpm));
+	}
+
+	/**
+	 * ModalState is a snapshot of everything the parser remembers from one line
+	 * to the next, so that a build can pick up at a later line as if every line
+	 * before it had been read. That includes what each tool's heater and motor
+	 * were last told, so the machine can be put back in that state too.
+	 */
+	public static class ModalState {
+		private final int units;
+		private final int plane;
+		private final boolean absolute;
+		// which of the driver's offsets is in use, or -1 if none of them.
+		private final int offset;
+		private final int tool;
+		private final double feedrate;
+		private final int lastGCode;
+		private final Point3d current;
+		private final ToolState[] tools;
+
+		ModalState(int units, int plane, boolean absolute, int offset, int tool,
+				double feedrate, int lastGCode, Point3d current, ToolState[] tools) {
+			this.units = units;
+			this.plane = plane;
+			this.absolute = absolute;
+			this.offset = offset;
+			this.tool = tool;
+			this.feedrate = feedrate;
+			this.lastGCode = lastGCode;
+			this.current = new Point3d(current);
+			this.tools = tools.clone();
+		}
+		public int getTool() { return tool; }
+		public double getFeedrate() { return feedrate; }
+		public Point3d getPosition() { return new Point3d(current); }
+		/** @return the state of each tool the lines read so far set up, by index. */
+		public ToolState[] getToolStates() { return tools.clone(); }
+
+		/**
+		 * @return this state, with the given heater target for each tool
+		 * whose target these lines never set, e.g. one set by the machine's
+		 * warmup or by hand.
+		 * @param temperatures
+		 *            the index, current and target temperature of each tool,
+		 *            as a build journal keeps them
+		 */
+		public ModalState withTemperatures(double[] temperatures) {
+			Map<Integer, ToolState> merged = new TreeMap<Integer, ToolState>();
+			for (ToolState t : tools)
+				merged.put(t.index, t);
+			for (int i = 0; i + 2 < temperatures.length; i += 3) {
+				int index = (int) temperatures[i];
+				double target = temperatures[i + 2];
+				ToolState t = merged.get(index);
+				if (t == null) t = new ToolState(index);
+				if (target > 0 && Double.isNaN(t.temperature))
+					merged.put(index, new ToolState(index, target, t.motorEnabled,
+							t.motorDirection, t.motorSpeedPWM, t.motorRPM));
+			}
+			return new ModalState(units, plane, absolute, offset, tool, feedrate,
+					lastGCode, current,
+					merged.values().toArray(new ToolState[merged.size()]));
+		}
+
+		public boolean equals(Object o) {
+			if (!(o instanceof ModalState)) return false;
+			ModalState s = (ModalState) o;
+			return units == s.units && plane == s.plane && absolute == s.absolute
+				&& offset == s.offset && tool == s.tool
+				&& Double.compare(feedrate, s.feedrate) == 0
+				&& lastGCode == s.lastGCode && current.equals(s.current)
+				&& Arrays.equals(tools, s.tools);
+		}
+
+		public int hashCode() {
+			long bits = Double.doubleToLongBits(feedrate);
+			int h = units + 31 * (plane + 31 * (offset + 31 * (tool + 31 * lastGCode)));
+			return h ^ (absolute ? 1 : 0) ^ (int) (bits ^ (bits >>> 32)) ^ current.hashCode()
+				^ Arrays.hashCode(tools);
+		}
+
+		public void write(DataOutput out) throws IOException {
+			out.writeByte(units);
+			out.writeByte(plane);
+			out.writeBoolean(absolute);
+			out.writeByte(offset);
+			out.writeInt(tool);
+			out.writeDouble(feedrate);
+			out.writeInt(lastGCode);
+			out.writeDouble(current.x);
+			out.writeDouble(current.y);
+			out.writeDouble(current.z);
+			out.writeShort(tools.length);
+			for (ToolState t : tools)
+				t.write(out);
+		}
+
+		public static ModalState read(DataInput in) throws IOException {
+			int units = in.readByte();
+			int plane = in.readByte();
+			boolean absolute = in.readBoolean();
+			int offset = in.readByte();
+			int tool = in.readInt();
+			double feedrate = in.readDouble();
+			int lastGCode = in.readInt();
+			Point3d current = new Point3d(in.readDouble(), in.readDouble(), in.readDouble());
+			int count = in.readShort();
+			if (count < 0 || count > 256)
+				throw new IOException("corrupt modal state");
+			ToolState[] tools = new ToolState[count];
+			for (int i = 0; i < count; i++)
+				tools[i] = ToolState.read(in);
+			return new ModalState(units, plane, absolute, offset, tool, feedrate,
+					lastGCode, current, tools);
+		}
+	}
+
+	/**
+	 * @return a snapshot of the modal state left by the lines read so far.
+	 */
+	public ModalState getModalState() {
+		int offset = -1;
+		for (int i = 0; i <= 6 && driver != null; i++) {
+			if (driver.getOffset(i) == currentOffset) {
+				offset = i;
+				break;
+			}
+		}
+		// the line just read hasn't been folded in by cleanup() yet.
+		int gCode = hasCode('G') ? (int) getCodeValue('G') : lastGCode;
+		return new ModalState(units, currentPlane, absoluteMode, offset, tool,
+				feedrate, gCode, current,
+				toolStates.values().toArray(new ToolState[toolStates.size()]));
+	}
+
+	/**
+	 * Carry on as if the lines that left the given state had just been read.
+	 * Nothing is sent to the driver.
+	 */
+	public void setModalState(ModalState state) {
+		discardMotion();
+		units = state.units;
+		currentPlane = state.plane;
+		absoluteMode = state.absolute;
+		if (state.offset >= 0)
+			currentOffset = driver.getOffset(state.offset);
+		tool = state.tool;
+		feedrate = state.feedrate;
+		lastGCode = state.lastGCode;
+		toolStates.clear();
+		for (ToolState t : state.tools)
+			toolStates.put(t.index, t);
+		current = new Point3d(state.current);
+		target = new Point3d(state.current);
+		seenCodes = 0;
+		valuedCodes = 0;
+	}
+
+	/**
+	 * Follow the modal state through the line just parsed without executing
+	 * it, which is much quicker. Nothing is sent to the driver but feedrates.
+	 * Only what commonly changes the state is followed: moves and arcs,
+	 * units, planes, positioning, offsets, set position, feedrate, tool,
+	 * and each tool's heater target and motor.
+	 * After anything else, e.g. homing or a canned cycle, the state may be
+	 * wrong, so whatever is worked out from a scanned state has to be checked
+	 * against the real one.
+	 */
+	public void scan() {
+		// the driver's feedrate is followed too, as arcs are drawn at it.
+		if (hasCode('F')) {
+			feedrate = getCodeValue('F');
+			driver.setFeedrate(feedrate);
+		}
+		if (hasCode('G')) {
+			int gCode = (int) getCodeValue('G');
+			double x = convertToMM(getCodeValue('X'), units) + currentOffset.x;
+			double y = convertToMM(getCodeValue('Y'), units) + currentOffset.y;
+			double z = convertToMM(getCodeValue('Z'), units) + currentOffset.z;
+			if (gCode == 0)
+				driver.setFeedrate(getMaxFeedrate());
+			else if (gCode == 1)
+				driver.setFeedrate(feedrate);
+			switch (gCode) {
+			case 0:
+			case 1:
+			case 2:
+			case 3:
+				current = new Point3d(current);
+				if (hasCode('X'))
+					current.x = absoluteMode ? x : current.x + x;
+				if (hasCode('Y'))
+					current.y = absoluteMode ? y : current.y + y;
+				if (hasCode('Z'))
+					current.z = absoluteMode ? z : current.z + z;
+				break;
+			case 17:
+				currentPlane = XY_PLANE;
+				break;
+			case 18:
+				currentPlane = ZX_PLANE;
+				break;
+			case 19:
+				currentPlane = ZY_PLANE;
+				break;
+			case 20:
+			case 70:
+				units = UNITS_INCHES;
+				break;
+			case 21:
+			case 71:
+				units = UNITS_MM;
+				break;
+			case 53:
+			case 54:
+			case 55:
+			case 56:
+			case 57:
+			case 58:
+			case 59:
+				currentOffset = driver.getOffset(gCode - 53);
+				break;
+			case 90:
+				absoluteMode = true;
+				break;
+			case 91:
+				absoluteMode = false;
+				break;
+			case 92:
+				current = new Point3d(current);
+				if (hasCode('X'))
+					current.x = x;
+				if (hasCode('Y'))
+					current.y = y;
+				if (hasCode('Z'))
+					current.z = z;
+				break;
+			}
+		}
+		if (hasCode('M'))
+			followToolState();
+		if (hasCode('T'))
+			tool = (int) getCodeValue('T');
+	}
+
 	/**
 	 * Return a StopInfo object describing the stop defined by the current code, or null if the
 	 * code is not a stop code. 
@@ -1083,11 +1653,12 @@ public class GCodeParser {
 			message = comment;
 		int mCode;
 
-		if (hasCode("M")) {
+		if (hasCode('M')) {
 			// we wanna do this after its finished whatever was before.
+			flushMotion();
 			driver.waitUntilBufferEmpty();
 
-			mCode = (int) getCodeValue("M");
+			mCode = (int) getCodeValue('M');
 
 			if (mCode == 0) {
 				// M0 == unconditional halt
@@ -1126,15 +1697,15 @@ public class GCodeParser {
 	 */
 	public void cleanup() {
 		// move us to our target.
-		delta = new Point3d();
+		delta.set(0, 0, 0);
 
 		// save our gcode
-		if (hasCode("G"))
-			lastGCode = (int) getCodeValue("G");
+		if (hasCode('G'))
+			lastGCode = (int) getCodeValue('G');
 
 		// clear our gcodes.
-		codeValues.clear();
-		seenCodes.clear();
+		seenCodes = 0;
+		valuedCodes = 0;
 
 		// empty comments
 		comment = "";
@@ -0,0 +1,371 @@
+package replicatorg.app;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Locale;
+import java.util.Vector;
+
+import replicatorg.app.exceptions.SerialException;
+import replicatorg.drivers.EstimationDriver;
+import replicatorg.drivers.UsesSerial;
+import replicatorg.machine.MachineListener;
+import replicatorg.machine.MachineProgressEvent;
+import replicatorg.machine.MachineState;
+import replicatorg.machine.MachineStateChangeEvent;
+import replicatorg.machine.MachineToolStatusEvent;
+import replicatorg.machine.model.ToolModel;
+import replicatorg.model.MappedFileSource;
+
+/**
+ * Builds a single gcode file from the command line, without the main window
+ * or anything else that needs a display. The machine is loaded from
+ * machines.xml by name, and progress is written to standard output either as
+ * plain text or as one JSON object per line.
+ *
+ * <pre>
+ * replicatorg-headless [--machine NAME] [--port PORT] [--json]
+ *     [--from LINE | --layer LAYER | --continue] [--interval SECONDS] FILE
+ * </pre>
+ *
+ * The exit status is 0 if the build ran to the end, 1 if it was stopped or
+ * failed, and 2 if it couldn't be started.
+ */
+public class HeadlessBuild implements MachineListener {
+
+	private static final int EXIT_COMPLETED = 0;
+
+	private static final int EXIT_FAILED = 1;
+
+	private static final int EXIT_NOT_STARTED = 2;
+
+	private final PrintStream out;
+
+	private final boolean json;
+
+	// least time between progress reports, in ms.
+	private final long interval;
+
+	private long lastReport = 0;
+
+	private boolean started = false;
+
+	private boolean stopped = false;
+
+	private MachineState state = new MachineState();
+
+	// set once the build is over, to one of the exit statuses.
+	private int result = -1;
+
+	HeadlessBuild(PrintStream out, boolean json, long interval) {
+		this.out = out;
+		this.json = json;
+		this.interval = interval;
+	}
+
+	public static void main(String[] args) {
+		// keep anything that looks at the toolkit from opening a display.
+		System.setProperty("java.awt.headless", "true");
+		Base.headless = true;
+
+		String machineName = Base.preferences.get("machine.name", null);
+		String port = null;
+		String fileName = null;
+		boolean json = false;
+		boolean resume = false;
+		int fromLine = 0;
+		int fromLayer = 0;
+		double interval = 1;
+		try {
+			for (int i = 0; i < args.length; i++) {
+				String arg = args[i];
+				if (arg.equals("--machine") && i + 1 < args.length) {
+					machineName = args[++i];
+				} else if (arg.equals("--port") && i + 1 < args.length) {
+					port = args[++i];
+				} else if (arg.equals("--json")) {
+					json = true;
+				} else if (arg.equals("--continue")) {
+					resume = true;
+				} else if (arg.equals("--from") && i + 1 < args.length) {
+					// lines are counted from one on the command line.
+					fromLine = Integer.parseInt(args[++i]) - 1;
+				} else if (arg.equals("--layer") && i + 1 < args.length) {
+					fromLayer = Integer.parseInt(args[++i]) - 1;
+				} else if (arg.equals("--interval") && i + 1 < args.length) {
+					interval = Double.parseDouble(args[++i]);
+				} else if (!arg.startsWith("--") && fileName == null) {
+					fileName = arg;
+				} else {
+					usage("Unknown option " + arg);
+				}
+			}
+		} catch (NumberFormatException e) {
+			usage("Bad number: " + e.getMessage());
+		}
+		if (fileName == null)
+			usage("No gcode file given");
+		if (fromLine < 0)
+			usage("Lines are counted from 1");
+		if (fromLayer < 0)
+			usage("Layers are counted from 1");
+
+		PrintStream out = System.out;
+		if (json) {
+			// everything else printed goes to stderr, so stdout is only JSON.
+			System.setOut(System.err);
+		}
+		HeadlessBuild build = new HeadlessBuild(out, json, (long) (interval * 1000));
+		System.exit(build.run(machineName, port, argumentFile(fileName), fromLine,
+				fromLayer, resume));
+	}
+
+	/**
+	 * A file named on the command line. The launch scripts change to the
+	 * install directory first, so a relative name is taken from the one they
+	 * were run in, passed as replicatorg.workdir.
+	 */
+	static File argumentFile(String name) {
+		File file = new File(name);
+		String dir = System.getProperty("replicatorg.workdir");
+		if (!file.isAbsolute() && dir != null)
+			file = new File(dir, name);
+		return file;
+	}
+
+	private static void usage(String problem) {
+		System.err.println(problem);
+		System.err.println("Usage: replicatorg-headless [--machine NAME] [--port PORT] [--json]");
+		System.err.println("           [--from LINE | --layer LAYER | --continue] [--interval SECONDS] FILE");
+		System.exit(EXIT_NOT_STARTED);
+	}
+
+	int run(String machineName, String port, File file, int fromLine,
+			int fromLayer, boolean resume) {
+		Vector<String> names = MachineFactory.getMachineNames();
+		if (machineName == null || !names.contains(machineName)) {
+			report("error", "message", (machineName == null ?
+					"No machine given" : "Unknown machine " + machineName)
+					+ "; machines are " + names);
+			return EXIT_NOT_STARTED;
+		}
+		if (!file.canRead()) {
+			report("error", "message", "Can't read " + file);
+			return EXIT_NOT_STARTED;
+		}
+
+		final MachineController machine = Base.loadMachine(machineName);
+		try {
+			try {
+				machine.setCodeSource(new MappedFileSource(file));
+			} catch (IOException e) {
+				report("error", "message", "Can't open " + file + ": " + e.getMessage());
+				return EXIT_NOT_STARTED;
+			}
+			machine.setCodeFile(file);
+			machine.addMachineStateListener(this);
+
+			if (!connect(machine, port)) {
+				report("error", "message", "Could not connect to " + machineName);
+				return EXIT_NOT_STARTED;
+			}
+
+			// stop the machine on ctrl-c rather than leaving it running.
+			Thread stopOnExit = new Thread() {
+				public void run() {
+					if (getResult() < 0) {
+						machine.stop();
+						waitForResult(5000);
+					}
+				}
+			};
+			Runtime.getRuntime().addShutdownHook(stopOnExit);
+
+			BuildJournal.Checkpoint checkpoint = null;
+			if (resume) {
+				checkpoint = machine.getUnfinishedCheckpoint();
+				if (checkpoint == null)
+					report("info", "message", "No unfinished build of " + file
+							+ "; starting from the beginning");
+			}
+			if (checkpoint != null)
+				machine.executeFrom(checkpoint);
+			else if (fromLayer > 0) {
+				if (!machine.executeFromLayer(fromLayer)) {
+					report("error", "message", "No layer " + (fromLayer + 1) + " in " + file);
+					Runtime.getRuntime().removeShutdownHook(stopOnExit);
+					return EXIT_NOT_STARTED;
+				}
+			} else if (fromLine > 0)
+				machine.executeFrom(fromLine);
+			else
+				machine.execute();
+
+			int status = waitForResult(0);
+			try {
+				Runtime.getRuntime().removeShutdownHook(stopOnExit);
+			} catch (IllegalStateException e) {
+				// already shutting down.
+			}
+			return status;
+		} finally {
+			machine.dispose();
+		}
+	}
+
+	/**
+	 * Attach the machine's driver to a serial port the same way the main
+	 * window does, and wait until the machine is ready.
+	 */
+	private boolean connect(MachineController machine, String port) {
+		boolean serial = machine.getDriver() instanceof UsesSerial;
+		if (serial && port == null) {
+			UsesSerial us = (UsesSerial) machine.getDriver();
+			if (Base.preferences.getBoolean("serial.use_machines", true)
+					&& us.isExplicit())
+				port = us.getPortName();
+			else
+				port = Base.preferences.get("serial.last_selected", null);
+		}
+		if (serial && port == null) {
+			machine.autoscan();
+		} else {
+			try {
+				machine.connect(port);
+			} catch (SerialException e) {
+				report("error", "message", "Could not use serial port " + port
+						+ ": " + e.getMessage());
+				return false;
+			}
+		}
+		long timeout = Base.preferences.getInt("headless.connect_timeout", 30) * 1000L;
+		long end = System.currentTimeMillis() + timeout;
+		synchronized (this) {
+			while (!state.isReady()) {
+				long left = end - System.currentTimeMillis();
+				if (left <= 0) return machine.getMachineState().isReady();
+				try {
+					wait(left);
+				} catch (InterruptedException e) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	private synchronized int getResult() {
+		return result;
+	}
+
+	/**
+	 * Wait for the build to end.
+	 *
+	 * @param timeout
+	 *            the longest to wait in ms, or 0 to wait as long as it takes
+	 * @return the exit status, or -1 if the build is still running.
+	 */
+	private synchronized int waitForResult(long timeout) {
+		long end = System.currentTimeMillis() + timeout;
+		while (result < 0) {
+			long left = timeout == 0 ? 0 : end - System.currentTimeMillis();
+			if (timeout != 0 && left <= 0) break;
+			try {
+				wait(left);
+			} catch (InterruptedException e) {
+				break;
+			}
+		}
+		return result;
+	}
+
+	public synchronized void machineStateChanged(MachineStateChangeEvent evt) {
+		MachineState current = evt.getState();
+		report("state", "state", current.getState().toString());
+		if (current.isBuilding()) {
+			started = true;
+		} else if (started && result < 0) {
+			if (current.getState() == MachineState.State.STOPPING) {
+				stopped = true;
+			} else if (current.getState() == MachineState.State.READY) {
+				finish(stopped ? EXIT_FAILED : EXIT_COMPLETED);
+			} else if (current.getState() == MachineState.State.NOT_ATTACHED) {
+				finish(EXIT_FAILED);
+			}
+		}
+		state = current;
+		notifyAll();
+	}
+
+	private void finish(int status) {
+		result = status;
+		if (json) {
+			out.println("{\"event\":\"done\",\"result\":\""
+					+ (status == EXIT_COMPLETED ? "completed" : "stopped") + "\"}");
+		} else {
+			out.println(status == EXIT_COMPLETED ? "Build completed." : "Build stopped.");
+		}
+	}
+
+	public void machineProgress(MachineProgressEvent event) {
+		long now = System.currentTimeMillis();
+		boolean last = event.getLines() >= event.getTotalLines();
+		if (now - lastReport < interval && !last) return;
+		lastReport = now;
+		double percent = event.getTotalLines() == 0 ? 0 :
+			100.0 * event.getLines() / event.getTotalLines();
+		if (json) {
+			out.println("{\"event\":\"progress\",\"lines\":" + event.getLines()
+					+ ",\"total\":" + event.getTotalLines()
+					+ ",\"percent\":" + String.format(Locale.US, "%.1f", percent)
+					+ ",\"elapsed\":" + (long) event.getElapsed()
+					+ ",\"estimated\":" + (long) event.getEstimated() + "}");
+		} else {
+			out.println(String.format("%5.1f%%  line %d of %d, %s of about %s",
+					percent, event.getLines(), event.getTotalLines(),
+					EstimationDriver.getBuildTimeString(event.getElapsed(), true),
+					EstimationDriver.getBuildTimeString(event.getEstimated())));
+		}
+	}
+
+	public void toolStatusChanged(MachineToolStatusEvent event) {
+		ToolModel tool = event.getTool();
+		if (json) {
+			out.println("{\"event\":\"tool\",\"tool\":" + tool.getIndex()
+					+ ",\"temperature\":" + tool.getCurrentTemperature()
+					+ ",\"target\":" + tool.getTargetTemperature() + "}");
+		} else {
+			out.println("Tool " + tool.getIndex() + " at "
+					+ tool.getCurrentTemperature() + "C of "
+					+ tool.getTargetTemperature() + "C");
+		}
+	}
+
+	private void report(String event, String key, String value) {
+		if (json) {
+			out.println("{\"event\":\"" + event + "\",\"" + key + "\":"
+					+ quote(value) + "}");
+		} else if (event.equals("state")) {
+			out.println("Machine is " + value.toLowerCase().replace('_', ' '));
+		} else {
+			out.println(value);
+		}
+	}
+
+	private static String quote(String s) {
+		StringBuffer b = new StringBuffer("\"");
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '"' || c == '\\') {
+				b.append('\\').append(c);
+			} else if (c == '\n') {
+				b.append("\\n");
+			} else if (c < ' ') {
+				b.append(String.format("\\u%04x", (int) c));
+			} else {
+				b.append(c);
+			}
+		}
+		return b.append('"').toString();
+	}
+}
@@ -0,0 +1,643 @@
+package replicatorg.app;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import replicatorg.drivers.EstimationDriver;
+import replicatorg.machine.MachineListener;
+import replicatorg.machine.MachineProgressEvent;
+import replicatorg.machine.MachineState;
+import replicatorg.machine.MachineStateChangeEvent;
+import replicatorg.machine.MachineToolStatusEvent;
+import replicatorg.machine.model.MachineModel;
+import replicatorg.machine.model.ToolModel;
+import replicatorg.model.GCodeStream;
+import replicatorg.model.MappedFileSource;
+
+/**
+ * A queue of gcode files waiting to be built on the machines of a
+ * MachinePool. Each job may ask for a tool and a material; it's only ever
+ * given to a machine with a tool that matches both. Jobs are read once when
+ * they're submitted, for their estimate and statistics, and handed out oldest
+ * first as soon as a suitable machine is ready, so machines go straight from
+ * one build to the next.
+ *
+ * The queue is written to disk whenever it changes. A job that was running
+ * when the process went away is marked failed on reload rather than started
+ * again, since nobody knows what was left on the machine.
+ */
+public class JobQueue {
+
+	private static final int MAGIC = 0x52474a51; // "RGJQ"
+
+	private static final int FORMAT_VERSION = 1;
+
+	public enum Status {
+		QUEUED,
+		RUNNING,
+		COMPLETED,
+		FAILED
+	}
+
+	/**
+	 * A gcode file to build, and what became of it.
+	 */
+	public static class Job {
+		private final long id;
+		private final File file;
+		private final String tool;
+		private final String material;
+		private final long submitted;
+		private final double estimated;
+		private Status status = Status.QUEUED;
+		private String machineId = null;
+		private long started = 0;
+		private long finished = 0;
+		// seen while running; not kept on disk.
+		private boolean building = false;
+		private boolean stopped = false;
+		// found when submitted; not kept on disk either.
+		private BuildStatistics statistics = null;
+
+		Job(long id, File file, String tool, String material, long submitted,
+				double estimated) {
+			this.id = id;
+			this.file = file;
+			this.tool = tool;
+			this.material = material;
+			this.submitted = submitted;
+			this.estimated = estimated;
+		}
+
+		private Job(Job other) {
+			this(other.id, other.file, other.tool, other.material,
+					other.submitted, other.estimated);
+			status = other.status;
+			machineId = other.machineId;
+			started = other.started;
+			finished = other.finished;
+			statistics = other.statistics;
+		}
+
+		public long getId() { return id; }
+		public File getFile() { return file; }
+		/** @return the tool name or type asked for, or null for any. */
+		public String getTool() { return tool; }
+		/** @return the material asked for, or null for any. */
+		public String getMaterial() { return material; }
+		public long getSubmitted() { return submitted; }
+		/** @return the estimated build time in ms. */
+		public double getEstimated() { return estimated; }
+		/**
+		 * @return what the build comes to, or null if the job was queued
+		 * before this process started.
+		 */
+		public BuildStatistics getStatistics() { return statistics; }
+		public Status getStatus() { return status; }
+		/** @return the id of the machine it was given to, or null. */
+		public String getMachineId() { return machineId; }
+		public long getStarted() { return started; }
+		public long getFinished() { return finished; }
+
+		/**
+		 * @return how long the job waited to start, or has waited so far.
+		 */
+		public long getWaitMillis() {
+			return (started == 0 ? System.currentTimeMillis() : started) - submitted;
+		}
+
+		/**
+		 * @return true if the machine has a tool that suits the job.
+		 */
+		public boolean canRunOn(MachineModel model) {
+			if (tool == null && material == null) return true;
+			for (Object o : model.getTools()) {
+				ToolModel t = (ToolModel)o;
+				if (tool != null && !tool.equalsIgnoreCase(t.getName())
+						&& !tool.equalsIgnoreCase(t.getType()))
+					continue;
+				if (material != null && !material.equalsIgnoreCase(t.getMaterial()))
+					continue;
+				return true;
+			}
+			return false;
+		}
+
+		public String toString() {
+			return "job " + id + " (" + file.getName() + ") " + status
+				+ (machineId == null ? "" : " on " + machineId);
+		}
+
+		void write(DataOutputStream out) throws IOException {
+			out.writeLong(id);
+			out.writeUTF(file.getPath());
+			out.writeUTF(tool == null ? "" : tool);
+			out.writeUTF(material == null ? "" : material);
+			out.writeLong(submitted);
+			out.writeDouble(estimated);
+			out.writeUTF(status.name());
+			out.writeUTF(machineId == null ? "" : machineId);
+			out.writeLong(started);
+			out.writeLong(finished);
+		}
+
+		static Job read(DataInputStream in) throws IOException {
+			long id = in.readLong();
+			File file = new File(in.readUTF());
+			String tool = in.readUTF();
+			String material = in.readUTF();
+			Job job = new Job(id, file, tool.length() == 0 ? null : tool,
+					material.length() == 0 ? null : material, in.readLong(),
+					in.readDouble());
+			try {
+				job.status = Status.valueOf(in.readUTF());
+			} catch (IllegalArgumentException e) {
+				throw new IOException("corrupt job queue");
+			}
+			String machineId = in.readUTF();
+			job.machineId = machineId.length() == 0 ? null : machineId;
+			job.started = in.readLong();
+			job.finished = in.readLong();
+			return job;
+		}
+	}
+
+	/**
+	 * How long jobs have been waiting for a machine.
+	 */
+	public static class Metrics {
+		private final int queued;
+		private final int running;
+		private final int completed;
+		private final int failed;
+		private final long averageWait;
+		private final long longestWait;
+		private final long oldestQueued;
+		private final double queuedEstimate;
+
+		Metrics(List<Job> jobs) {
+			int queued = 0, running = 0, completed = 0, failed = 0;
+			long totalWait = 0, longestWait = 0, oldestQueued = 0;
+			int started = 0;
+			double queuedEstimate = 0;
+			for (Job j : jobs) {
+				switch (j.getStatus()) {
+				case QUEUED:
+					queued++;
+					oldestQueued = Math.max(oldestQueued, j.getWaitMillis());
+					queuedEstimate += j.getEstimated();
+					continue;
+				case RUNNING: running++; break;
+				case COMPLETED: completed++; break;
+				case FAILED: failed++; break;
+				}
+				if (j.getStarted() != 0) {
+					started++;
+					totalWait += j.getWaitMillis();
+					longestWait = Math.max(longestWait, j.getWaitMillis());
+				}
+			}
+			this.queued = queued;
+			this.running = running;
+			this.completed = completed;
+			this.failed = failed;
+			this.averageWait = started == 0 ? 0 : totalWait / started;
+			this.longestWait = longestWait;
+			this.oldestQueued = oldestQueued;
+			this.queuedEstimate = queuedEstimate;
+		}
+
+		public int getQueued() { return queued; }
+		public int getRunning() { return running; }
+		public int getCompleted() { return completed; }
+		public int getFailed() { return failed; }
+		/** @return the mean wait of the jobs that have started, in ms. */
+		public long getAverageWait() { return averageWait; }
+		/** @return the longest wait of the jobs that have started, in ms. */
+		public long getLongestWait() { return longestWait; }
+		/** @return how long the oldest queued job has waited so far, in ms. */
+		public long getOldestQueuedWait() { return oldestQueued; }
+		/** @return the estimated build time of every queued job, in ms. */
+		public double getQueuedEstimate() { return queuedEstimate; }
+
+		public String toString() {
+			return queued + " queued, " + running + " running, " + completed
+				+ " completed, " + failed + " failed; average wait "
+				+ formatWait(averageWait) + ", oldest queued "
+				+ formatWait(oldestQueued);
+		}
+	}
+
+	private static String formatWait(long millis) {
+		if (millis < 1000) return "under a second";
+		return EstimationDriver.getBuildTimeString(millis, true);
+	}
+
+	/**
+	 * @return where the queue is kept unless told otherwise: the queue.file
+	 * preference, or .replicatorg-queue in the home folder.
+	 */
+	public static File getDefaultFile() {
+		String path = Base.preferences.get("queue.file", null);
+		if (path != null) return new File(path);
+		return new File(System.getProperty("user.home"), ".replicatorg-queue");
+	}
+
+	private final MachinePool pool;
+
+	private final File file;
+
+	// every job, oldest first.
+	private final List<Job> jobs = new ArrayList<Job>();
+
+	private long nextId = 1;
+
+	// by machine id.
+	private final Map<String,Job> running = new HashMap<String,Job>();
+
+	private final Map<String,MachineListener> watched =
+		new HashMap<String,MachineListener>();
+
+	private Thread dispatcher = null;
+
+	private ScheduledFuture<?> tick = null;
+
+	private boolean wake = false;
+
+	public JobQueue(MachinePool pool, File file) {
+		this.pool = pool;
+		this.file = file;
+		if (file.exists()) {
+			try {
+				load();
+			} catch (IOException e) {
+				Base.logger.warning("Could not read job queue " + file + ": "
+						+ e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Estimate a gcode file and add it to the end of the queue.
+	 *
+	 * @param tool
+	 *            the name or type of tool the job needs, or null for any
+	 * @param material
+	 *            the material the job needs, or null for any
+	 */
+	public Job submit(File gcode, String tool, String material)
+			throws IOException {
+		// reading the file can take a while, so do it before taking the lock.
+		BuildStatistics statistics = summarize(gcode, tool, material);
+		double estimated = statistics == null ? 0 : statistics.getBuildTime();
+		synchronized (this) {
+			Job job = new Job(nextId++, gcode.getAbsoluteFile(), tool, material,
+					System.currentTimeMillis(), estimated);
+			job.statistics = statistics;
+			jobs.add(job);
+			save();
+			wake();
+			if (statistics == null)
+				Base.logger.info("Queued " + job + " without an estimate");
+			else
+				Base.logger.info("Queued " + job + ": " + statistics);
+			return new Job(job);
+		}
+	}
+
+	/**
+	 * Read a file once for its layers and statistics, timed for the first
+	 * machine in the pool that could take the job. They are kept next to the
+	 * file, so a file queued again isn't read again.
+	 * 
+	 * @return the statistics, or null if interrupted.
+	 */
+	private BuildStatistics summarize(File gcode, String tool, String material)
+			throws IOException {
+		Job probe = new Job(0, gcode, tool, material, 0, 0);
+		MachineController model = null;
+		for (String id : pool.getIds()) {
+			MachineController machine = pool.get(id);
+			if (machine == null) continue;
+			if (probe.canRunOn(machine.getDriver().getMachine())) {
+				model = machine;
+				break;
+			}
+			if (model == null) model = machine;
+		}
+		if (model != null && !probe.canRunOn(model.getDriver().getMachine()))
+			Base.logger.warning("No machine can take " + gcode.getName()
+					+ " yet; it will wait until one is added");
+		try {
+			if (model != null)
+				return model.getLayerIndex(gcode).getStatistics();
+			GCodeStream stream = GCodeStream.forSource(new MappedFileSource(gcode), gcode);
+			return LayerIndex.forStream(stream, gcode, new MachineModel(), "")
+					.getStatistics();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+	}
+
+	/**
+	 * Take a job out of the queue, or stop it if it's running.
+	 *
+	 * @return false if there's no such job, or it has already finished.
+	 */
+	public boolean cancel(long id) {
+		MachineController machine = null;
+		synchronized (this) {
+			for (Iterator<Job> i = jobs.iterator(); i.hasNext();) {
+				Job job = i.next();
+				if (job.id != id) continue;
+				if (job.status == Status.QUEUED) {
+					i.remove();
+					save();
+					return true;
+				}
+				if (job.status == Status.RUNNING)
+					machine = pool.get(job.machineId);
+				break;
+			}
+		}
+		if (machine == null) return false;
+		// the job is marked failed once the machine has stopped.
+		machine.stop();
+		return true;
+	}
+
+	/** @return a copy of every job, oldest first. */
+	public synchronized List<Job> getJobs() {
+		List<Job> copy = new ArrayList<Job>(jobs.size());
+		for (Job j : jobs)
+			copy.add(new Job(j));
+		return copy;
+	}
+
+	public synchronized Metrics getMetrics() {
+		return new Metrics(jobs);
+	}
+
+	/** @return true if nothing is queued or running. */
+	public synchronized boolean isIdle() {
+		for (Job j : jobs) {
+			if (j.status == Status.QUEUED || j.status == Status.RUNNING)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return true if a job is running, or a queued job could run on one of
+	 * the machines in the pool.
+	 */
+	public boolean hasWork() {
+		List<MachineModel> models = new ArrayList<MachineModel>();
+		for (String id : pool.getIds()) {
+			MachineController machine = pool.get(id);
+			if (machine != null) models.add(machine.getDriver().getMachine());
+		}
+		synchronized (this) {
+			if (!running.isEmpty()) return true;
+			for (Job j : jobs) {
+				if (j.status != Status.QUEUED) continue;
+				for (MachineModel model : models) {
+					if (j.canRunOn(model)) return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Start handing jobs to machines. The pool's scheduler also wakes the
+	 * dispatcher now and then, to notice machines added since.
+	 */
+	public synchronized void start() {
+		if (dispatcher != null) return;
+		dispatcher = new Thread("Job dispatcher") {
+			public void run() {
+				while (!isInterrupted()) {
+					try {
+						waitForWork();
+						dispatch();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			}
+		};
+		dispatcher.setDaemon(true);
+		dispatcher.start();
+		long interval = Base.preferences.getInt("queue.dispatch_interval", 5);
+		tick = pool.getScheduler().scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				wake();
+			}
+		}, interval, interval, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Stop handing out jobs. Builds already running carry on.
+	 */
+	public void stop() {
+		Thread t;
+		synchronized (this) {
+			t = dispatcher;
+			dispatcher = null;
+			if (tick != null) tick.cancel(false);
+			tick = null;
+		}
+		if (t == null) return;
+		t.interrupt();
+		try {
+			t.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private synchronized void wake() {
+		wake = true;
+		notifyAll();
+	}
+
+	private synchronized void waitForWork() throws InterruptedException {
+		while (!wake)
+			wait();
+		wake = false;
+	}
+
+	private void dispatch() {
+		for (String id : pool.getReadyIds()) {
+			MachineController machine = pool.get(id);
+			if (machine == null) continue;
+			watch(id, machine);
+			Job job = null;
+			synchronized (this) {
+				if (running.containsKey(id)) continue;
+				MachineModel model = machine.getDriver().getMachine();
+				for (Job j : jobs) {
+					if (j.status == Status.QUEUED && j.canRunOn(model)) {
+						job = j;
+						break;
+					}
+				}
+				if (job == null) continue;
+				job.status = Status.RUNNING;
+				job.machineId = id;
+				job.started = System.currentTimeMillis();
+				running.put(id, job);
+				save();
+			}
+			Base.logger.info("Starting " + job + " after waiting "
+					+ formatWait(job.getWaitMillis()));
+			try {
+				machine.setCodeSource(new MappedFileSource(job.file));
+				machine.setCodeFile(job.file);
+				// estimated when submitted; estimating again here would hold up
+				// every other machine waiting for a job.
+				machine.execute(job.estimated);
+			} catch (IOException e) {
+				Base.logger.warning("Could not open " + job.file + ": " + e.getMessage());
+				finish(id, Status.FAILED);
+			}
+		}
+	}
+
+	/**
+	 * Follow a machine's state, to learn when the job on it ends.
+	 */
+	private void watch(final String id, MachineController machine) {
+		synchronized (watched) {
+			if (watched.containsKey(id)) return;
+			MachineListener listener = new MachineListener() {
+				public void machineStateChanged(MachineStateChangeEvent evt) {
+					jobStateChanged(id, evt.getState());
+				}
+				public void machineProgress(MachineProgressEvent event) {
+				}
+				public void toolStatusChanged(MachineToolStatusEvent event) {
+				}
+			};
+			watched.put(id, listener);
+			machine.addMachineStateListener(listener);
+		}
+	}
+
+	private void jobStateChanged(String id, MachineState state) {
+		Status status = null;
+		synchronized (this) {
+			Job job = running.get(id);
+			if (job == null) return;
+			if (state.isBuilding()) {
+				job.building = true;
+			} else if (state.getState() == MachineState.State.STOPPING) {
+				job.stopped = true;
+			} else if (state.getState() == MachineState.State.NOT_ATTACHED) {
+				status = Status.FAILED;
+			} else if (state.isReady() && job.building) {
+				status = job.stopped ? Status.FAILED : Status.COMPLETED;
+			}
+		}
+		if (status != null)
+			finish(id, status);
+	}
+
+	private synchronized void finish(String id, Status status) {
+		Job job = running.remove(id);
+		if (job == null) return;
+		job.status = status;
+		job.finished = System.currentTimeMillis();
+		Base.logger.info("Finished " + job);
+		trimHistory();
+		save();
+		// the machine is free again.
+		wake();
+	}
+
+	// forget the oldest finished jobs beyond the number kept.
+	private void trimHistory() {
+		int keep = Base.preferences.getInt("queue.history", 100);
+		int finished = 0;
+		for (Job j : jobs) {
+			if (j.status == Status.COMPLETED || j.status == Status.FAILED)
+				finished++;
+		}
+		for (Iterator<Job> i = jobs.iterator(); i.hasNext() && finished > keep;) {
+			Job j = i.next();
+			if (j.status == Status.COMPLETED || j.status == Status.FAILED) {
+				i.remove();
+				finished--;
+			}
+		}
+	}
+
+	/***************************************************************************
+	 * Disk storage
+	 **************************************************************************/
+
+	// write to a scratch file and rename it, so a crash can't leave half a
+	// queue behind.
+	private void save() {
+		File scratch = new File(file.getPath() + ".new");
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(scratch)));
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(FORMAT_VERSION);
+				out.writeLong(nextId);
+				out.writeInt(jobs.size());
+				for (Job j : jobs)
+					j.write(out);
+			} finally {
+				out.close();
+			}
+			if (!scratch.renameTo(file)) {
+				// some platforms won't rename over an existing file.
+				file.delete();
+				if (!scratch.renameTo(file))
+					throw new IOException("could not replace " + file);
+			}
+		} catch (IOException e) {
+			Base.logger.warning("Could not write job queue " + file + ": "
+					+ e.getMessage());
+		}
+	}
+
+	private void load() throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(file)));
+		try {
+			if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION)
+				throw new IOException("not a job queue");
+			nextId = in.readLong();
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				Job job = Job.read(in);
+				if (job.status == Status.RUNNING) {
+					Base.logger.warning(job + " was cut short; marking it failed");
+					job.status = Status.FAILED;
+				}
+				jobs.add(job);
+			}
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,608 @@
+package replicatorg.app;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.vecmath.Point3d;
+
+import replicatorg.drivers.EstimationDriver;
+import replicatorg.drivers.MotionEstimator;
+import replicatorg.machine.model.MachineModel;
+import replicatorg.machine.model.ToolModel;
+import replicatorg.model.GCodeStream;
+
+/**
+ * Where each layer of a build starts and ends, found in one pass over its
+ * compiled stream: the layer's height, its first and last lines, how many
+ * moves it has and how long the machine spends on them with the extruder
+ * running. Any layer can then be shown, previewed or built from without
+ * reading the file again.
+ *
+ * A layer starts at the line that first moves to its height. Once anything
+ * has been extruded, a height the head only travels at isn't a layer of its
+ * own: going up and back down, as a lift over a gap does, stays in the layer
+ * below, and travel on the way to a new layer is the start of it.
+ *
+ * The same pass totals the whole build up in a BuildStatistics, and each
+ * layer keeps its own share of the distance moved and material fed.
+ *
+ * Like the modal state index, the layer index is kept next to the gcode file
+ * and is only used while the text it was made from is unchanged.
+ */
+public class LayerIndex {
+
+	/** Suffix of the index file written next to a gcode file. */
+	public static final String SUFFIX = ".layers";
+
+	private static final int MAGIC = 0x52474c49; // "RGLI"
+
+	private static final int FORMAT_VERSION = 3;
+
+	private static final int Z_CODE = 1 << ('Z' - 'A');
+
+	/**
+	 * One layer of a build.
+	 */
+	public static class Layer {
+		private double z;
+		private final int firstLine;
+		private int lastLine;
+		private final int position;
+		private final GCodeParser.ModalState state;
+		private int moves = 0;
+		private double time = 0;
+		private double extrudeTime = 0;
+		private double startTime = 0;
+		private double travelDistance = 0;
+		private double extrudeDistance = 0;
+		private double material = 0;
+
+		// while building: whether any move in the layer extruded.
+		private boolean extruded = false;
+
+		Layer(double z, int firstLine, int position, GCodeParser.ModalState state) {
+			this.z = z;
+			this.firstLine = firstLine;
+			this.lastLine = firstLine;
+			this.position = position;
+			this.state = state;
+		}
+
+		/** @return the height the layer is built at. */
+		public double getZ() { return z; }
+		/** @return the zero-based number of the layer's first line. */
+		public int getFirstLine() { return firstLine; }
+		/** @return the zero-based number of the layer's last line. */
+		public int getLastLine() { return lastLine; }
+		/**
+		 * @return the compiled stream position of the first line, or -1 if
+		 * the state before it wasn't kept.
+		 */
+		public int getPosition() { return position; }
+		/**
+		 * @return the modal state in force before the first line, or null if
+		 * it wasn't kept; the first line didn't give a Z, e.g. it homed.
+		 */
+		public GCodeParser.ModalState getState() { return state; }
+		public int getMoveCount() { return moves; }
+		/** @return the ms spent moving in this layer. */
+		public double getTime() { return time; }
+		/** @return the ms spent moving with the extruder running. */
+		public double getExtrudeTime() { return extrudeTime; }
+		/** @return the ms spent moving in the layers before this one. */
+		public double getStartTime() { return startTime; }
+		/** @return the mm moved with no motor running. */
+		public double getTravelDistance() { return travelDistance; }
+		/** @return the mm moved with a motor running. */
+		public double getExtrudeDistance() { return extrudeDistance; }
+		/** @return the mm of material fed, where tools say how much they feed. */
+		public double getMaterial() { return material; }
+
+		// take in the lines before this layer that turned out not to be one.
+		private void add(Layer other) {
+			moves += other.moves;
+			time += other.time;
+			extrudeTime += other.extrudeTime;
+			travelDistance += other.travelDistance;
+			extrudeDistance += other.extrudeDistance;
+			material += other.material;
+		}
+
+		private void write(DataOutputStream out) throws IOException {
+			out.writeDouble(z);
+			out.writeInt(firstLine);
+			out.writeInt(lastLine);
+			out.writeInt(position);
+			out.writeBoolean(state != null);
+			if (state != null)
+				state.write(out);
+			out.writeInt(moves);
+			out.writeDouble(time);
+			out.writeDouble(extrudeTime);
+			out.writeDouble(travelDistance);
+			out.writeDouble(extrudeDistance);
+			out.writeDouble(material);
+		}
+
+		private static Layer read(DataInputStream in) throws IOException {
+			double z = in.readDouble();
+			int firstLine = in.readInt();
+			int lastLine = in.readInt();
+			int position = in.readInt();
+			GCodeParser.ModalState state = in.readBoolean() ?
+					GCodeParser.ModalState.read(in) : null;
+			Layer layer = new Layer(z, firstLine, position, state);
+			layer.lastLine = lastLine;
+			layer.moves = in.readInt();
+			layer.time = in.readDouble();
+			layer.extrudeTime = in.readDouble();
+			layer.travelDistance = in.readDouble();
+			layer.extrudeDistance = in.readDouble();
+			layer.material = in.readDouble();
+			return layer;
+		}
+	}
+
+	private final byte[] hash;
+
+	// the machine the layers were timed for.
+	private final String machine;
+
+	// in the order they are built.
+	private final Layer[] layers;
+
+	private final BuildStatistics statistics;
+
+	private LayerIndex(byte[] hash, String machine, Layer[] layers,
+			BuildStatistics statistics) {
+		this.hash = hash.clone();
+		this.machine = machine;
+		this.layers = layers;
+		this.statistics = statistics;
+		double time = 0;
+		for (Layer layer : layers) {
+			layer.startTime = time;
+			time += layer.time;
+		}
+	}
+
+	public boolean matches(byte[] sourceHash) {
+		return Arrays.equals(hash, sourceHash);
+	}
+
+	/** @return the name of the machine the layers were timed for. */
+	public String getMachine() {
+		return machine;
+	}
+
+	public int size() {
+		return layers.length;
+	}
+
+	/**
+	 * @return the totals for the whole build, gathered with the layers.
+	 */
+	public BuildStatistics getStatistics() {
+		return statistics;
+	}
+
+	/**
+	 * @return the layer with the given zero-based number.
+	 */
+	public Layer get(int layer) {
+		return layers[layer];
+	}
+
+	/**
+	 * @return the number of the layer the given line is in, or -1 if it is
+	 * before the first layer.
+	 */
+	public int find(int line) {
+		int low = 0;
+		int high = layers.length - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			if (layers[mid].getFirstLine() <= line)
+				low = mid + 1;
+			else
+				high = mid - 1;
+		}
+		return high;
+	}
+
+	/**
+	 * @return the number of the last layer at or below the given height, or
+	 * -1 if there is none. Layers are taken to be built going up.
+	 */
+	public int findHeight(double z) {
+		int low = 0;
+		int high = layers.length - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			if (layers[mid].getZ() <= z)
+				low = mid + 1;
+			else
+				high = mid - 1;
+		}
+		return high;
+	}
+
+	/**
+	 * @return the ms spent moving in every layer.
+	 */
+	public double getTime() {
+		if (layers.length == 0) return 0;
+		Layer last = layers[layers.length - 1];
+		return last.getStartTime() + last.getTime();
+	}
+
+	/***************************************************************************
+	 * Building
+	 **************************************************************************/
+
+	/**
+	 * What a run of moves was made with. Each move is tagged with the number
+	 * of its run, so it can be counted once it is timed.
+	 */
+	private static class Run {
+		final int segment;
+		final Tally tool;
+		final boolean motor;
+		// the motor's turns a minute, negative backwards; zero if not known.
+		final double rpm;
+
+		Run(int segment, Tally tool, boolean motor, double rpm) {
+			this.segment = segment;
+			this.tool = tool;
+			this.motor = motor;
+			this.rpm = rpm;
+		}
+	}
+
+	/**
+	 * A tool's share of the build so far.
+	 */
+	private static class Tally {
+		final ToolModel tool;
+		double motorTime = 0;
+		double revolutions = 0;
+		double material = 0;
+
+		Tally(ToolModel tool) {
+			this.tool = tool;
+		}
+
+		// count the motor running for a while, returning the material fed.
+		double run(double rpm, double millis) {
+			double turns = rpm * millis / 60000.0;
+			double fed = turns * tool.getMotorFeedPerRevolution();
+			motorTime += millis;
+			revolutions += turns;
+			material += fed;
+			return fed;
+		}
+	}
+
+	/**
+	 * Reads a stream and sorts its moves into layers, measuring and timing
+	 * them as it goes.
+	 */
+	private static class Scanner extends EstimationDriver implements
+			MotionEstimator.MoveListener {
+		final List<Layer> layers = new ArrayList<Layer>();
+
+		// the layer each segment's moves count towards.
+		final List<Layer> segments = new ArrayList<Layer>();
+
+		final List<Run> runs = new ArrayList<Run>();
+
+		// in the order first used.
+		final List<Tally> tools = new ArrayList<Tally>();
+
+		Layer layer = null;
+
+		boolean extruded = false;
+
+		// where the last move ended, and everywhere moves went.
+		double px, py, pz;
+
+		Point3d minimum = null;
+
+		Point3d maximum = null;
+
+		double travelDistance = 0;
+
+		double extrudeDistance = 0;
+
+		// the line being read, and if it gives a Z, where it starts and the
+		// state before it.
+		int line;
+
+		int position;
+
+		GCodeParser.ModalState state;
+
+		Scanner(MachineModel model) {
+			setMachine(model);
+			getMotion().setListener(this);
+		}
+
+		protected int getMoveTag(Point3d p) {
+			if (layer == null || p.z != layer.z) {
+				if (layer != null && layer.firstLine == line)
+					layer.z = p.z; // e.g. each step of a helix
+				else
+					startLayer(p.z);
+			}
+			double dx = p.x - px, dy = p.y - py, dz = p.z - pz;
+			double length = Math.sqrt(dx * dx + dy * dy + dz * dz);
+			px = p.x;
+			py = p.y;
+			pz = p.z;
+			if (minimum == null) {
+				minimum = new Point3d(p);
+				maximum = new Point3d(p);
+			} else {
+				minimum.set(Math.min(minimum.x, p.x), Math.min(minimum.y, p.y),
+						Math.min(minimum.z, p.z));
+				maximum.set(Math.max(maximum.x, p.x), Math.max(maximum.y, p.y),
+						Math.max(maximum.z, p.z));
+			}
+
+			ToolModel tool = getMachine().currentTool();
+			boolean extruding = tool.isMotorEnabled();
+			layer.moves++;
+			if (extruding) {
+				layer.extruded = true;
+				extruded = true;
+				layer.extrudeDistance += length;
+				extrudeDistance += length;
+			} else {
+				layer.travelDistance += length;
+				travelDistance += length;
+			}
+			return getRun(tool, extruding);
+		}
+
+		// the number of the run a move made now is part of.
+		private int getRun(ToolModel tool, boolean motor) {
+			int segment = segments.size() - 1;
+			double rpm = motor ? getRPM(tool) : 0;
+			Run run = runs.isEmpty() ? null : runs.get(runs.size() - 1);
+			if (run == null || run.segment != segment || run.tool.tool != tool
+					|| run.motor != motor || run.rpm != rpm) {
+				runs.add(new Run(segment, getTally(tool), motor, rpm));
+			}
+			return runs.size() - 1;
+		}
+
+		private static double getRPM(ToolModel tool) {
+			double rpm = tool.getMotorSpeedRPM();
+			return tool.getMotorDirection() == ToolModel.MOTOR_COUNTER_CLOCKWISE ?
+					-rpm : rpm;
+		}
+
+		private Tally getTally(ToolModel tool) {
+			for (Tally t : tools)
+				if (t.tool == tool) return t;
+			Tally t = new Tally(tool);
+			tools.add(t);
+			return t;
+		}
+
+		public void moveTimed(int tag, double millis) {
+			Run run = runs.get(tag);
+			Layer l = segments.get(run.segment);
+			l.time += millis;
+			if (run.motor) {
+				l.extrudeTime += millis;
+				l.material += run.tool.run(run.rpm, millis);
+			}
+		}
+
+		public void delay(long millis) {
+			super.delay(millis);
+			// the motor can run with the head standing still, e.g. to prime.
+			ToolModel tool = getMachine().currentTool();
+			if (tool.isMotorEnabled()) {
+				double fed = getTally(tool).run(getRPM(tool), millis);
+				if (layer != null)
+					layer.material += fed;
+			}
+		}
+
+		public void setCurrentPosition(Point3d p) {
+			super.setCurrentPosition(p);
+			px = p.x;
+			py = p.y;
+			pz = p.z;
+		}
+
+		private void startLayer(double z) {
+			Layer left = layer;
+			if (left != null && !left.extruded && extruded) {
+				layers.remove(layers.size() - 1);
+				Layer below = layers.isEmpty() ? null : layers.get(layers.size() - 1);
+				if (below != null && below.z == z) {
+					// back down from a lift.
+					below.add(left);
+					retag(left, below);
+					layer = below;
+					segments.add(below);
+					return;
+				}
+				layer = new Layer(z, left.firstLine, left.position, left.state);
+				layer.add(left);
+				retag(left, layer);
+			} else {
+				if (left != null)
+					left.lastLine = line - 1;
+				layer = new Layer(z, line, state == null ? -1 : position, state);
+			}
+			layers.add(layer);
+			segments.add(layer);
+		}
+
+		// moves still to be timed count towards the layer that took in theirs.
+		private void retag(Layer from, Layer to) {
+			for (int i = segments.size() - 1; i >= 0 && segments.get(i) == from; i--)
+				segments.set(i, to);
+		}
+
+		LayerIndex finish(byte[] hash, String machine, int lineCount) {
+			double buildTime = getBuildTime();
+			// a last lift away from the finished build.
+			if (layer != null && !layer.extruded && extruded && layers.size() > 1) {
+				layers.remove(layers.size() - 1);
+				layers.get(layers.size() - 1).add(layer);
+			}
+			if (!layers.isEmpty())
+				layers.get(layers.size() - 1).lastLine = lineCount - 1;
+
+			BuildStatistics.Tool[] summary = new BuildStatistics.Tool[tools.size()];
+			for (int i = 0; i < summary.length; i++) {
+				Tally t = tools.get(i);
+				summary[i] = new BuildStatistics.Tool(t.tool.getIndex(),
+						t.tool.getName(), t.motorTime, t.revolutions, t.material);
+			}
+			if (minimum == null) {
+				minimum = new Point3d();
+				maximum = new Point3d();
+			}
+			BuildStatistics statistics = new BuildStatistics(lineCount,
+					layers.size(), buildTime, minimum, maximum, travelDistance,
+					extrudeDistance, summary);
+			return new LayerIndex(hash, machine,
+					layers.toArray(new Layer[layers.size()]), statistics);
+		}
+	}
+
+	/**
+	 * Find the layers of a compiled stream in one pass, timing them for the
+	 * given machine.
+	 *
+	 * @param machine
+	 *            the machine's name, kept with the index
+	 * @throws InterruptedException
+	 *             if the thread is interrupted part way through
+	 */
+	public static LayerIndex build(GCodeStream stream, MachineModel model,
+			String machine) throws InterruptedException {
+		Scanner scanner = new Scanner(model);
+		GCodeStream.Cursor cursor = stream.cursor();
+		int position = cursor.getPosition();
+		while (cursor.next()) {
+			int line = cursor.getLine();
+			if ((line & 0xfff) == 0 && Thread.interrupted())
+				throw new InterruptedException();
+			scanner.line = line;
+			if ((cursor.getValuedCodes() & Z_CODE) != 0) {
+				scanner.position = position;
+				scanner.state = scanner.getParser().getModalState();
+			} else {
+				scanner.state = null;
+			}
+			scanner.parse(cursor);
+			scanner.execute();
+			position = cursor.getPosition();
+		}
+		return scanner.finish(stream.getHash(), machine, stream.getLineCount());
+	}
+
+	/***************************************************************************
+	 * Disk storage
+	 **************************************************************************/
+
+	/**
+	 * Returns the index file used for the given gcode file.
+	 */
+	public static File getIndexFile(File gcodeFile) {
+		return new File(gcodeFile.getParentFile(), gcodeFile.getName() + SUFFIX);
+	}
+
+	/**
+	 * Get the layers of a compiled stream, loading them from next to the given
+	 * gcode file if they were saved for the same text and machine, and finding
+	 * and saving them otherwise.
+	 *
+	 * @param gcodeFile
+	 *            the file the stream was compiled from, or null if none
+	 */
+	public static LayerIndex forStream(GCodeStream stream, File gcodeFile,
+			MachineModel model, String machine) throws InterruptedException {
+		byte[] sourceHash = stream.getHash();
+		File file = gcodeFile == null ? null : getIndexFile(gcodeFile);
+		if (file != null && file.exists()) {
+			try {
+				LayerIndex index = load(file);
+				if (index.matches(sourceHash) && index.getMachine().equals(machine))
+					return index;
+			} catch (IOException e) {
+				Base.logger.info("Ignoring unreadable layer index " + file
+						+ ": " + e.getMessage());
+			}
+		}
+		LayerIndex index = build(stream, model, machine);
+		if (file != null) {
+			try {
+				index.save(file);
+			} catch (IOException e) {
+				Base.logger.info("Could not write layer index " + file + ": "
+						+ e.getMessage());
+			}
+		}
+		return index;
+	}
+
+	public void save(File file) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(file)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(FORMAT_VERSION);
+			out.writeInt(hash.length);
+			out.write(hash);
+			out.writeUTF(machine);
+			statistics.write(out);
+			out.writeInt(layers.length);
+			for (Layer layer : layers)
+				layer.write(out);
+		} finally {
+			out.close();
+		}
+	}
+
+	public static LayerIndex load(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(file)));
+		try {
+			if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION)
+				throw new IOException("not a layer index");
+			int hashLength = in.readInt();
+			if (hashLength < 0 || hashLength > 64)
+				throw new IOException("corrupt layer index");
+			byte[] hash = new byte[hashLength];
+			in.readFully(hash);
+			String machine = in.readUTF();
+			BuildStatistics statistics = BuildStatistics.read(in);
+			int count = in.readInt();
+			if (count < 0)
+				throw new IOException("corrupt layer index");
+			Layer[] layers = new Layer[count];
+			for (int i = 0; i < count; i++)
+				layers[i] = Layer.read(in);
+			return new LayerIndex(hash, machine, layers, statistics);
+		} finally {
+			in.close();
+		}
+	}
+}
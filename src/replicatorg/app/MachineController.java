@@ -19,6 +19,9 @@
 
 package replicatorg.app;
 
+import java.awt.geom.Rectangle2D;
+import java.io.File;
+import java.io.IOException;
 import java.util.EnumMap;
 import java.util.Iterator;
 import java.util.Map;
@@ -26,6 +29,8 @@ import java.util.Vector;
 
 import javax.swing.JOptionPane;
 
+import javax.vecmath.Point3d;
+
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
@@ -35,6 +40,7 @@ import replicatorg.app.exceptions.JobCancelledException;
 import replicatorg.app.exceptions.JobEndException;
 import replicatorg.app.exceptions.JobException;
 import replicatorg.app.exceptions.JobRewindException;
+import replicatorg.app.exceptions.SerialException;
 import replicatorg.app.tools.XML;
 import replicatorg.app.ui.MainWindow;
 import replicatorg.drivers.Driver;
@@ -42,6 +48,8 @@ import replicatorg.drivers.DriverFactory;
 import replicatorg.drivers.EstimationDriver;
 import replicatorg.drivers.SDCardCapture;
 import replicatorg.drivers.SimulationDriver;
+import replicatorg.drivers.UsesSerial;
+import replicatorg.machine.MachineEventDispatcher;
 import replicatorg.machine.MachineListener;
 import replicatorg.machine.MachineProgressEvent;
 import replicatorg.machine.MachineState;
@@ -50,6 +58,10 @@ import replicatorg.machine.MachineToolStatusEvent;
 import replicatorg.machine.model.MachineModel;
 import replicatorg.machine.model.ToolModel;
 import replicatorg.model.GCodeSource;
+import replicatorg.model.GCodeStream;
+import replicatorg.model.JEditTextAreaSource;
+import replicatorg.model.MappedFileSource;
+import replicatorg.model.PrefetchingSource;
 import replicatorg.model.StringListSource;
 
 /**
@@ -124,111 +136,407 @@ public class MachineController {
 			buildCodesInternal(new StringListSource(cooldownCommands));
 		}
 		
+		// the read-ahead stage of the current build, if any.
+		private volatile PrefetchingSource.Prefetcher prefetcher = null;
+
+		/**
+		 * Open an iterator over the given source. Unless disabled, lines are
+		 * read ahead by a separate thread so that slow reads don't stall the
+		 * machine.
+		 */
+		private Iterator<String> openSource(GCodeSource source) {
+			return openSource(source, 0);
+		}
+
+		/**
+		 * Open the source's text at the given zero-based line. A mapped file
+		 * is jumped into; anything else is read through up to the line.
+		 */
+		private Iterator<String> openSource(GCodeSource source, int firstLine) {
+			Iterator<String> lines;
+			if (firstLine > 0 && source instanceof MappedFileSource) {
+				lines = ((MappedFileSource)source).iterator(firstLine);
+			} else {
+				lines = source.iterator();
+				for (int n = 0; n < firstLine && lines.hasNext(); n++)
+					lines.next();
+			}
+			int depth = Base.preferences.getInt("build.prefetch_depth", 256);
+			if (depth <= 0 || source instanceof StringListSource) {
+				return lines;
+			}
+			prefetcher = new PrefetchingSource.Prefetcher(lines, depth);
+			return prefetcher;
+		}
+
+		private void closeSource(Iterator<String> i) {
+			if (i instanceof PrefetchingSource.Prefetcher) {
+				PrefetchingSource.Prefetcher p = (PrefetchingSource.Prefetcher)i;
+				p.close();
+				Base.logger.fine("Prefetch: " + p.getLinesRead() + " lines, " +
+						p.getStallCount() + " stalls, average depth " +
+						p.getAverageQueueDepth() + " of " + p.getCapacity());
+				if (prefetcher == p) prefetcher = null;
+			}
+		}
+
+		/**
+		 * @return the number of lines currently read ahead of the build, or
+		 * -1 if no prefetching build is running.
+		 */
+		int getPrefetchDepth() {
+			PrefetchingSource.Prefetcher p = prefetcher;
+			return p == null ? -1 : p.getQueueDepth();
+		}
+
 		private boolean buildCodesInternal(GCodeSource source) throws BuildFailureException, InterruptedException {
+			return buildCodesInternal(source, 0, null);
+		}
+
+		/**
+		 * Start a journal for a build of the main source, unless turned off or
+		 * there's no file to keep it next to.
+		 */
+		private BuildJournal openJournal(GCodeStream stream) {
+			if (sourceFile == null || !Base.preferences.getBoolean("build.journal", true))
+				return null;
+			File file = BuildJournal.getJournalFile(sourceFile);
+			try {
+				return new BuildJournal(file, stream.getHash());
+			} catch (IOException e) {
+				Base.logger.warning("Could not start build journal " + file + ": "
+						+ e.getMessage());
+				return null;
+			}
+		}
+
+		/**
+		 * @return the index, current and target temperature of each tool, as
+		 * last read from the machine.
+		 */
+		private double[] getToolTemperatures() {
+			Vector<?> tools = driver.getMachine().getTools();
+			double[] temperatures = new double[tools.size() * 3];
+			for (int t = 0; t < tools.size(); t++) {
+				ToolModel tool = (ToolModel)tools.get(t);
+				temperatures[t * 3] = tool.getIndex();
+				temperatures[t * 3 + 1] = tool.getCurrentTemperature();
+				temperatures[t * 3 + 2] = tool.getTargetTemperature();
+			}
+			return temperatures;
+		}
+
+		/**
+		 * Find the modal state in force before the given line of the main
+		 * source, and leave the cursor just before that line. Only the lines
+		 * since the nearest snapshot are read, and nothing is sent to the
+		 * machine.
+		 */
+		private GCodeParser.ModalState seekTo(GCodeStream.Cursor cursor, int line)
+				throws InterruptedException {
+			ModalStateIndex index = getModalStateIndex();
+			ModalStateIndex.Snapshot snapshot = index == null ? null : index.find(line);
+			EstimationDriver scanner = new EstimationDriver();
+			scanner.setMachine(loadModel());
+			if (snapshot != null) {
+				cursor.seek(snapshot.getPosition(), snapshot.getLine() - 1);
+				scanner.getParser().setModalState(snapshot.getState());
+			} else {
+				cursor.rewind();
+			}
+			while (cursor.getLine() < line - 1 && cursor.next()) {
+				scanner.parse(cursor);
+				scanner.execute();
+			}
+			return scanner.getParser().getModalState();
+		}
+
+		/**
+		 * Put the machine where the build left off. Each tool's heater is set
+		 * as the build last set it, and waited for; the machine goes to the
+		 * resume point on the right tool, up before across and across before
+		 * down; and only then are the motors started again.
+		 */
+		private void moveToResumePoint(GCodeParser.ModalState resume) {
+			GCodeParser.ToolState[] tools = resume.getToolStates();
+			int current = resume.getTool() >= 0 ? resume.getTool()
+					: driver.getMachine().currentTool().getIndex();
+			Vector<Integer> heated = new Vector<Integer>();
+			for (GCodeParser.ToolState tool : tools) {
+				int index = tool.getIndex();
+				driver.selectTool(index);
+				if (!Double.isNaN(tool.getTemperature())) {
+					driver.setTemperature(tool.getTemperature());
+					if (tool.getTemperature() > 0) heated.add(index);
+				}
+				if (tool.getMotorSpeedPWM() >= 0)
+					driver.setMotorSpeedPWM(tool.getMotorSpeedPWM());
+				else if (!Double.isNaN(tool.getMotorRPM()))
+					driver.setMotorRPM(tool.getMotorRPM());
+			}
+			// a tool change waits for the tool to come up to temperature.
+			for (int index : heated)
+				driver.requestToolChange(index);
+
+			driver.selectTool(current);
+			Point3d from = driver.getCurrentPosition();
+			Point3d to = resume.getPosition();
+			driver.setFeedrate(driver.getMachine().getMaximumFeedrates().x);
+			if (to.z > from.z)
+				driver.queuePoint(new Point3d(from.x, from.y, to.z));
+			else
+				driver.queuePoint(new Point3d(to.x, to.y, from.z));
+			driver.queuePoint(to);
+			driver.setFeedrate(resume.getFeedrate());
+
+			for (GCodeParser.ToolState tool : tools) {
+				if (!tool.isMotorEnabled()) continue;
+				driver.selectTool(tool.getIndex());
+				driver.setMotorDirection(tool.getMotorDirection());
+				driver.enableMotor();
+			}
+			driver.selectTool(current);
+		}
+
+		/**
+		 * Run a source through the machine.
+		 * 
+		 * @param startLine
+		 *            the zero-based line of the main source to start at
+		 * @param temperatures
+		 *            heater targets to resume with where the source doesn't
+		 *            set them, as journalled, or null
+		 */
+		private boolean buildCodesInternal(GCodeSource source, int startLine,
+				double[] temperatures) throws BuildFailureException, InterruptedException {
 			if (!state.isBuilding()) {
 				// Do not continue build if the machine is not building or paused
 				return false;
 			}
 
-			Iterator<String> i = source.iterator();
-			while (i.hasNext()) {
-				String line = i.next();
-				linesProcessed++;
-				if (Thread.interrupted()) {
-					Base.logger.info("build thread interrupted");
-					return false;
+			// moves left over from a stopped build must never be sent.
+			driver.getParser().discardMotion();
+			if (simulator.isSimulating())
+				simulator.getParser().discardMotion();
+			SegmentMerger merger = driver.getParser().getSegmentMerger();
+			if (merger != null) merger.resetCounts();
+
+			// the compiled form of the main source is read alongside the text,
+			// so the simulator needn't parse it again and the parser's state can
+			// be snapshotted against a position in it.
+			GCodeStream.Cursor compiled = null;
+			ModalStateIndex snapshots = null;
+			BuildJournal journal = null;
+			if (source == currentSource) {
+				GCodeStream stream = getCompiledSource();
+				if (stream != null) {
+					compiled = stream.cursor();
+					snapshots = getModalStateIndex();
+					if (!state.isSimulating()) journal = openJournal(stream);
+				}
+			}
+			long journalInterval = Base.preferences.getInt("build.journal_interval", 1000);
+			long lastCheckpoint = 0;
+			// the checkpoint waiting for its points to be sent, and then for
+			// the machine to answer every command sent by then.
+			GCodeParser.ModalState pending = null;
+			int pendingLine = 0;
+			int pendingPosition = 0;
+			long pendingPoints = 0;
+			long pendingCommands = -1;
+			boolean completed = false;
+
+			// when resuming, the parser's state comes from the compiled form,
+			// which can be jumped into without reading what comes before; the
+			// machine is still sent the source's own text from there on.
+			int firstLine = 0;
+			if (compiled != null && startLine > 0) {
+				GCodeParser.ModalState resume = seekTo(compiled, startLine);
+				if (temperatures != null)
+					resume = resume.withTemperatures(temperatures);
+				if (!state.isSimulating()) {
+					driver.getParser().setModalState(resume);
+					moveToResumePoint(resume);
+				}
+				if (journal != null) {
+					journal.checkpoint(new BuildJournal.Checkpoint(startLine,
+							compiled.getPosition(), resume,
+							driver.getCurrentPosition(), getToolTemperatures()));
 				}
-				
-				// use our parser to handle the stuff.
 				if (simulator.isSimulating())
-					simulator.parse(line);
-				if (!state.isSimulating()) { driver.parse(line); }
+					simulator.getParser().setModalState(resume);
+				linesProcessed += startLine;
+				firstLine = startLine;
+			}
+			GCodeParser parser = state.isSimulating() ? simulator.getParser() : driver.getParser();
+
+			Iterator<String> i = openSource(source, firstLine);
+			try {
+				while (i.hasNext()) {
+					String line = i.next();
+					if (compiled != null && !compiled.next())
+						compiled = null;
+					linesProcessed++;
+					if (Thread.interrupted()) {
+						Base.logger.info("build thread interrupted");
+						throw new InterruptedException();
+					}
 				
-				try {
-					GCodeParser.StopInfo info = driver.getParser().getStops();
-					if (info != null &&
-							Base.preferences.getBoolean("machine.optionalstops",true) &&
-							state.isBuilding() &&
-							state.isInteractiveTarget()) {
-						JobException e = info.getException(); 
-						if (info.isOptional()) {
-							int result = JOptionPane.showConfirmDialog(null, info.getMessage(),
-									"Continue Build?", JOptionPane.YES_NO_OPTION);
-							if (result != JOptionPane.YES_OPTION) {
-								e = info.getCancelException();
+					// use our parser to handle the stuff.
+					if (simulator.isSimulating()) {
+						if (compiled != null)
+							simulator.parse(compiled);
+						else
+							simulator.parse(line);
+					}
+					if (!state.isSimulating())
+						driver.parse(line);
+				
+					try {
+						GCodeParser.StopInfo info = driver.getParser().getStops();
+						if (info != null &&
+								Base.preferences.getBoolean("machine.optionalstops",true) &&
+								state.isBuilding() &&
+								state.isInteractiveTarget()) {
+							JobException e = info.getException(); 
+							if (Base.headless) {
+								// nobody to ask, so optional stops are taken as confirmed.
+								Base.logger.info("Build stop: " + info.getMessage());
+							} else if (info.isOptional()) {
+								int result = JOptionPane.showConfirmDialog(null, info.getMessage(),
+										"Continue Build?", JOptionPane.YES_NO_OPTION);
+								if (result != JOptionPane.YES_OPTION) {
+									e = info.getCancelException();
+								}
+							} else {
+								JOptionPane.showMessageDialog(null, info.getMessage(), 
+										"Build stop", JOptionPane.INFORMATION_MESSAGE);
+							}
+							if (e != null) {
+								throw e;
 							}
-						} else {
-							JOptionPane.showMessageDialog(null, info.getMessage(), 
-									"Build stop", JOptionPane.INFORMATION_MESSAGE);
-						}
-						if (e != null) {
-							throw e;
 						}
+					} catch (JobEndException e) {
+						return false;
+					} catch (JobCancelledException e) {
+						return false;
+					} catch (JobRewindException e) {
+						closeSource(i);
+						i = openSource(source);
+						if (compiled != null) compiled.rewind();
+						continue;
+					} catch (JobException e) {
+						Base.logger.severe("Unknown job exception emitted");
 					}
-				} catch (JobEndException e) {
-					return false;
-				} catch (JobCancelledException e) {
-					return false;
-				} catch (JobRewindException e) {
-					i = source.iterator();
-					continue;
-				} catch (JobException e) {
-					Base.logger.severe("Unknown job exception emitted");
-				}
 				
-				// simulate the command.
-				if (simulator.isSimulating())
-					simulator.execute();
+					// simulate the command.
+					if (simulator.isSimulating())
+						simulator.execute();
 				
-				try {
-					if (!state.isSimulating()) {
-						driver.execute();
+					try {
+						if (!state.isSimulating()) {
+							driver.execute();
+						}
+					} catch (GCodeException e) {
+						// TODO: prompt the user to continue.
+						System.out.println("Error: " + e.getMessage());
 					}
-				} catch (GCodeException e) {
-					// TODO: prompt the user to continue.
-					System.out.println("Error: " + e.getMessage());
-				}
 				
-				// did we get any errors?
-				if (!state.isSimulating()) {
-					driver.checkErrors();
-				}
+					// did we get any errors?
+					if (!state.isSimulating()) {
+						driver.checkErrors();
+					}
 				
-				// are we paused?
-				if (state.isPaused()) {
-					if (!state.isSimulating()) driver.pause();
-					while (state.isPaused()) {
-						synchronized(this) { wait(); }
+					// are we paused?
+					if (state.isPaused()) {
+						if (!state.isSimulating()) driver.pause();
+						while (state.isPaused()) {
+							synchronized(this) { wait(); }
+						}
+						if (!state.isSimulating()) driver.unpause();
 					}
-					if (!state.isSimulating()) driver.unpause();
-				}
 				
-				// bail if we got interrupted.
-				if (state.getState() == MachineState.State.STOPPING) {
-					driver.stop();
-					return false;
-				}
-				// send out updates
-				if (pollingEnabled) {
-					long curMillis = System.currentTimeMillis();
-					if (lastPolled + pollIntervalMs <= curMillis) {
-						lastPolled = curMillis;
-						pollStatus();
+					// bail if we got interrupted.
+					if (state.getState() == MachineState.State.STOPPING) {
+						driver.getParser().discardMotion();
+						driver.stop();
+						return false;
+					}
+
+					// remember the state a later build could resume in.
+					if (snapshots != null && compiled != null &&
+							snapshots.isDue(compiled.getLine() + 1)) {
+						snapshots.record(compiled.getLine() + 1,
+								compiled.getPosition(), parser.getModalState());
+					}
+
+					// journal how far the build has got, once the machine has
+					// answered everything read by the checkpoint. Handing it to
+					// the driver isn't enough: it may still be buffered or in
+					// flight, and lost if the connection drops.
+					if (journal != null && compiled != null) {
+						long now = System.currentTimeMillis();
+						if (pending == null && now - lastCheckpoint >= journalInterval) {
+							lastCheckpoint = now;
+							pending = parser.getModalState();
+							pendingLine = compiled.getLine() + 1;
+							pendingPosition = compiled.getPosition();
+							pendingPoints = parser.getPointsQueued();
+						}
+						if (pending != null && pendingCommands < 0
+								&& parser.getPointsSent() >= pendingPoints)
+							pendingCommands = driver.getCommandsSent();
+						if (pendingCommands >= 0
+								&& driver.getCommandsAcknowledged() >= pendingCommands) {
+							journal.checkpoint(new BuildJournal.Checkpoint(pendingLine,
+									pendingPosition, pending, pending.getPosition(),
+									getToolTemperatures()));
+							pending = null;
+							pendingCommands = -1;
+						}
+					}
+
+					// send out updates
+					if (pollingEnabled) {
+						long curMillis = System.currentTimeMillis();
+						if (lastPolled + pollIntervalMs <= curMillis) {
+							lastPolled = curMillis;
+							pollStatus();
+						}
 					}
+					// only make as many progress events as anyone can use.
+					if (events.isProgressDue())
+						emitProgress();
 				}
-				MachineProgressEvent progress = 
-					new MachineProgressEvent((double)System.currentTimeMillis()-startTimeMillis,
-							estimatedBuildTime,
-							linesProcessed,
-							linesTotal);
-				emitProgress(progress);
-			}
+				// the prefetcher ends its lines early if we're interrupted
+				// waiting on it; that's not the end of the file.
+				if (Thread.interrupted()) {
+					Base.logger.info("build thread interrupted");
+					throw new InterruptedException();
+				}
+				emitProgress();
 			
-			// wait for driver to finish up.
-			if (!state.isSimulating()) while (!driver.isFinished()) {
-				Thread.sleep(100);
+				// send the moves the planners held back.
+				if (simulator.isSimulating())
+					simulator.getParser().flushMotion();
+				if (!state.isSimulating())
+					driver.getParser().flushMotion();
+				if (!state.isSimulating() && merger != null && merger.getMovesIn() > 0) {
+					Base.logger.info("Segment merging sent " + merger.getMovesOut() +
+							" of " + merger.getMovesIn() + " moves, " +
+							(merger.getMovesIn() - merger.getMovesOut()) +
+							" packets eliminated");
+				}
+
+				// wait for driver to finish up.
+				if (!state.isSimulating()) driver.waitUntilFinished(0);
+				completed = true;
+				return true;
+			} finally {
+				closeSource(i);
+				if (journal != null) journal.close(completed);
+				if (snapshots != null) snapshots.saveFor(sourceFile);
 			}
-			return true;
 		}
 
 		/**
@@ -261,6 +569,12 @@ public class MachineController {
 		}
 
 		GCodeSource currentSource;
+
+		// the zero-based line of currentSource the next build starts at.
+		int startLine = 0;
+
+		// heater targets the next build resumes with, or null.
+		double[] startTemperatures = null;
 		
 		private void buildInternal(GCodeSource source) {
 			startTimeMillis = System.currentTimeMillis();
@@ -272,15 +586,27 @@ public class MachineController {
 			try {
 				runWarmupCommands();
 				System.out.println("Running build.");
-				buildCodesInternal(source);
+				int line = startLine;
+				double[] temperatures = startTemperatures;
+				startLine = 0;
+				startTemperatures = null;
+				buildCodesInternal(source, line, temperatures);
 				runCooldownCommands();
 				setState(new MachineState(MachineState.State.READY));
 			} catch (BuildFailureException e) {
-				JOptionPane.showMessageDialog(null, e.getMessage(),
-						"Build Failure", JOptionPane.ERROR_MESSAGE);
+				if (Base.headless)
+					Base.logger.severe("Build failure: " + e.getMessage());
+				else
+					JOptionPane.showMessageDialog(null, e.getMessage(),
+							"Build Failure", JOptionPane.ERROR_MESSAGE);
+				// don't start the same build over again.
+				setState(MachineState.State.STOPPING);
 
 			} catch (InterruptedException e) {
 				System.out.println("MachineController interrupted");
+				// the build didn't finish, so no cooldown and no READY; let
+				// run() see the interrupt and stop too.
+				interrupt();
 			} finally {
 				stopStatusPolling();
 			}
@@ -295,8 +621,18 @@ public class MachineController {
 				setState(MachineState.State.STOPPING);
 				return;
 			}
-			while (!driver.isFinished()) {
+			// the build runs from the card, so the driver can't tell how long
+			// it has left; ask now and then rather than every time round.
+			long pollInterval = Base.preferences.getInt("build.remote_poll_interval", 1000);
+			long nextPoll = 0;
+			while (true) {
 				try {
+					long now = System.currentTimeMillis();
+					if (now >= nextPoll) {
+						if (driver.isFinished()) break;
+						nextPoll = now + pollInterval;
+					}
+
 					// are we paused?
 					if (state.isPaused()) {
 						driver.pause();
@@ -319,7 +655,29 @@ public class MachineController {
 		}
 		
 		public void build(GCodeSource source) {
+			build(source, 0);
+		}
+
+		/**
+		 * Build the source starting part way through, at the given zero-based
+		 * line.
+		 */
+		public void build(GCodeSource source, int line) {
+			build(source, line, null);
+		}
+
+		/**
+		 * Build the source starting part way through, with the given heater
+		 * targets where the source doesn't set them.
+		 * 
+		 * @param temperatures
+		 *            the index, current and target temperature of each tool,
+		 *            as journalled
+		 */
+		public void build(GCodeSource source, int line, double[] temperatures) {
 			currentSource = source;
+			startLine = line;
+			startTemperatures = temperatures;
 			setState(new MachineState(MachineState.State.BUILDING,MachineState.Target.MACHINE));
 		}
 		
@@ -427,6 +785,26 @@ public class MachineController {
 	
 	// The GCode source of the current build source.
 	protected GCodeSource source;
+
+	// the file the source was loaded from, if known.
+	protected File sourceFile;
+
+	// the hash of the source's text, and the edit count it was taken at.
+	private byte[] sourceHash;
+
+	private long sourceEdits;
+
+	// the compiled form of the source.
+	private GCodeStream compiledSource;
+
+	// modal state snapshots of the compiled source, for resuming builds.
+	private ModalStateIndex modalStates;
+
+	// where each layer of the compiled source starts and ends.
+	private LayerIndex layers;
+
+	// made when first needed, and kept for its cache.
+	private EstimationService estimator;
 	
 	// this is the xml config for this machine.
 	protected Node machineNode;
@@ -470,8 +848,121 @@ public class MachineController {
 		machineThread.start();
 	}
 
-	public void setCodeSource(GCodeSource source) {
+	/**
+	 * @return the number of lines currently read ahead of the running build,
+	 * or -1 if no build is reading ahead.
+	 */
+	public int getPrefetchDepth() {
+		return machineThread.getPrefetchDepth();
+	}
+
+	public synchronized void setCodeSource(GCodeSource source) {
 		this.source = source;
+		sourceHash = null;
+	}
+
+	/**
+	 * Set the file the code source was loaded from, if any. The compiled form
+	 * of the source is cached next to it.
+	 */
+	public synchronized void setCodeFile(File file) {
+		this.sourceFile = file;
+		sourceHash = null;
+	}
+
+	/**
+	 * Get the compiled form of the current code source, compiling it (or
+	 * loading it from the cache) if the source text has changed.
+	 * 
+	 * @return the compiled source, or null if there is no source.
+	 */
+	public synchronized GCodeStream getCompiledSource() {
+		if (source == null) { return null; }
+		byte[] hash = getSourceHash();
+		if (compiledSource == null || !compiledSource.matches(hash)) {
+			compiledSource = GCodeStream.forSource(source, hash, sourceFile);
+		}
+		return compiledSource;
+	}
+
+	/**
+	 * @return the hash of the source's text, only read again if the text has
+	 * been edited since.
+	 */
+	private synchronized byte[] getSourceHash() {
+		// an editor's text can be known not to have changed; anything else
+		// is read once per source.
+		long edits = source instanceof JEditTextAreaSource
+			? ((JEditTextAreaSource)source).getEditCount() : 0;
+		if (sourceHash == null || edits != sourceEdits) {
+			sourceHash = GCodeStream.hash(source);
+			sourceEdits = edits;
+		}
+		return sourceHash;
+	}
+
+	/**
+	 * Get the modal state snapshots for the current code source, loading them
+	 * from next to the source file if they were saved for the same text.
+	 * 
+	 * @return the snapshots, or null if there is no source.
+	 */
+	public synchronized ModalStateIndex getModalStateIndex() {
+		GCodeStream stream = getCompiledSource();
+		if (stream == null) { return null; }
+		if (modalStates == null || !modalStates.matches(stream.getHash())) {
+			modalStates = ModalStateIndex.forStream(stream, sourceFile);
+		}
+		return modalStates;
+	}
+
+	/**
+	 * Get the layers of the current code source, loading them from next to
+	 * the source file if they were found for the same text and machine, and
+	 * reading the whole source once to find them otherwise.
+	 * 
+	 * @return the layers, or null if there is no source.
+	 * @throws InterruptedException
+	 *             if the thread is interrupted while finding them
+	 */
+	public LayerIndex getLayerIndex() throws InterruptedException {
+		GCodeStream stream = getCompiledSource();
+		if (stream == null) { return null; }
+		synchronized (this) {
+			if (layers != null && layers.matches(stream.getHash())) { return layers; }
+		}
+		// found without holding the machine up, which can take a while.
+		LayerIndex index = LayerIndex.forStream(stream, sourceFile, loadModel(), name);
+		synchronized (this) {
+			layers = index;
+		}
+		return index;
+	}
+
+	/**
+	 * Get the layers and statistics of a gcode file as this machine would
+	 * build it, loading them from next to the file if they were already found.
+	 */
+	public LayerIndex getLayerIndex(File file) throws IOException,
+			InterruptedException {
+		return getLayerIndex(new MappedFileSource(file), file);
+	}
+
+	/**
+	 * Get the layers and statistics of some text that won't change while
+	 * they're found, e.g. a copy of what's being edited, caching them next to
+	 * the given file. Nothing is held while they're found. If the file is the
+	 * current source's, they are kept for it too, and used as long as its
+	 * text is the same.
+	 */
+	public LayerIndex getLayerIndex(GCodeSource text, File file)
+			throws InterruptedException {
+		GCodeStream stream = GCodeStream.forSource(text, file);
+		LayerIndex index = LayerIndex.forStream(stream, file, loadModel(), name);
+		synchronized (this) {
+			if (file != null && file.equals(sourceFile)) layers = index;
+		}
+		return index;
 	}
 
 	// TODO: hide this behind an API
@@ -480,7 +971,7 @@ public class MachineController {
 
 	static Map<SDCardCapture.ResponseCode,String> sdErrorMap =
 		new EnumMap<SDCardCapture.ResponseCode,String>(SDCardCapture.ResponseCode.class);
-	{
+	static {
 		sdErrorMap.put(SDCardCapture.ResponseCode.FAIL_NO_CARD,
 				"No SD card was detected.  Please make sure you have a working, formatted\n" +
 				"SD card in the motherboard's SD slot and try again.");
@@ -515,6 +1006,10 @@ public class MachineController {
 	public boolean processSDResponse(SDCardCapture.ResponseCode code) {
 		if (code == SDCardCapture.ResponseCode.SUCCESS) return true;
 		String message = sdErrorMap.get(code);
+		if (Base.headless) {
+			Base.logger.severe("SD card error: " + message);
+			return false;
+		}
 		JOptionPane.showMessageDialog(
 				window,
 				message,
@@ -549,7 +1044,7 @@ public class MachineController {
 	 */
 	public boolean execute() {
 		// start simulator
-		if (simulator != null)
+		if (simulator != null && !Base.headless)
 			simulator.createWindow();
 
 		// estimate build time.
@@ -562,9 +1057,134 @@ public class MachineController {
 		return true;
 	}
 
+	/**
+	 * Begin running a job whose build time is already known, e.g. from when
+	 * it was queued, without reading it all through again first.
+	 *
+	 * @param buildTime
+	 *            the estimated build time in ms, or 0 if it isn't known
+	 */
+	public boolean execute(double buildTime) {
+		if (simulator != null && !Base.headless)
+			simulator.createWindow();
+
+		// a simulation still needs the bounds an estimate finds.
+		if ((simulator != null && simulator.isSimulating())
+				|| driver instanceof SimulationDriver) {
+			System.out.println("Estimating build time...");
+			estimate();
+		} else {
+			estimatedBuildTime = buildTime;
+		}
+
+		System.out.println("Running GCode...");
+		machineThread.build(source);
+		return true;
+	}
+
+	/**
+	 * Begin running a job part way through, e.g. to recover from a jam. The
+	 * machine is moved to where the given zero-based line starts, with the
+	 * units, tool, feedrate and so on that the lines before it set up.
+	 */
+	public boolean executeFrom(int line) {
+		return executeFrom(line, null);
+	}
+
+	private boolean executeFrom(int line, double[] temperatures) {
+		if (simulator != null && !Base.headless)
+			simulator.createWindow();
+
+		System.out.println("Estimating build time...");
+		estimate();
+
+		// only the layers still to be built are left to wait for.
+		LayerIndex index = getKnownLayers();
+		if (index != null && index.getTime() > 0) {
+			int layer = index.find(line);
+			if (layer >= 0)
+				estimatedBuildTime *= 1 - index.get(layer).getStartTime() / index.getTime();
+		}
+
+		System.out.println("Resuming GCode at line " + line + "...");
+		machineThread.build(source, line, temperatures);
+		return true;
+	}
+
+	/**
+	 * Begin running a job from the start of the given zero-based layer. Only
+	 * the layer index is read to find where that is.
+	 */
+	public boolean executeFromLayer(int layer) {
+		LayerIndex index;
+		try {
+			index = getLayerIndex();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		if (index == null || layer < 0 || layer >= index.size()) { return false; }
+		LayerIndex.Layer start = index.get(layer);
+		// the layer's state saves reading any lines before it.
+		ModalStateIndex states = getModalStateIndex();
+		if (states != null && start.getState() != null)
+			states.record(start.getFirstLine(), start.getPosition(), start.getState());
+		System.out.println("Building from layer " + (layer + 1) + " of "
+				+ index.size() + ", at z " + start.getZ() + "mm");
+		return executeFrom(start.getFirstLine());
+	}
+
+	// the layers of the current source, if they have already been found.
+	private synchronized LayerIndex getKnownLayers() {
+		if (layers == null || source == null
+				|| !layers.matches(getSourceHash())) { return null; }
+		return layers;
+	}
+
+	/**
+	 * Continue a build that was cut short, from the last checkpoint in its
+	 * journal. Heaters the source hadn't set by then are brought back to the
+	 * targets the machine had.
+	 */
+	public boolean executeFrom(BuildJournal.Checkpoint checkpoint) {
+		// the checkpoint's state saves reading any lines before it.
+		ModalStateIndex index = getModalStateIndex();
+		if (index != null)
+			index.record(checkpoint.getLine(), checkpoint.getPosition(),
+					checkpoint.getState());
+		return executeFrom(checkpoint.getLine(), checkpoint.getTemperatures());
+	}
+
+	/**
+	 * @return the last checkpoint journalled by a build of the current source
+	 * that didn't finish, or null if there is none.
+	 */
+	public BuildJournal.Checkpoint getUnfinishedCheckpoint() {
+		File journal;
+		synchronized (this) {
+			if (sourceFile == null || source == null) { return null; }
+			journal = BuildJournal.getJournalFile(sourceFile);
+			if (!journal.exists()) { return null; }
+		}
+		return BuildJournal.readLast(journal, getSourceHash());
+	}
+
+	/**
+	 * @return the last checkpoint journalled by a build of the given text,
+	 * saved as the given file, that didn't finish, or null if there is none.
+	 * No lock is held while the text is read, so the text can be a copy taken
+	 * on another thread.
+	 */
+	public BuildJournal.Checkpoint getUnfinishedCheckpoint(GCodeSource text, File file) {
+		if (file == null) { return null; }
+		File journal = BuildJournal.getJournalFile(file);
+		if (!journal.exists()) { return null; }
+		return BuildJournal.readLast(journal, GCodeStream.hash(text));
+	}
+
 	public boolean simulate() {
 		// start simulator
-		if (simulator != null)
+		if (simulator != null && !Base.headless)
 			simulator.createWindow();
 
 		// estimate build time.
@@ -581,34 +1201,74 @@ public class MachineController {
 	public void estimate() {
 		if (source == null) { return; }
 		try {
-			EstimationDriver estimator = new EstimationDriver();
-			estimator.setMachine(loadModel());
-
-			// run each line through the estimator
-			for (String line : source) {
-				// use our parser to handle the stuff.
-				estimator.parse(line);
-				estimator.execute();
+			double buildTime;
+			Rectangle2D.Double bounds;
+			LayerIndex known = getKnownLayers();
+			if (known != null) {
+				// the pass that found the layers already timed the build.
+				BuildStatistics statistics = known.getStatistics();
+				buildTime = statistics.getBuildTime();
+				bounds = getBounds(statistics);
+			} else {
+				// a big text the cache knows nothing of is read on every
+				// processor. its start is then cached, so if it's estimated
+				// again, it's probably being edited, and is read chunk by chunk.
+				EstimationService service = getEstimator();
+				EstimationService.Estimate estimate;
+				if (EstimationService.getThreads() > 1
+						&& source.getLineCount() >= Base.preferences.getInt(
+								"estimate.parallel_lines", 100000)
+						&& !service.isCached(source)) {
+					estimate = service.estimate(getCompiledSource());
+					service.cacheStart(source);
+				} else {
+					estimate = service.estimate(source);
+				}
+				buildTime = estimate.getBuildTime();
+				bounds = estimate.getBounds();
 			}
 
-			if (simulator != null) {
+			if (simulator != null && simulator.isSimulating()) {
 				System.err.println("setting sim bounds on simulator");
-				simulator.setSimulationBounds(estimator.getBounds());
+				simulator.setSimulationBounds(bounds);
+				// only if already found; finding them is a whole extra pass.
+				simulator.setLayers(known);
 			}
 			// oh, how this needs to be cleaned up...
 			if (driver instanceof SimulationDriver) {
 				System.err.println("setting sim bounds on driver");
-				((SimulationDriver)driver).setSimulationBounds(estimator.getBounds());
+				((SimulationDriver)driver).setSimulationBounds(bounds);
 			}
-			estimatedBuildTime = estimator.getBuildTime();
+			estimatedBuildTime = buildTime;
 			System.out.println("Estimated build time is: "
 					+ EstimationDriver.getBuildTimeString(estimatedBuildTime));
 		} catch (InterruptedException e) {
-			assert (false);
-			// Should never happen
+			// the estimate was abandoned, e.g. the window is closing.
+			Thread.currentThread().interrupt();
 		}
 	}
 
+	// the XY bounds of a build, taking in the origin it starts from as the
+	// estimator's do.
+	private static Rectangle2D.Double getBounds(BuildStatistics statistics) {
+		Point3d min = statistics.getMinimum();
+		Point3d max = statistics.getMaximum();
+		double x = Math.min(0, min.x);
+		double y = Math.min(0, min.y);
+		return new Rectangle2D.Double(x, y, Math.max(0, max.x) - x,
+				Math.max(0, max.y) - y);
+	}
+
+	/**
+	 * @return this machine's estimator, which remembers the files it has seen
+	 * so that estimating one again after an edit is quick.
+	 */
+	public synchronized EstimationService getEstimator() {
+		if (estimator == null)
+			estimator = new EstimationService(loadModel());
+		return estimator;
+	}
+
 	private MachineModel loadModel() {
 		MachineModel model = new MachineModel();
 		model.loadXML(machineNode);
@@ -723,6 +1383,18 @@ public class MachineController {
 		assert machineThread != null;
 		machineThread.autoscan();
 	}
+
+	/**
+	 * Attach the driver to the named serial port, if it uses one, and reset
+	 * the machine. Drivers that don't use a serial port are just reset.
+	 */
+	public void connect(String portName) throws SerialException {
+		if (driver instanceof UsesSerial) {
+			UsesSerial us = (UsesSerial)driver;
+			us.setSerial(new Serial(portName, us));
+		}
+		reset();
+	}
 	
 	synchronized public boolean isPaused() {
 		return getMachineState().isPaused();
@@ -746,34 +1418,38 @@ public class MachineController {
 		setState(new MachineState(MachineState.State.NOT_ATTACHED));
 	}
 	
-	private Vector<MachineListener> listeners = new Vector<MachineListener>();
+	// hands events to listeners on other threads.
+	private final MachineEventDispatcher events = new MachineEventDispatcher(
+			Base.preferences.getInt("machine.progress_interval", 100));
 	
+	/**
+	 * Add a listener. Events are delivered on another thread, starting with
+	 * the current state.
+	 */
 	public void addMachineStateListener(MachineListener listener) {
-		listeners.add(listener);
-		listener.machineStateChanged(new MachineStateChangeEvent(this,getMachineState()));
+		events.addListener(listener, new MachineStateChangeEvent(this,getMachineState()));
 	}
 
 	public void removeMachineStateListener(MachineListener listener) {
-		listeners.remove(listener);
+		events.removeListener(listener);
 	}
 
 	protected void emitStateChange(MachineState prev, MachineState current) {
-		MachineStateChangeEvent e = new MachineStateChangeEvent(this, current, prev);
-		for (MachineListener l : listeners) {
-			l.machineStateChanged(e);
-		}
+		events.stateChanged(new MachineStateChangeEvent(this, current, prev));
+	}
+
+	private void emitProgress() {
+		emitProgress(new MachineProgressEvent((double)System.currentTimeMillis()-startTimeMillis,
+				estimatedBuildTime,
+				linesProcessed,
+				linesTotal));
 	}
 
 	protected void emitProgress(MachineProgressEvent progress) {
-		for (MachineListener l : listeners) {
-			l.machineProgress(progress);
-		}
+		events.progress(progress);
 	}
 
 	protected void emitToolStatus(ToolModel tool) {
-		MachineToolStatusEvent e = new MachineToolStatusEvent(this, tool);
-		for (MachineListener l : listeners) {
-			l.toolStatusChanged(e);
-		}
+		events.toolStatusChanged(new MachineToolStatusEvent(this, tool));
 	}
 }
@@ -0,0 +1,311 @@
+package replicatorg.app;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import replicatorg.app.exceptions.SerialException;
+import replicatorg.drivers.UsesSerial;
+import replicatorg.machine.MachineListener;
+import replicatorg.machine.MachineProgressEvent;
+import replicatorg.machine.MachineState;
+import replicatorg.machine.MachineStateChangeEvent;
+import replicatorg.machine.MachineToolStatusEvent;
+
+/**
+ * Any number of machines driven from one process. Each machine keeps its own
+ * controller, build thread and serial port; the pool adds one scheduler
+ * thread they all share for periodic work, and a status summary across all
+ * of them.
+ *
+ * Machines are known by an id chosen when they are added, since a farm
+ * usually has several machines of the same type.
+ */
+public class MachinePool {
+
+	/**
+	 * The status of one machine at the time a Status was taken.
+	 */
+	public static class MachineStatus {
+		private final String id;
+		private final String machineName;
+		private final String port;
+		private final MachineState state;
+		private final int lines;
+		private final int totalLines;
+		private final double elapsed;
+		private final double estimated;
+
+		MachineStatus(String id, String machineName, String port,
+				MachineState state, MachineProgressEvent progress) {
+			this.id = id;
+			this.machineName = machineName;
+			this.port = port;
+			this.state = state;
+			if (progress != null && state.isBuilding()) {
+				lines = progress.getLines();
+				totalLines = progress.getTotalLines();
+				elapsed = progress.getElapsed();
+				estimated = progress.getEstimated();
+			} else {
+				lines = totalLines = 0;
+				elapsed = estimated = 0;
+			}
+		}
+
+		public String getId() { return id; }
+		/** @return the machine's name in machines.xml. */
+		public String getMachineName() { return machineName; }
+		/** @return the serial port, or null if autoscanned or not serial. */
+		public String getPort() { return port; }
+		public MachineState getState() { return state.clone(); }
+		/** @return the lines done by the build running, or 0 if none is. */
+		public int getLines() { return lines; }
+		public int getTotalLines() { return totalLines; }
+		/** @return the build's running time so far in ms. */
+		public double getElapsed() { return elapsed; }
+		/** @return the build's estimated running time in ms. */
+		public double getEstimated() { return estimated; }
+
+		public String toString() {
+			String s = id + " (" + machineName + "): " + state.getState();
+			if (state.isPaused())
+				s += " (paused)";
+			if (totalLines > 0)
+				s += String.format(" %.1f%%", 100.0 * lines / totalLines);
+			return s;
+		}
+	}
+
+	/**
+	 * The status of every machine in the pool at one moment.
+	 */
+	public static class Status {
+		private final long time = System.currentTimeMillis();
+		private final List<MachineStatus> machines;
+
+		Status(List<MachineStatus> machines) {
+			this.machines = Collections.unmodifiableList(machines);
+		}
+
+		public long getTime() { return time; }
+		public List<MachineStatus> getMachines() { return machines; }
+
+		/** @return how many machines are in the given state. */
+		public int count(MachineState.State state) {
+			int count = 0;
+			for (MachineStatus m : machines) {
+				if (m.getState().getState() == state) count++;
+			}
+			return count;
+		}
+
+		public String toString() {
+			return machines.size() + " machines, " + count(MachineState.State.BUILDING)
+				+ " building, " + count(MachineState.State.READY) + " ready, "
+				+ count(MachineState.State.NOT_ATTACHED) + " not attached";
+		}
+	}
+
+	/**
+	 * A machine in the pool, with the last state and progress it reported.
+	 */
+	private class Member implements MachineListener {
+		final String id;
+		final MachineController controller;
+		final String port;
+		volatile MachineState state = new MachineState();
+		volatile MachineProgressEvent progress;
+
+		Member(String id, MachineController controller, String port) {
+			this.id = id;
+			this.controller = controller;
+			this.port = port;
+		}
+
+		MachineStatus getStatus() {
+			return new MachineStatus(id, controller.getName(), port, state, progress);
+		}
+
+		public void machineStateChanged(MachineStateChangeEvent evt) {
+			state = evt.getState();
+			if (!state.isBuilding())
+				progress = null;
+		}
+
+		public void machineProgress(MachineProgressEvent event) {
+			progress = event;
+		}
+
+		public void toolStatusChanged(MachineToolStatusEvent event) {
+		}
+	}
+
+	// in the order they were added.
+	private final Map<String,Member> members = new LinkedHashMap<String,Member>();
+	// ids being added, held from the check until the machine is in members.
+	private final Set<String> reserved = new HashSet<String>();
+
+	private final ScheduledExecutorService scheduler =
+		Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Machine pool scheduler");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+
+	public MachinePool() {
+		long interval = Base.preferences.getInt("pool.status_interval", 60);
+		if (interval > 0) {
+			scheduler.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					Base.logger.info("Machine pool: " + getStatus());
+				}
+			}, interval, interval, TimeUnit.SECONDS);
+		}
+	}
+
+	/**
+	 * Load a machine from machines.xml and start connecting to it.
+	 *
+	 * @param id
+	 *            the name the machine is known by in the pool
+	 * @param machineName
+	 *            the machine's name in machines.xml
+	 * @param port
+	 *            the serial port to use, or null to use the one given in
+	 *            machines.xml or else to autoscan for one
+	 * @throws IllegalArgumentException
+	 *             if the id is taken or there's no such machine
+	 */
+	public MachineController add(String id, String machineName, String port)
+			throws SerialException {
+		synchronized (members) {
+			if (members.containsKey(id) || reserved.contains(id))
+				throw new IllegalArgumentException("There is already a machine " + id);
+			reserved.add(id);
+		}
+		MachineController controller;
+		Member member;
+		try {
+			if (!MachineFactory.getMachineNames().contains(machineName))
+				throw new IllegalArgumentException("No machine " + machineName
+						+ " in machines.xml");
+			controller = MachineFactory.load(machineName);
+			member = new Member(id, controller, port);
+			controller.addMachineStateListener(member);
+			synchronized (members) {
+				members.put(id, member);
+			}
+		} finally {
+			synchronized (members) {
+				reserved.remove(id);
+			}
+		}
+		if (controller.getDriver() instanceof UsesSerial) {
+			UsesSerial us = (UsesSerial) controller.getDriver();
+			if (port == null && us.isExplicit())
+				port = us.getPortName();
+			if (port == null) {
+				// ports other machines in the pool hold are skipped.
+				controller.autoscan();
+				return controller;
+			}
+		}
+		try {
+			controller.connect(port);
+		} catch (SerialException e) {
+			remove(id);
+			throw e;
+		}
+		return controller;
+	}
+
+	/**
+	 * Stop a machine's build, if any, disconnect it and drop it from the pool.
+	 */
+	public void remove(String id) {
+		Member member;
+		synchronized (members) {
+			member = members.remove(id);
+		}
+		if (member != null) {
+			member.controller.removeMachineStateListener(member);
+			member.controller.dispose();
+		}
+	}
+
+	/** @return the machine with the given id, or null if there is none. */
+	public MachineController get(String id) {
+		synchronized (members) {
+			Member member = members.get(id);
+			return member == null ? null : member.controller;
+		}
+	}
+
+	/** @return the ids of every machine, in the order they were added. */
+	public List<String> getIds() {
+		synchronized (members) {
+			return new ArrayList<String>(members.keySet());
+		}
+	}
+
+	/**
+	 * @return the ids of the machines that are connected and not building.
+	 */
+	public List<String> getReadyIds() {
+		List<String> ready = new ArrayList<String>();
+		synchronized (members) {
+			for (Member m : members.values()) {
+				if (m.state.isReady()) ready.add(m.id);
+			}
+		}
+		return ready;
+	}
+
+	public int size() {
+		synchronized (members) {
+			return members.size();
+		}
+	}
+
+	/**
+	 * @return the status of every machine, taken from the last state and
+	 * progress each reported; no machine is asked for anything.
+	 */
+	public Status getStatus() {
+		List<MachineStatus> machines = new ArrayList<MachineStatus>();
+		synchronized (members) {
+			for (Member m : members.values())
+				machines.add(m.getStatus());
+		}
+		return new Status(machines);
+	}
+
+	/**
+	 * @return the scheduler shared by everything the pool runs now and then,
+	 * so a farm doesn't need a timer thread per machine. Tasks must be quick;
+	 * anything slow belongs on a machine's own thread.
+	 */
+	public ScheduledExecutorService getScheduler() {
+		return scheduler;
+	}
+
+	/**
+	 * Stop every build, disconnect every machine and stop the scheduler.
+	 */
+	public void dispose() {
+		scheduler.shutdownNow();
+		for (String id : getIds())
+			remove(id);
+	}
+}
@@ -0,0 +1,225 @@
+package replicatorg.app;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import replicatorg.model.GCodeStream;
+
+/**
+ * Snapshots of the parser's modal state taken every so many lines of a build,
+ * each with the place in the compiled stream where the next line starts. A
+ * build can then be resumed at any line by jumping to the nearest snapshot
+ * before it and reading only the few lines in between.
+ *
+ * The index is kept next to the gcode file, and is only used while the text
+ * it was made from is unchanged.
+ */
+public class ModalStateIndex {
+
+	/** Suffix of the index file written next to a gcode file. */
+	public static final String SUFFIX = ".resume";
+
+	private static final int MAGIC = 0x52474d53; // "RGMS"
+
+	private static final int FORMAT_VERSION = 2;
+
+	/**
+	 * The modal state in force before a given line.
+	 */
+	public static class Snapshot {
+		private final int line;
+		private final int position;
+		private final GCodeParser.ModalState state;
+
+		Snapshot(int line, int position, GCodeParser.ModalState state) {
+			this.line = line;
+			this.position = position;
+			this.state = state;
+		}
+
+		/** @return the zero-based number of the first line not yet read. */
+		public int getLine() { return line; }
+		/** @return the compiled stream position of that line. */
+		public int getPosition() { return position; }
+		public GCodeParser.ModalState getState() { return state; }
+	}
+
+	private final byte[] hash;
+
+	private final int interval;
+
+	// ordered by line.
+	private final List<Snapshot> snapshots = new ArrayList<Snapshot>();
+
+	private boolean modified = false;
+
+	/**
+	 * @param hash
+	 *            the hash of the source text, from GCodeStream.getHash()
+	 * @param interval
+	 *            how many lines apart snapshots are taken
+	 */
+	public ModalStateIndex(byte[] hash, int interval) {
+		this.hash = hash.clone();
+		this.interval = Math.max(1, interval);
+	}
+
+	public boolean matches(byte[] sourceHash) {
+		return Arrays.equals(hash, sourceHash);
+	}
+
+	public int size() {
+		return snapshots.size();
+	}
+
+	/**
+	 * @return true if a snapshot should be taken before the given line.
+	 */
+	public boolean isDue(int line) {
+		return line > 0 && line % interval == 0;
+	}
+
+	/**
+	 * Remember the state in force before the given line, replacing any
+	 * snapshot already taken there.
+	 */
+	public synchronized void record(int line, int position, GCodeParser.ModalState state) {
+		Snapshot snapshot = new Snapshot(line, position, state);
+		int i = search(line);
+		if (i >= 0 && snapshots.get(i).getLine() == line)
+			snapshots.set(i, snapshot);
+		else
+			snapshots.add(i + 1, snapshot);
+		modified = true;
+	}
+
+	/**
+	 * @return the last snapshot at or before the given line, or null if there
+	 * is none.
+	 */
+	public synchronized Snapshot find(int line) {
+		int i = search(line);
+		return i < 0 ? null : snapshots.get(i);
+	}
+
+	// the index of the last snapshot at or before the line, or -1.
+	private int search(int line) {
+		int low = 0;
+		int high = snapshots.size() - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			if (snapshots.get(mid).getLine() <= line)
+				low = mid + 1;
+			else
+				high = mid - 1;
+		}
+		return high;
+	}
+
+	/***************************************************************************
+	 * Disk storage
+	 **************************************************************************/
+
+	/**
+	 * Returns the index file used for the given gcode file.
+	 */
+	public static File getIndexFile(File gcodeFile) {
+		return new File(gcodeFile.getParentFile(), gcodeFile.getName() + SUFFIX);
+	}
+
+	/**
+	 * Get the index for a compiled stream, loading it from next to the given
+	 * gcode file if one was saved for the same text.
+	 *
+	 * @param gcodeFile
+	 *            the file the stream was compiled from, or null if none
+	 */
+	public static ModalStateIndex forStream(GCodeStream stream, File gcodeFile) {
+		byte[] sourceHash = stream.getHash();
+		if (gcodeFile != null) {
+			File file = getIndexFile(gcodeFile);
+			if (file.exists()) {
+				try {
+					ModalStateIndex index = load(file);
+					if (index.matches(sourceHash))
+						return index;
+				} catch (IOException e) {
+					Base.logger.info("Ignoring unreadable resume index " + file
+							+ ": " + e.getMessage());
+				}
+			}
+		}
+		return new ModalStateIndex(sourceHash,
+				Base.preferences.getInt("build.snapshot_interval", 500));
+	}
+
+	/**
+	 * Write the index next to the gcode file, if anything was recorded since
+	 * it was last written.
+	 */
+	public synchronized void saveFor(File gcodeFile) {
+		if (!modified || gcodeFile == null) return;
+		File file = getIndexFile(gcodeFile);
+		try {
+			save(file);
+			modified = false;
+		} catch (IOException e) {
+			Base.logger.info("Could not write resume index " + file + ": "
+					+ e.getMessage());
+		}
+	}
+
+	public synchronized void save(File file) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(file)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(FORMAT_VERSION);
+			out.writeInt(hash.length);
+			out.write(hash);
+			out.writeInt(interval);
+			out.writeInt(snapshots.size());
+			for (Snapshot s : snapshots) {
+				out.writeInt(s.getLine());
+				out.writeInt(s.getPosition());
+				s.getState().write(out);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	public static ModalStateIndex load(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(file)));
+		try {
+			if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION)
+				throw new IOException("not a resume index");
+			int hashLength = in.readInt();
+			if (hashLength < 0 || hashLength > 64)
+				throw new IOException("corrupt resume index");
+			byte[] hash = new byte[hashLength];
+			in.readFully(hash);
+			ModalStateIndex index = new ModalStateIndex(hash, in.readInt());
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				int line = in.readInt();
+				int position = in.readInt();
+				index.snapshots.add(new Snapshot(line, position,
+						GCodeParser.ModalState.read(in)));
+			}
+			return index;
+		} finally {
+			in.close();
+		}
+	}
+}
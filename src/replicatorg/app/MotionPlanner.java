@@ -0,0 +1,254 @@
+package replicatorg.app;
+
+import java.util.LinkedList;
+import java.util.ListIterator;
+
+import javax.vecmath.Point3d;
+
+import replicatorg.drivers.Driver;
+
+/**
+ * Holds back the last few moves on their way from the parser to the driver,
+ * so that the speed through each junction can be chosen with the moves on
+ * both sides of it in view.
+ *
+ * Speeds are limited in three ways: each axis may not exceed its maximum
+ * feedrate (rather than the whole move slowing to the slowest moving axis),
+ * the change in any axis' speed across a junction may not exceed that axis'
+ * jerk, and the machine must be able to slow to a stop by the end of the last
+ * buffered move at the configured acceleration.
+ *
+ * The firmware runs each move at a single rate, so every move is handed to
+ * the driver with the feedrate that covers it in the same time as its planned
+ * accelerate, cruise and decelerate profile would.
+ *
+ * Junction and stopping speeds only matter to that profile, so they are only
+ * worked out when planner.acceleration is set. It is zero by default, and the
+ * planner then just clamps each axis to its maximum feedrate.
+ */
+public class MotionPlanner {
+
+	private static class Move {
+		Point3d target;
+
+		// direction of travel
+		final double[] unit = new double[3];
+
+		double length;
+
+		// all speeds are in mm/minute
+		double nominal;
+
+		double maxEntry;
+
+		double entry;
+
+		double exit;
+
+		// how many of the parser's points this move stands for.
+		int points;
+	}
+
+	private final Driver driver;
+
+	// how many moves are held back before the oldest is sent.
+	private final int lookahead;
+
+	// mm/minute^2; zero or less means the machine changes speed instantly.
+	private final double acceleration;
+
+	// fraction of each axis' maximum feedrate it can change by instantly.
+	private final double jerkFraction;
+
+	private final LinkedList<Move> moves = new LinkedList<Move>();
+
+	private long movesPlanned = 0;
+
+	public MotionPlanner(Driver driver, int lookahead, double acceleration,
+			double jerkFraction) {
+		this.driver = driver;
+		this.lookahead = lookahead;
+		this.acceleration = acceleration * 60 * 60;
+		this.jerkFraction = jerkFraction;
+	}
+
+	/**
+	 * @return the planner configured from the preferences, or null if look-ahead
+	 * is turned off. Acceleration (planner.acceleration, in mm/s^2) is off by
+	 * default, as stock firmware changes speed instantly; without it only the
+	 * per-axis feedrate limits change anything, and moves are passed straight
+	 * on rather than held.
+	 */
+	public static MotionPlanner create(Driver driver) {
+		int lookahead = Base.preferences.getInt("planner.lookahead", 16);
+		if (lookahead <= 0) return null;
+		return new MotionPlanner(driver, lookahead,
+				Base.preferences.getDouble("planner.acceleration", 0),
+				Base.preferences.getDouble("planner.jerk_fraction", 0.2));
+	}
+
+	/**
+	 * @return where the machine will be once every held move is sent.
+	 */
+	public Point3d getPosition() {
+		if (moves.isEmpty()) return driver.getCurrentPosition();
+		return new Point3d(moves.getLast().target);
+	}
+
+	public boolean isEmpty() {
+		return moves.isEmpty();
+	}
+
+	public long getMovesPlanned() {
+		return movesPlanned;
+	}
+
+	/**
+	 * @return how many of the points handed to the planner haven't been sent.
+	 */
+	public int getHeldPoints() {
+		int points = 0;
+		for (Move m : moves)
+			points += m.points;
+		return points;
+	}
+
+	/**
+	 * Add a move to the given point at the driver's current feedrate.
+	 */
+	public void queuePoint(Point3d p) {
+		queuePoint(p, 1);
+	}
+
+	/**
+	 * Add a move that stands for the given number of points merged together.
+	 */
+	public void queuePoint(Point3d p, int points) {
+		Point3d from = getPosition();
+		Move m = new Move();
+		m.target = new Point3d(p);
+		m.points = points;
+		double[] d = { p.x - from.x, p.y - from.y, p.z - from.z };
+		m.length = Math.sqrt(d[0] * d[0] + d[1] * d[1] + d[2] * d[2]);
+		if (m.length == 0) return;
+		for (int i = 0; i < 3; i++)
+			m.unit[i] = d[i] / m.length;
+
+		double[] max = getMaxFeedrates();
+		m.nominal = driver.getCurrentFeedrate();
+		if (m.nominal <= 0)
+			m.nominal = Math.max(1, Math.max(max[0], Math.max(max[1], max[2])));
+		for (int i = 0; i < 3; i++) {
+			if (m.unit[i] != 0)
+				m.nominal = Math.min(m.nominal, max[i] / Math.abs(m.unit[i]));
+		}
+
+		moves.add(m);
+		movesPlanned++;
+		if (acceleration > 0) {
+			Move prev = moves.size() < 2 ? null : moves.get(moves.size() - 2);
+			m.maxEntry = Math.min(m.nominal, getJunctionSpeed(prev, m, max));
+			plan(max);
+		}
+		// with nothing to plan there's no reason to hold a move back.
+		int hold = acceleration > 0 ? lookahead : 0;
+		while (moves.size() > hold)
+			release(moves.removeFirst());
+	}
+
+	/**
+	 * Send every held move, ending at rest.
+	 */
+	public void flush() {
+		while (!moves.isEmpty())
+			release(moves.removeFirst());
+	}
+
+	/**
+	 * Forget every held move without sending it, e.g. when a build is stopped.
+	 */
+	public void discard() {
+		moves.clear();
+	}
+
+	private double[] getMaxFeedrates() {
+		Point3d max = driver.getMachine().getMaximumFeedrates();
+		return new double[] { max.x, max.y, max.z };
+	}
+
+	/**
+	 * The fastest speed at which the machine can go from one move into the
+	 * next; a null move on either side means being at rest.
+	 */
+	private double getJunctionSpeed(Move prev, Move next, double[] max) {
+		double speed = Double.MAX_VALUE;
+		for (int i = 0; i < 3; i++) {
+			double change = Math.abs((next == null ? 0 : next.unit[i])
+					- (prev == null ? 0 : prev.unit[i]));
+			if (change > 0)
+				speed = Math.min(speed, max[i] * jerkFraction / change);
+		}
+		if (prev != null)
+			speed = Math.min(speed, prev.nominal);
+		return speed;
+	}
+
+	private double getReachableSpeed(double from, double length) {
+		if (acceleration <= 0) return Double.MAX_VALUE;
+		return Math.sqrt(from * from + 2 * acceleration * length);
+	}
+
+	private void plan(double[] max) {
+		// backward: be able to stop after the last move.
+		double exit = getJunctionSpeed(moves.getLast(), null, max);
+		ListIterator<Move> i = moves.listIterator(moves.size());
+		while (i.hasPrevious()) {
+			Move m = i.previous();
+			m.exit = Math.min(exit, m.nominal);
+			m.entry = Math.min(m.maxEntry, getReachableSpeed(m.exit, m.length));
+			exit = m.entry;
+		}
+		// forward: don't enter a move faster than the one before could reach.
+		double entry = moves.getFirst().entry;
+		for (Move m : moves) {
+			m.entry = Math.min(m.entry, entry);
+			m.exit = Math.min(m.exit, getReachableSpeed(m.entry, m.length));
+			entry = m.exit;
+		}
+	}
+
+	private void release(Move m) {
+		// the parser's feedrate may have moved on since this move was made.
+		double feedrate = driver.getCurrentFeedrate();
+		driver.setPlannedFeedrate(m.length / getDuration(m));
+		driver.queuePoint(m.target);
+		driver.setFeedrate(feedrate);
+		// the next move can't start any faster than this one was sent to end.
+		if (!moves.isEmpty()) {
+			Move next = moves.getFirst();
+			next.maxEntry = Math.min(next.maxEntry, m.exit);
+		}
+	}
+
+	/**
+	 * @return the time the move takes in minutes, accelerating from its entry
+	 * speed towards its nominal one and slowing again for its exit.
+	 */
+	private double getDuration(Move m) {
+		double cruise = m.nominal;
+		if (acceleration <= 0) return m.length / cruise;
+		double entry = Math.min(m.entry, cruise);
+		double exit = Math.min(m.exit, cruise);
+		double a = acceleration;
+		double accelLength = (cruise * cruise - entry * entry) / (2 * a);
+		double decelLength = (cruise * cruise - exit * exit) / (2 * a);
+		if (accelLength + decelLength > m.length) {
+			// never reaches the nominal speed
+			cruise = Math.sqrt((2 * a * m.length + entry * entry + exit * exit) / 2);
+			cruise = Math.max(cruise, Math.max(entry, exit));
+			return Math.max((cruise - entry) / a + (cruise - exit) / a, m.length / cruise);
+		}
+		return (cruise - entry) / a + (cruise - exit) / a
+				+ (m.length - accelLength - decelLength) / cruise;
+	}
+}
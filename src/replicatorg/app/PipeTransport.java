@@ -0,0 +1,199 @@
+package replicatorg.app;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Hashtable;
+import java.util.Map;
+
+import replicatorg.app.exceptions.SerialException;
+
+/**
+ * One end of an in-memory, two-way pipe. Opening the port "pipe:name" gives
+ * the host end of the pipe with that name; whatever plays the device (an
+ * emulator, a test, a bridge to something else) gets the other end from
+ * connect(name). Either side may get there first.
+ */
+public class PipeTransport implements SerialTransport {
+
+	private static final int BUFFER_SIZE = 4096;
+
+	public static class Factory implements SerialTransport.Factory {
+		public SerialTransport open(String name) throws SerialException {
+			return getPipe(name.substring(name.indexOf(':') + 1))[0];
+		}
+	}
+
+	// both ends of each named pipe, host end first.
+	private static Map<String,PipeTransport[]> pipes =
+		new Hashtable<String,PipeTransport[]>();
+
+	private static synchronized PipeTransport[] getPipe(String name) {
+		PipeTransport[] pipe = pipes.get(name);
+		if (pipe == null || pipe[0].incoming.isClosed()) {
+			pipe = createPair();
+			pipes.put(name, pipe);
+		}
+		return pipe;
+	}
+
+	/**
+	 * Get the device end of the named pipe.
+	 */
+	public static PipeTransport connect(String name) {
+		return getPipe(name)[1];
+	}
+
+	/**
+	 * Forget a named pipe, so that the name can be opened afresh.
+	 */
+	public static synchronized void remove(String name) {
+		pipes.remove(name);
+	}
+
+	/**
+	 * Create a pair of transports connected to each other.
+	 */
+	public static PipeTransport[] createPair() {
+		Buffer a = new Buffer();
+		Buffer b = new Buffer();
+		return new PipeTransport[] { new PipeTransport(a, b), new PipeTransport(b, a) };
+	}
+
+	/**
+	 * A bounded ring of bytes, read by one end and written by the other.
+	 */
+	private static class Buffer {
+		private final byte[] data = new byte[BUFFER_SIZE];
+
+		private int head = 0;
+
+		private int count = 0;
+
+		private boolean closed = false;
+
+		/**
+		 * @return the number of bytes read, 0 on timeout, or -1 on close.
+		 */
+		synchronized int read(byte[] b, int off, int len, int timeoutMillis) {
+			long deadline = System.currentTimeMillis() + timeoutMillis;
+			while (count == 0) {
+				if (closed) return -1;
+				long wait = 0;
+				if (timeoutMillis > 0) {
+					wait = deadline - System.currentTimeMillis();
+					if (wait <= 0) return 0;
+				}
+				try {
+					wait(wait);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return 0;
+				}
+			}
+			int n = Math.min(len, count);
+			for (int i = 0; i < n; i++) {
+				b[off + i] = data[head];
+				head = (head + 1) % data.length;
+			}
+			count -= n;
+			notifyAll();
+			return n;
+		}
+
+		synchronized void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				while (count == data.length) {
+					if (closed) throw new IOException("Pipe closed");
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new IOException("Interrupted writing to pipe");
+					}
+				}
+				if (closed) throw new IOException("Pipe closed");
+				int n = Math.min(len, data.length - count);
+				for (int i = 0; i < n; i++)
+					data[(head + count + i) % data.length] = b[off + i];
+				count += n;
+				off += n;
+				len -= n;
+				notifyAll();
+			}
+		}
+
+		synchronized int available() {
+			return count;
+		}
+
+		synchronized boolean isClosed() {
+			return closed;
+		}
+
+		synchronized void close() {
+			closed = true;
+			notifyAll();
+		}
+	}
+
+	private final Buffer incoming;
+
+	private final Buffer outgoing;
+
+	private volatile int timeoutMillis = 0;
+
+	private final InputStream input = new InputStream() {
+		public int read() {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) == 1 ? b[0] & 0xff : -1;
+		}
+
+		public int read(byte[] b, int off, int len) {
+			if (len == 0) return 0;
+			return incoming.read(b, off, len, timeoutMillis);
+		}
+
+		public int available() {
+			return incoming.available();
+		}
+	};
+
+	private final OutputStream output = new OutputStream() {
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte)b }, 0, 1);
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			outgoing.write(b, off, len);
+		}
+	};
+
+	private PipeTransport(Buffer incoming, Buffer outgoing) {
+		this.incoming = incoming;
+		this.outgoing = outgoing;
+	}
+
+	public InputStream getInputStream() {
+		return input;
+	}
+
+	public OutputStream getOutputStream() {
+		return output;
+	}
+
+	public void setTimeout(int timeoutMillis) {
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	public void pulseRTSLow() {
+	}
+
+	/**
+	 * Close both directions; the other end sees end of file.
+	 */
+	public void close() {
+		incoming.close();
+		outgoing.close();
+	}
+}
@@ -0,0 +1,147 @@
+package replicatorg.app;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import replicatorg.app.exceptions.SerialException;
+
+/**
+ * Runs a pool of machines and a job queue from the command line, without a
+ * display. Machines are given as id=name or id=name@port, where name is the
+ * machine's name in machines.xml; the gcode files named are added to the
+ * queue, which is kept on disk, so jobs still waiting from an earlier run are
+ * built too.
+ *
+ * <pre>
+ * replicatorg-farm --machine ID=NAME[@PORT] ... [--queue FILE] [--serve]
+ *     [--status SECONDS] [[--tool TOOL] [--material MATERIAL] FILE] ...
+ * </pre>
+ *
+ * A --tool or --material applies to the files after it. Without --serve the
+ * farm exits once no job is running and no queued job can be built on any of
+ * its machines.
+ */
+public class PrintFarm {
+
+	private static class Submission {
+		final File file;
+		final String tool;
+		final String material;
+
+		Submission(File file, String tool, String material) {
+			this.file = file;
+			this.tool = tool;
+			this.material = material;
+		}
+	}
+
+	public static void main(String[] args) {
+		System.setProperty("java.awt.headless", "true");
+		Base.headless = true;
+
+		List<String[]> machines = new ArrayList<String[]>();
+		List<Submission> submissions = new ArrayList<Submission>();
+		File queueFile = JobQueue.getDefaultFile();
+		boolean serve = false;
+		long statusInterval = 10000;
+		String tool = null;
+		String material = null;
+		try {
+			for (int i = 0; i < args.length; i++) {
+				String arg = args[i];
+				boolean hasValue = i + 1 < args.length;
+				if (arg.equals("--machine") && hasValue) {
+					String[] machine = parseMachine(args[++i]);
+					if (machine == null)
+						usage("Bad machine " + args[i]);
+					machines.add(machine);
+				} else if (arg.equals("--queue") && hasValue) {
+					queueFile = HeadlessBuild.argumentFile(args[++i]);
+				} else if (arg.equals("--serve")) {
+					serve = true;
+				} else if (arg.equals("--status") && hasValue) {
+					statusInterval = (long) (Double.parseDouble(args[++i]) * 1000);
+				} else if (arg.equals("--tool") && hasValue) {
+					tool = args[++i];
+				} else if (arg.equals("--material") && hasValue) {
+					material = args[++i];
+				} else if (!arg.startsWith("--")) {
+					submissions.add(new Submission(HeadlessBuild.argumentFile(arg),
+							tool, material));
+				} else {
+					usage("Unknown option " + arg);
+				}
+			}
+		} catch (NumberFormatException e) {
+			usage("Bad number: " + e.getMessage());
+		}
+		if (machines.isEmpty())
+			usage("No machines given");
+
+		final MachinePool pool = new MachinePool();
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run() {
+				pool.dispose();
+			}
+		});
+		for (String[] m : machines) {
+			try {
+				pool.add(m[0], m[1], m[2]);
+			} catch (SerialException e) {
+				System.err.println("Could not connect " + m[0] + ": " + e.getMessage());
+			} catch (IllegalArgumentException e) {
+				System.err.println(e.getMessage());
+				System.exit(2);
+			}
+		}
+
+		JobQueue queue = new JobQueue(pool, queueFile);
+		for (Submission s : submissions) {
+			try {
+				System.out.println("Queued " + queue.submit(s.file, s.tool, s.material));
+			} catch (IOException e) {
+				System.err.println("Could not queue " + s.file + ": " + e.getMessage());
+			}
+		}
+		queue.start();
+
+		try {
+			// queued jobs no machine here can take are left for another run.
+			while (serve || queue.hasWork()) {
+				Thread.sleep(statusInterval);
+				MachinePool.Status status = pool.getStatus();
+				System.out.println(status);
+				for (MachinePool.MachineStatus m : status.getMachines())
+					System.out.println("  " + m);
+				System.out.println("Queue: " + queue.getMetrics());
+			}
+		} catch (InterruptedException e) {
+		}
+		queue.stop();
+		System.exit(0);
+	}
+
+	// id=name or id=name@port, as { id, name, port or null }.
+	private static String[] parseMachine(String s) {
+		int equals = s.indexOf('=');
+		if (equals <= 0 || equals == s.length() - 1) return null;
+		String id = s.substring(0, equals);
+		String name = s.substring(equals + 1);
+		String port = null;
+		int at = name.lastIndexOf('@');
+		if (at > 0) {
+			port = name.substring(at + 1);
+			name = name.substring(0, at);
+		}
+		return new String[] { id, name, port };
+	}
+
+	private static void usage(String problem) {
+		System.err.println(problem);
+		System.err.println("Usage: replicatorg-farm --machine ID=NAME[@PORT] ... [--queue FILE] [--serve]");
+		System.err.println("           [--status SECONDS] [[--tool TOOL] [--material MATERIAL] FILE] ...");
+		System.exit(2);
+	}
+}
@@ -0,0 +1,135 @@
+package replicatorg.app;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import replicatorg.app.exceptions.SerialException;
+import replicatorg.app.exceptions.UnknownSerialPortException;
+
+/**
+ * A pseudo-terminal or other tty device opened as a plain file, e.g. the
+ * slave end of a pty created by socat or an external emulator. RXTX doesn't
+ * list these. The port name is "pty:/dev/pts/N".
+ *
+ * The device is put into raw mode with stty when it's opened; the line speed
+ * doesn't matter for a pty, so it isn't set.
+ */
+public class PtyTransport implements SerialTransport {
+
+	// how often a read with a timeout checks for data, in millis: quickly at
+	// first, then less often the longer the device stays quiet.
+	private static final int MIN_POLL_INTERVAL = 1;
+
+	private static final int MAX_POLL_INTERVAL = 16;
+
+	public static class Factory implements SerialTransport.Factory {
+		public SerialTransport open(String name) throws SerialException {
+			return new PtyTransport(new File(name.substring(name.indexOf(':') + 1)));
+		}
+	}
+
+	private final FileInputStream in;
+
+	private final FileOutputStream out;
+
+	private final InputStream input;
+
+	private volatile int timeoutMillis = 0;
+
+	public PtyTransport(File device) throws SerialException {
+		if (!device.exists())
+			throw new UnknownSerialPortException(device.getPath());
+		makeRaw(device);
+		try {
+			in = new FileInputStream(device);
+			out = new FileOutputStream(device);
+		} catch (IOException e) {
+			throw new SerialException("Error opening " + device, e);
+		}
+		input = new TimeoutInputStream();
+	}
+
+	private static void makeRaw(File device) {
+		try {
+			Process p = Runtime.getRuntime().exec(new String[] {
+					"stty", "-F", device.getPath(), "raw", "-echo" });
+			if (p.waitFor() != 0)
+				Base.logger.warning("Could not set " + device + " to raw mode");
+		} catch (Exception e) {
+			Base.logger.warning("Could not run stty on " + device + ": "
+					+ e.getMessage());
+		}
+	}
+
+	/**
+	 * Plain file reads can't time out, and closing the file doesn't end a
+	 * read that's blocked, so reads with a timeout poll for available data
+	 * first. With no timeout they just block.
+	 */
+	private class TimeoutInputStream extends InputStream {
+		private boolean waitForData() throws IOException {
+			int timeout = timeoutMillis;
+			if (timeout <= 0) return true;
+			long deadline = System.currentTimeMillis() + timeout;
+			int interval = MIN_POLL_INTERVAL;
+			while (in.available() == 0) {
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) return false;
+				try {
+					Thread.sleep(Math.min(interval, remaining));
+					interval = Math.min(2 * interval, MAX_POLL_INTERVAL);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return false;
+				}
+			}
+			return true;
+		}
+
+		public int read() throws IOException {
+			if (!waitForData()) return -1;
+			return in.read();
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) return 0;
+			if (!waitForData()) return 0;
+			return in.read(b, off, len);
+		}
+
+		public int available() throws IOException {
+			return in.available();
+		}
+
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+
+	public InputStream getInputStream() {
+		return input;
+	}
+
+	public OutputStream getOutputStream() {
+		return out;
+	}
+
+	public void setTimeout(int timeoutMillis) {
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	/**
+	 * A pty has no RTS line to pulse.
+	 */
+	public void pulseRTSLow() {
+	}
+
+	public void close() throws IOException {
+		in.close();
+		out.close();
+	}
+}
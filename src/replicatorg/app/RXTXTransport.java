@@ -0,0 +1,181 @@
+package replicatorg.app;
+
+import gnu.io.CommPortIdentifier;
+import gnu.io.PortInUseException;
+import gnu.io.SerialPort;
+import gnu.io.SerialPortEvent;
+import gnu.io.SerialPortEventListener;
+import gnu.io.UnsupportedCommOperationException;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import replicatorg.app.exceptions.SerialException;
+
+/**
+ * A real serial port, opened through RXTX.
+ */
+public class RXTXTransport implements SerialTransport {
+
+	private SerialPort port;
+
+	private OutputStream output;
+
+	private InputStream input;
+
+	// notified when data arrives, on Windows.
+	private final Object dataAvailable = new Object();
+
+	private volatile int timeoutMillis = 0;
+
+	/**
+	 * Open the given port.
+	 *
+	 * @param parity
+	 *            one of the SerialPort.PARITY_ constants
+	 * @param stop
+	 *            one of the SerialPort.STOPBITS_ constants
+	 */
+	public RXTXTransport(CommPortIdentifier portId, int rate, int data,
+			int stop, int parity) throws SerialException {
+		String name = portId.getName();
+		try {
+			port = (SerialPort)portId.open("replicatorG", 2000);
+			port.setSerialPortParams(rate, data, stop, parity);
+			output = new UnflushedOutputStream(port.getOutputStream());
+			input = port.getInputStream();
+			if (Base.isWindows()) {
+				port.addEventListener(new SerialPortEventListener() {
+					public void serialEvent(SerialPortEvent e) {
+						if (e.getEventType() == SerialPortEvent.DATA_AVAILABLE) {
+							synchronized (dataAvailable) {
+								dataAvailable.notifyAll();
+							}
+						}
+					}
+				});
+				port.notifyOnDataAvailable(true);
+				input = new WindowsInputStream(input);
+			}
+		} catch (PortInUseException e) {
+			throw new SerialException(
+					"Serial port '"
+					+ name
+					+ "' already in use.  Try quiting any programs that may be using it.");
+		} catch (Exception e) {
+			if (port != null) port.close();
+			throw new SerialException("Error opening serial port '" + name
+					+ "'.", e);
+		}
+	}
+
+	/**
+	 * RXTX hands every write straight to the OS, and its flush() blocks until
+	 * the bytes have actually gone down the wire. Nothing is gained by
+	 * waiting for that after every packet, so flushes are skipped.
+	 */
+	private static class UnflushedOutputStream extends FilterOutputStream {
+		UnflushedOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+		}
+
+		public void flush() {
+		}
+	}
+
+	/**
+	 * RXTX's receive timeout doesn't work on Windows, so there a read with
+	 * nothing to read would block, and hold the port so that closing it
+	 * hangs. Instead a read waits to be told that data has arrived, and gives
+	 * up after the timeout the way RXTX's reads do elsewhere.
+	 */
+	private class WindowsInputStream extends FilterInputStream {
+		WindowsInputStream(InputStream in) {
+			super(in);
+		}
+
+		private boolean waitForData() throws IOException {
+			int timeout = timeoutMillis;
+			long deadline = System.currentTimeMillis() + timeout;
+			synchronized (dataAvailable) {
+				while (in.available() == 0) {
+					long wait = 0;
+					if (timeout > 0) {
+						wait = deadline - System.currentTimeMillis();
+						if (wait <= 0) return false;
+					}
+					try {
+						dataAvailable.wait(wait);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return false;
+					}
+				}
+			}
+			return true;
+		}
+
+		public int read() throws IOException {
+			if (!waitForData()) return -1;
+			return in.read();
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) return 0;
+			if (!waitForData()) return 0;
+			return in.read(b, off, Math.min(len, in.available()));
+		}
+	}
+
+	public InputStream getInputStream() throws IOException {
+		return input;
+	}
+
+	public OutputStream getOutputStream() {
+		return output;
+	}
+
+	public void setTimeout(int timeoutMillis) {
+		this.timeoutMillis = timeoutMillis;
+		if (Base.isWindows()) return;
+		try {
+			if (timeoutMillis <= 0) {
+				port.disableReceiveTimeout();
+			} else {
+				port.enableReceiveTimeout(timeoutMillis);
+			}
+		} catch (UnsupportedCommOperationException unsupEx) {
+			System.err.println(unsupEx.getMessage());
+		}
+	}
+
+	/**
+	 * Briefly pulse the RTS line low.  On most arduino-based boards, this will hard reset the
+	 * device.
+	 */
+	public void pulseRTSLow() {
+		port.setRTS(true);
+		port.setRTS(false);
+		try {
+			Thread.sleep(1);
+		} catch (java.lang.InterruptedException ie) {
+		}
+		port.setRTS(true);
+	}
+
+	public void close() {
+		if (port != null)
+			port.close();
+		port = null;
+		synchronized (dataAvailable) {
+			dataAvailable.notifyAll();
+		}
+	}
+}
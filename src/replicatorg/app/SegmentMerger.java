@@ -0,0 +1,164 @@
+package replicatorg.app;
+
+import javax.vecmath.Point3d;
+
+import replicatorg.drivers.Driver;
+
+/**
+ * Collapses runs of short, nearly collinear moves into single moves before
+ * they are planned and sent, so that a curve cut into many tiny segments
+ * doesn't cost one packet per segment where a straight line would do.
+ *
+ * A run is extended as long as every point in it stays within the chord
+ * tolerance of the straight move from the start of the run to its newest
+ * point, keeps going forward, and was asked for at the same feedrate.
+ */
+public class SegmentMerger {
+
+	// longest run, in points, checked against each new point.
+	private static final int MAX_RUN = 64;
+
+	private final Driver driver;
+
+	// where merged moves go; null means straight to the driver.
+	private final MotionPlanner planner;
+
+	private final double tolerance;
+
+	// where the current run starts.
+	private final Point3d start = new Point3d();
+
+	// the points in the current run, the last one being where it ends.
+	private final Point3d[] run = new Point3d[MAX_RUN];
+
+	private int runLength = 0;
+
+	private double runFeedrate;
+
+	private long movesIn = 0;
+
+	private long movesOut = 0;
+
+	public SegmentMerger(Driver driver, MotionPlanner planner, double tolerance) {
+		this.driver = driver;
+		this.planner = planner;
+		this.tolerance = tolerance;
+	}
+
+	/**
+	 * @return the merger configured from the preferences, or null if merging
+	 * is turned off.
+	 */
+	public static SegmentMerger create(Driver driver, MotionPlanner planner) {
+		double tolerance = Base.preferences.getDouble("planner.merge_tolerance", 0.01);
+		if (tolerance <= 0) return null;
+		return new SegmentMerger(driver, planner, tolerance);
+	}
+
+	/**
+	 * @return where the machine will be once every held move is sent.
+	 */
+	public Point3d getPosition() {
+		if (runLength > 0) return new Point3d(run[runLength - 1]);
+		if (planner != null) return planner.getPosition();
+		return driver.getCurrentPosition();
+	}
+
+	/** @return the number of moves handed to the merger. */
+	public long getMovesIn() {
+		return movesIn;
+	}
+
+	/** @return the number of moves the merger passed on. */
+	public long getMovesOut() {
+		return movesOut;
+	}
+
+	/**
+	 * @return how many of the points handed to the merger haven't been sent.
+	 */
+	public int getHeldPoints() {
+		return runLength;
+	}
+
+	public void resetCounts() {
+		movesIn = 0;
+		movesOut = 0;
+	}
+
+	/**
+	 * Add a move to the given point at the driver's current feedrate.
+	 */
+	public void queuePoint(Point3d p) {
+		movesIn++;
+		double feedrate = driver.getCurrentFeedrate();
+		if (runLength > 0 && (feedrate != runFeedrate || !canExtendTo(p))) {
+			sendRun();
+		}
+		if (runLength == 0) {
+			start.set(getPosition());
+			runFeedrate = feedrate;
+		}
+		run[runLength++] = new Point3d(p);
+	}
+
+	/**
+	 * Send the run being collected.
+	 */
+	public void flush() {
+		if (runLength > 0)
+			sendRun();
+	}
+
+	/**
+	 * Forget the run being collected without sending it.
+	 */
+	public void discard() {
+		runLength = 0;
+	}
+
+	/**
+	 * @return true if the current run can be stretched to end at p.
+	 */
+	private boolean canExtendTo(Point3d p) {
+		if (runLength == MAX_RUN) return false;
+		double dx = p.x - start.x;
+		double dy = p.y - start.y;
+		double dz = p.z - start.z;
+		double length = Math.sqrt(dx * dx + dy * dy + dz * dz);
+		if (length == 0) return false;
+		dx /= length;
+		dy /= length;
+		dz /= length;
+		double along = 0;
+		for (int i = 0; i < runLength; i++) {
+			Point3d q = run[i];
+			double qx = q.x - start.x;
+			double qy = q.y - start.y;
+			double qz = q.z - start.z;
+			double t = qx * dx + qy * dy + qz * dz;
+			// every point must lie further along than the one before it.
+			if (t <= along || t >= length) return false;
+			along = t;
+			double ex = qx - t * dx;
+			double ey = qy - t * dy;
+			double ez = qz - t * dz;
+			if (ex * ex + ey * ey + ez * ez > tolerance * tolerance) return false;
+		}
+		return true;
+	}
+
+	private void sendRun() {
+		Point3d end = run[runLength - 1];
+		int points = runLength;
+		runLength = 0;
+		movesOut++;
+		double feedrate = driver.getCurrentFeedrate();
+		driver.setFeedrate(runFeedrate);
+		if (planner != null)
+			planner.queuePoint(end, points);
+		else
+			driver.queuePoint(end);
+		driver.setFeedrate(feedrate);
+	}
+}
@@ -25,19 +25,21 @@
 package replicatorg.app;
 
 import gnu.io.CommPortIdentifier;
-import gnu.io.PortInUseException;
 import gnu.io.SerialPort;
-import gnu.io.UnsupportedCommOperationException;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.util.Enumeration;
 import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.Map;
 import java.util.Set;
 import java.util.Vector;
 
 import replicatorg.app.exceptions.SerialException;
+import replicatorg.app.tools.ByteRingBuffer;
 import replicatorg.app.exceptions.UnknownSerialPortException;
 import replicatorg.drivers.UsesSerial;
 
@@ -65,7 +67,35 @@ public class Serial {
 		public String toString() { return this.name; }
 	}
 	
-	private static Set<Serial> portsInUse = new HashSet<Serial>();
+	// ports opened by this process; every machine in it shares the one set.
+	private static final Set<Serial> portsInUse = new HashSet<Serial>();
+
+	// transports that stand in for serial ports, by port name.
+	private static Map<String,SerialTransport.Factory> transports =
+		new Hashtable<String,SerialTransport.Factory>();
+
+	/**
+	 * Register a transport to use in place of a serial port. It is used for
+	 * the port with the given name, and for any name of the form
+	 * "name:options". Registered transports are not returned by
+	 * scanSerialNames(), so they are never picked up by autoscan; they have
+	 * to be named explicitly.
+	 */
+	public static void registerTransport(String name, SerialTransport.Factory factory) {
+		transports.put(name, factory);
+	}
+
+	private static SerialTransport.Factory findTransport(String name) {
+		if (name == null) return null;
+		int colon = name.indexOf(':');
+		return transports.get(colon == -1 ? name : name.substring(0, colon));
+	}
+
+	static {
+		registerTransport("tcp", new TCPTransport.Factory());
+		registerTransport("pty", new PtyTransport.Factory());
+		registerTransport("pipe", new PipeTransport.Factory());
+	}
 	
 	/**
 	 * Scan the port ids for a list of potential serial ports that we can use.
@@ -80,7 +110,8 @@ public class Serial {
 				CommPortIdentifier portId = (CommPortIdentifier) portList.nextElement();
 				if (portId.getPortType() == CommPortIdentifier.PORT_SERIAL) {
 					if (portId.getPortType() == CommPortIdentifier.PORT_SERIAL) {
-						Name sn = new Name(portId.getName(),!portId.isCurrentlyOwned());
+						Name sn = new Name(portId.getName(),
+								!portId.isCurrentlyOwned() && !isInUse(portId.getName()));
 						v.add(sn);
 					}
 				}
@@ -89,20 +120,33 @@ public class Serial {
 		}
 		// In-use ports may not end up in the enumeration (thanks, RXTX, you fabulous pile of shit!), so
 		// we'll scan for them, insert them if necessary, and return the whole.
-		assert portsInUse.size() <= 1;
-		for (Serial port: portsInUse) {
-			Name n = new Name(port.getName(),false);
-			boolean contains = false;
-			for (Name vi : v) { // vector.contains doesn't use comparable.
-				if (vi.compareTo(n) == 0) {
-					contains = true; 
-					break; 
+		synchronized (portsInUse) {
+			for (Serial port: portsInUse) {
+				Name n = new Name(port.getName(),false);
+				boolean contains = false;
+				for (Name vi : v) { // vector.contains doesn't use comparable.
+					if (vi.compareTo(n) == 0) {
+						contains = true; 
+						break; 
+					}
 				}
+				if (!contains) { v.add(n); }
 			}
-			if (!contains) { v.add(n); }
 		}
 		return v;
 	}
+
+	/**
+	 * @return true if a machine in this process has the named port open.
+	 */
+	public static boolean isInUse(String name) {
+		synchronized (portsInUse) {
+			for (Serial port : portsInUse) {
+				if (port.getName().equals(name)) return true;
+			}
+			return false;
+		}
+	}
 	
 	// properties can be passed in for default values
 	// otherwise defaults to 9600 N81
@@ -111,7 +155,7 @@ public class Serial {
 	// for the classloading problem.. because if code ran again,
 	// the static class would have an object that could be closed
 
-	private SerialPort port;
+	private SerialTransport transport;
 	private String name;
 	private int rate;
 	private int parity;
@@ -125,6 +169,42 @@ public class Serial {
 	private InputStream input;
 	private OutputStream output;
 
+	private static final int BUFFER_SIZE = 1024;
+
+	// how often the reader thread checks whether it should stop, in millis.
+	private static final int READER_POLL_MILLIS = 100;
+
+	/**
+	 * When buffered writes are sent to the port.
+	 */
+	public enum FlushPolicy {
+		/** Every write goes out as soon as it is made. */
+		IMMEDIATE,
+		/**
+		 * Writes are held until we read from the port, or until the
+		 * flush threshold is reached.
+		 */
+		ON_READ
+	}
+
+	// bytes read from the transport but not yet handed out, when there is no
+	// reader thread.
+	private byte[] readBuffer = new byte[BUFFER_SIZE];
+	private int readPosition = 0;
+	private int readLimit = 0;
+
+	// bytes drained from the port by the reader thread.
+	private ByteRingBuffer ring = null;
+	private Thread reader = null;
+	private volatile boolean running = false;
+	private int timeoutMillis = 0;
+
+	// bytes written but not yet passed to the transport.
+	private byte[] writeBuffer = new byte[BUFFER_SIZE];
+	private int writeCount = 0;
+	private FlushPolicy flushPolicy;
+	private int flushThreshold;
+
 	public Serial(String name, int rate, char parity, int data, float stop) throws SerialException {
 		init(name, rate, parity, data, stop);
 	}
@@ -165,33 +245,133 @@ public class Serial {
 			this.stop = SerialPort.STOPBITS_1_5;
 		if (stop == 2)
 			this.stop = SerialPort.STOPBITS_2;
-		// Attempt to find the port identifier for the designated name
-		CommPortIdentifier portId = findPortIdentifier(name);
-		if (portId == null) {
-			throw new UnknownSerialPortException(name);
+		// claim the port first, so that two machines autoscanning at once
+		// can't both open it.
+		synchronized (portsInUse) {
+			if (isInUse(name))
+				throw new SerialException("Port '" + name + "' is already in use.");
+			portsInUse.add(this);
 		}
-		// Attempt to open the given port
 		try {
-			port = (SerialPort)portId.open("replicatorG", 2000);
-			port.setSerialPortParams(this.rate, this.data, this.stop, this.parity);
-			input = port.getInputStream();
-			output = port.getOutputStream();
-		} catch (PortInUseException e) {
-			throw new SerialException(
-					"Serial port '"
-					+ name
-					+ "' already in use.  Try quiting any programs that may be using it.");
-		} catch (Exception e) {
-			throw new SerialException("Error opening serial port '" + name
-					+ "'.", e);
+			open();
+		} catch (SerialException e) {
+			release();
+			throw e;
+		} catch (RuntimeException e) {
+			release();
+			throw e;
+		}
+	}
+
+	private void release() {
+		synchronized (portsInUse) {
+			portsInUse.remove(this);
+		}
+	}
+
+	private void open() throws SerialException {
+		// Registered transports take precedence over real ports
+		SerialTransport.Factory factory = findTransport(name);
+		if (factory != null) {
+			transport = factory.open(name);
+		} else {
+			// Attempt to find the port identifier for the designated name
+			CommPortIdentifier portId = findPortIdentifier(name);
+			if (portId == null) {
+				throw new UnknownSerialPortException(name);
+			}
+			transport = new RXTXTransport(portId, this.rate, this.data, this.stop, this.parity);
+		}
+		try {
+			input = transport.getInputStream();
+			output = transport.getOutputStream();
+		} catch (IOException e) {
+			try {
+				transport.close();
+			} catch (IOException ioe) {
+			}
+			throw new SerialException("Error opening port '" + name + "'.", e);
+		}
+		try {
+			flushPolicy = FlushPolicy.valueOf(Base.preferences.get("serial.flush_policy",
+					FlushPolicy.IMMEDIATE.name()).toUpperCase());
+		} catch (IllegalArgumentException iae) {
+			flushPolicy = FlushPolicy.IMMEDIATE;
+		}
+		flushThreshold = Math.min(writeBuffer.length,
+				Base.preferences.getInt("serial.flush_bytes", writeBuffer.length));
+		if (Base.preferences.getBoolean("serial.reader_thread", true)) {
+			startReader();
+		}
+	}
+
+	/**
+	 * Start a thread that drains the port in bulk into a ring buffer, so
+	 * that reads don't have to go to the port themselves.
+	 */
+	private void startReader() {
+		ring = new ByteRingBuffer(Base.preferences.getInt("serial.ring_bytes", 16384));
+		// the reader wakes up now and then to see if it should stop, so that
+		// it is never blocked in a read when the port is closed; reads from
+		// the ring honor the caller's timeout instead.
+		transport.setTimeout(READER_POLL_MILLIS);
+		running = true;
+		reader = new Thread("Serial reader: " + name) {
+			public void run() {
+				byte[] chunk = new byte[BUFFER_SIZE];
+				try {
+					while (running) {
+						int count;
+						try {
+							count = input.read(chunk, 0, chunk.length);
+						} catch (InterruptedIOException iioe) {
+							// a socket's read timed out.
+							continue;
+						}
+						if (count < 0) {
+							if (running)
+								Base.logger.severe("Serial port " + name + " was closed");
+							break;
+						}
+						if (count > 0 && !ring.put(chunk, 0, count)) break;
+					}
+				} catch (IOException ioe) {
+					if (running)
+						Base.logger.severe("Lost serial port " + name + ": " + ioe.getMessage());
+				} finally {
+					// readers get -1 straight away rather than each waiting
+					// out its timeout.
+					ring.close();
+				}
+			}
+		};
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	/**
+	 * Stop the reader thread, waiting for its read to time out. This has to
+	 * happen before the port is closed: RXTX won't close a port while a read
+	 * is in progress.
+	 */
+	private void stopReader() {
+		if (reader == null) return;
+		running = false;
+		reader.interrupt();
+		try {
+			reader.join(2 * READER_POLL_MILLIS);
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
 		}
-		portsInUse.add(this);
+		reader = null;
 	}
 
 	/**
 	 * Used by PApplet to shut things down.
 	 */
 	public void dispose() {
+		flush();
+		stopReader();
 		try {
 			// do io streams need to be closed first?
 			if (input != null)
@@ -206,14 +386,14 @@ public class Serial {
 		output = null;
 
 		try {
-			if (port != null)
-				port.close(); // close the port
+			if (transport != null)
+				transport.close();
 
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
-		portsInUse.remove(this);
-		port = null;
+		release();
+		transport = null;
 	}
 
 	/**
@@ -221,28 +401,52 @@ public class Serial {
 	 * device.
 	 */
 	public void pulseRTSLow() {
-		port.setRTS(true);
-		port.setRTS(false);
-		try {
-			Thread.sleep(1);
-		} catch (java.lang.InterruptedException ie) {
-		}
-		port.setRTS(true);
+		transport.pulseRTSLow();
 	}
 
 	public int available() {
+		flush();
+		if (ring != null) {
+			return ring.size();
+		}
 		try {
-			return input.available();
+			return (readLimit - readPosition) + input.available();
 		} catch (IOException ioe) {
 			return -1;
 		}
 	}
 	
 	public int read() {
+		if (ring != null) {
+			if (ring.size() == 0) flush();
+			return ring.take(timeoutMillis);
+		}
+		if (readPosition == readLimit && !fillReadBuffer()) {
+			return -1;
+		}
+		return readBuffer[readPosition++] & 0xff;
+	}
+
+	/**
+	 * Refill the read buffer with a single bulk read. Asks for no more than
+	 * is available (but at least one byte), so that we don't block waiting
+	 * for bytes that aren't coming.
+	 * @return false if the read timed out or failed.
+	 */
+	private boolean fillReadBuffer() {
+		// anything we're waiting on an answer to has to go out first.
+		flush();
 		try {
-			return input.read();
+			int wanted = Math.max(1, Math.min(readBuffer.length, input.available()));
+			int count = input.read(readBuffer, 0, wanted);
+			if (count <= 0) {
+				return false;
+			}
+			readPosition = 0;
+			readLimit = count;
+			return true;
 		} catch (IOException ioe) {
-			return -1;
+			return false;
 		}
 	}
 	
@@ -252,6 +456,18 @@ public class Serial {
 	 * @return the number of characters read.
 	 */
 	public int read(byte bytes[]) {
+		if (ring != null) {
+			if (ring.size() == 0) flush();
+			return ring.take(bytes, 0, bytes.length, timeoutMillis);
+		}
+		int buffered = readLimit - readPosition;
+		if (buffered > 0) {
+			int count = Math.min(buffered, bytes.length);
+			System.arraycopy(readBuffer, readPosition, bytes, 0, count);
+			readPosition += count;
+			return count;
+		}
+		flush();
 		try {
 			return input.read(bytes);
 		} catch (IOException ioe) {
@@ -259,17 +475,66 @@ public class Serial {
 		}
 	}
 	
+	/**
+	 * Write bytes to the port. They are sent right away under the IMMEDIATE
+	 * flush policy (the default); otherwise they are held until flush() is
+	 * called, the flush threshold is reached, or we read from the port.
+	 */
 	public void write(byte bytes[]) {
-		try {
-			output.write(bytes);
-			output.flush(); // hmm, not sure if a good idea
+		if (writeCount + bytes.length > writeBuffer.length) {
+			flush();
+		}
+		if (bytes.length > writeBuffer.length) {
+			writeDirect(bytes, bytes.length);
+			return;
+		}
+		System.arraycopy(bytes, 0, writeBuffer, writeCount, bytes.length);
+		writeCount += bytes.length;
+		if (flushPolicy == FlushPolicy.IMMEDIATE || writeCount >= flushThreshold) {
+			flush();
+		}
+	}
+
+	/**
+	 * Send any buffered output to the transport.
+	 */
+	public void flush() {
+		if (writeCount > 0) {
+			int count = writeCount;
+			writeCount = 0;
+			writeDirect(writeBuffer, count);
+		}
+	}
 
+	private void writeDirect(byte bytes[], int length) {
+		try {
+			output.write(bytes, 0, length);
+			output.flush();
 		} catch (Exception e) { // null pointer or serial port dead
 			// errorMessage("write", e);
 			e.printStackTrace();
 		}
 	}
 
+	public void setFlushPolicy(FlushPolicy flushPolicy) {
+		this.flushPolicy = flushPolicy;
+		if (flushPolicy == FlushPolicy.IMMEDIATE) {
+			flush();
+		}
+	}
+
+	public FlushPolicy getFlushPolicy() {
+		return flushPolicy;
+	}
+
+	/**
+	 * @param bytes how many bytes may be held back before they are sent
+	 * regardless of the flush policy.
+	 */
+	public void setFlushThreshold(int bytes) {
+		flushThreshold = Math.max(1, Math.min(bytes, writeBuffer.length));
+	}
+
 	/**
 	 * Write a String to the output. Note that this doesn't account for Unicode
 	 * (two bytes per char), nor will it send UTF8 characters.. It assumes that
@@ -286,16 +551,9 @@ public class Serial {
 	}
 
 	public void setTimeout(int timeoutMillis) {
-		if (!Base.isWindows()) {
-			try {
-				if (timeoutMillis <= 0) {
-					port.disableReceiveTimeout();
-				} else {
-					port.enableReceiveTimeout(timeoutMillis);
-				}
-			} catch (UnsupportedCommOperationException unsupEx) {
-				System.err.println(unsupEx.getMessage());
-			}
+		this.timeoutMillis = Math.max(0, timeoutMillis);
+		if (ring == null) {
+			transport.setTimeout(timeoutMillis);
 		}
 	}
 
@@ -307,4 +565,4 @@ public class Serial {
 		e.printStackTrace();
 		throw new RuntimeException("Error inside Serial." + where + "()");
 	}
-}
+}
\ No newline at end of file
@@ -0,0 +1,49 @@
+package replicatorg.app;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import replicatorg.app.exceptions.SerialException;
+
+/**
+ * A connection that a Serial object can talk through in place of a real
+ * serial port. Transports are registered with Serial under a port name, and
+ * are opened when a Serial is created with that name.
+ *
+ * Reads from the input stream should honor the timeout set with
+ * setTimeout(). A read into an array that times out returns 0, the same way
+ * RXTX's do, or throws InterruptedIOException, as a socket's does; -1 means
+ * the connection is gone. A single-byte read returns -1 either way.
+ */
+public interface SerialTransport {
+
+	/**
+	 * Opens transports for a family of port names.
+	 */
+	public interface Factory {
+		/**
+		 * @param name
+		 *            the full port name that was asked for
+		 */
+		public SerialTransport open(String name) throws SerialException;
+	}
+
+	public InputStream getInputStream() throws IOException;
+
+	public OutputStream getOutputStream() throws IOException;
+
+	/**
+	 * @param timeoutMillis
+	 *            how long a read may wait for data, or 0 to wait forever.
+	 */
+	public void setTimeout(int timeoutMillis);
+
+	/**
+	 * Do whatever this transport does in place of pulsing RTS, usually
+	 * resetting the device on the other end.
+	 */
+	public void pulseRTSLow();
+
+	public void close() throws IOException;
+}
@@ -0,0 +1,90 @@
+package replicatorg.app;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+
+import replicatorg.app.exceptions.SerialException;
+
+/**
+ * A serial line reached over TCP, e.g. through a serial-to-Ethernet bridge or
+ * a local loopback server. The port name is "tcp:host:port".
+ */
+public class TCPTransport implements SerialTransport {
+
+	private static final int CONNECT_TIMEOUT = 5000;
+
+	public static class Factory implements SerialTransport.Factory {
+		public SerialTransport open(String name) throws SerialException {
+			// tcp:host:port
+			int first = name.indexOf(':');
+			int last = name.lastIndexOf(':');
+			if (first == last)
+				throw new SerialException("TCP port names look like tcp:host:port, not '" + name + "'");
+			String host = name.substring(first + 1, last);
+			int port;
+			try {
+				port = Integer.parseInt(name.substring(last + 1));
+			} catch (NumberFormatException e) {
+				throw new SerialException("Bad TCP port in '" + name + "'");
+			}
+			return new TCPTransport(host, port);
+		}
+	}
+
+	private final Socket socket;
+
+	private final OutputStream output;
+
+	public TCPTransport(String host, int port) throws SerialException {
+		socket = new Socket();
+		try {
+			socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+			// packets are small and we wait for each answer.
+			socket.setTcpNoDelay(true);
+			output = new BufferedOutputStream(socket.getOutputStream());
+		} catch (IOException e) {
+			try {
+				socket.close();
+			} catch (IOException ioe) {
+			}
+			throw new SerialException("Could not connect to " + host + ":"
+					+ port, e);
+		}
+	}
+
+	/**
+	 * Reads time out by throwing SocketTimeoutException, an
+	 * InterruptedIOException; end of stream means the connection closed.
+	 */
+	public InputStream getInputStream() throws IOException {
+		return socket.getInputStream();
+	}
+
+	public OutputStream getOutputStream() {
+		return output;
+	}
+
+	public void setTimeout(int timeoutMillis) {
+		try {
+			socket.setSoTimeout(Math.max(0, timeoutMillis));
+		} catch (SocketException e) {
+			System.err.println(e.getMessage());
+		}
+	}
+
+	/**
+	 * There's no RTS line on a socket; most bridges reset the device when a
+	 * connection is opened instead.
+	 */
+	public void pulseRTSLow() {
+	}
+
+	public void close() throws IOException {
+		socket.close();
+	}
+}
@@ -0,0 +1,186 @@
+package replicatorg.app.tools;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A fixed-size ring of bytes passed from exactly one producer thread to
+ * exactly one consumer thread. Neither side takes a lock: the producer only
+ * moves the tail and the consumer only moves the head, and each side parks
+ * when it has to wait for the other.
+ */
+public class ByteRingBuffer {
+
+	private final byte[] data;
+
+	private final int mask;
+
+	// total bytes ever taken; only written by the consumer.
+	private volatile long head = 0;
+
+	// total bytes ever put; only written by the producer.
+	private volatile long tail = 0;
+
+	private volatile Thread waitingConsumer = null;
+
+	private volatile Thread waitingProducer = null;
+
+	// set by the producer once nothing more will be put.
+	private volatile boolean closed = false;
+
+	/**
+	 * @param capacity
+	 *            the size of the ring; rounded up to a power of two.
+	 */
+	public ByteRingBuffer(int capacity) {
+		int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+		data = new byte[size];
+		mask = size - 1;
+	}
+
+	public int getCapacity() {
+		return data.length;
+	}
+
+	/** @return the number of bytes waiting to be taken. */
+	public int size() {
+		return (int) (tail - head);
+	}
+
+	/**
+	 * Producer: copy as much of the given bytes as fits.
+	 *
+	 * @return the number of bytes copied.
+	 */
+	public int offer(byte[] b, int off, int len) {
+		long t = tail;
+		int n = Math.min(len, data.length - (int) (t - head));
+		for (int i = 0; i < n; i++)
+			data[(int) (t + i) & mask] = b[off + i];
+		if (n > 0) {
+			tail = t + n;
+			Thread consumer = waitingConsumer;
+			if (consumer != null)
+				LockSupport.unpark(consumer);
+		}
+		return n;
+	}
+
+	/**
+	 * Producer: copy all of the given bytes, waiting for room as needed.
+	 *
+	 * @return false if interrupted before everything was copied.
+	 */
+	public boolean put(byte[] b, int off, int len) {
+		while (len > 0) {
+			int n = offer(b, off, len);
+			off += n;
+			len -= n;
+			if (len > 0) {
+				waitingProducer = Thread.currentThread();
+				if (tail - head == data.length)
+					LockSupport.parkNanos(1000000);
+				waitingProducer = null;
+				if (Thread.currentThread().isInterrupted())
+					return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Producer: say that nothing more is coming. Whatever is waiting can
+	 * still be taken; after that, takes return -1 without waiting.
+	 */
+	public void close() {
+		closed = true;
+		Thread consumer = waitingConsumer;
+		if (consumer != null)
+			LockSupport.unpark(consumer);
+	}
+
+	/** @return true once the producer has closed the ring. */
+	public boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * Consumer: wait until there is something to take.
+	 *
+	 * @param timeoutMillis
+	 *            how long to wait, or 0 to wait forever.
+	 * @return false if the wait timed out or was interrupted, or the ring is
+	 *         empty and closed.
+	 */
+	public boolean await(int timeoutMillis) {
+		if (tail != head)
+			return true;
+		long deadline = System.nanoTime() + timeoutMillis * 1000000L;
+		waitingConsumer = Thread.currentThread();
+		try {
+			while (tail == head) {
+				if (closed || Thread.currentThread().isInterrupted())
+					return false;
+				if (timeoutMillis > 0) {
+					long remaining = deadline - System.nanoTime();
+					if (remaining <= 0)
+						return false;
+					LockSupport.parkNanos(remaining);
+				} else {
+					LockSupport.park();
+				}
+			}
+			return true;
+		} finally {
+			waitingConsumer = null;
+		}
+	}
+
+	/**
+	 * Consumer: take a single byte.
+	 *
+	 * @return the byte, or -1 if nothing arrived in time or nothing more will.
+	 */
+	public int take(int timeoutMillis) {
+		if (!await(timeoutMillis))
+			return -1;
+		long h = head;
+		int b = data[(int) h & mask] & 0xff;
+		head = h + 1;
+		wakeProducer();
+		return b;
+	}
+
+	/**
+	 * Consumer: take up to len bytes, waiting for at least one.
+	 *
+	 * @return the number of bytes taken, or -1 if nothing arrived in time or
+	 *         nothing more will.
+	 */
+	public int take(byte[] b, int off, int len, int timeoutMillis) {
+		if (len == 0)
+			return 0;
+		if (!await(timeoutMillis))
+			return -1;
+		long h = head;
+		int n = Math.min(len, (int) (tail - h));
+		for (int i = 0; i < n; i++)
+			b[off + i] = data[(int) (h + i) & mask];
+		head = h + n;
+		wakeProducer();
+		return n;
+	}
+
+	/**
+	 * Consumer: throw away everything waiting.
+	 */
+	public void clear() {
+		head = tail;
+		wakeProducer();
+	}
+
+	private void wakeProducer() {
+		Thread producer = waitingProducer;
+		if (producer != null)
+			LockSupport.unpark(producer);
+	}
+}
@@ -6,6 +6,25 @@ package replicatorg.app.tools;
  */
 public class IButtonCrc {
 
+	/**
+	 * The crc of every possible (crc ^ data) byte, so that updates don't need
+	 * to loop over the bits.
+	 */
+	private static final byte[] TABLE = new byte[256];
+	static {
+		for (int i = 0; i < 256; i++) {
+			int crc = i;
+			for (int j = 0; j < 8; j++) {
+				if ((crc & 0x01) != 0) {
+					crc = ((crc >>> 1) ^ 0x8c) & 0xff;
+				} else {
+					crc = (crc >>> 1) & 0xff;
+				}
+			}
+			TABLE[i] = (byte) crc;
+		}
+	}
+
 	private int crc = 0;
 
 	/**
@@ -24,14 +43,21 @@ public class IButtonCrc {
 	 *            a byte of new data to be added to the crc.
 	 */
 	public void update(byte data) {
-		crc = (crc ^ data) & 0xff; // i loathe java's promotion rules
-		for (int i = 0; i < 8; i++) {
-			if ((crc & 0x01) != 0) {
-				crc = ((crc >>> 1) ^ 0x8c) & 0xff;
-			} else {
-				crc = (crc >>> 1) & 0xff;
-			}
-		}
+		crc = update(crc, data);
+	}
+
+	/**
+	 * Update a crc held by the caller, for code that doesn't want to keep an
+	 * IButtonCrc object around.
+	 * 
+	 * @param crc
+	 *            the crc so far (0 to start)
+	 * @param data
+	 *            a byte of new data to be added to the crc.
+	 * @return the updated crc, in the range 0-255.
+	 */
+	public static int update(int crc, byte data) {
+		return TABLE[(crc ^ data) & 0xff] & 0xff;
 	}
 
 	/**
@@ -96,6 +96,8 @@ import javax.swing.undo.UndoManager;
 import org.w3c.dom.Document;
 
 import replicatorg.app.Base;
+import replicatorg.app.BuildJournal;
+import replicatorg.app.LayerIndex;
 import replicatorg.app.MachineController;
 import replicatorg.app.MachineFactory;
 import replicatorg.app.Serial;
@@ -115,6 +117,7 @@ import replicatorg.machine.MachineState;
 import replicatorg.machine.MachineStateChangeEvent;
 import replicatorg.machine.MachineToolStatusEvent;
 import replicatorg.model.JEditTextAreaSource;
+import replicatorg.model.StringListSource;
 import replicatorg.uploader.FirmwareUploader;
 
 import com.apple.mrj.MRJAboutHandler;
@@ -215,6 +218,9 @@ public class MainWindow extends JFrame implements MRJAboutHandler, MRJQuitHandle
 	public boolean simulating;
 	public boolean debugging;
 
+	// set while the text is checked against a build journal.
+	private boolean findingCheckpoint = false;
+
 	// boolean presenting;
 
 	// undo fellers
@@ -1356,20 +1362,78 @@ public class MainWindow extends JFrame implements MRJAboutHandler, MRJQuitHandle
 
 		if (machine == null) {
 			System.err.println("Not ready to build yet.");
-		} else {
-			// close stuff.
-			doClose();
+		} else if (!findingCheckpoint) {
+			final File file = getCodeFile();
+			machine.setCodeFile(file);
+			if (file == null || !BuildJournal.getJournalFile(file).exists()) {
+				startBuild(null);
+				return;
+			}
+			// an interrupted build of this file may be picked up where it
+			// stopped; the text is checked against the journal off this thread.
+			findingCheckpoint = true;
+			message("Checking for an unfinished build...");
+			final MachineController machine = this.machine;
+			final Vector<String> text = new Vector<String>(textarea.getLineCount());
+			for (String line : new JEditTextAreaSource(textarea))
+				text.add(line);
+			Thread thread = new Thread("Build journal") {
+				public void run() {
+					final BuildJournal.Checkpoint checkpoint =
+						machine.getUnfinishedCheckpoint(new StringListSource(text), file);
+					SwingUtilities.invokeLater(new Runnable() {
+						public void run() {
+							findingCheckpoint = false;
+							if (machine == MainWindow.this.machine && !building && !simulating)
+								offerToContinue(checkpoint);
+						}
+					});
+				}
+			};
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	/**
+	 * Ask whether to continue from the given checkpoint, if there is one, and
+	 * start the build.
+	 */
+	private void offerToContinue(BuildJournal.Checkpoint checkpoint) {
+		if (checkpoint != null) {
+			int result = JOptionPane.showConfirmDialog(this,
+					"The last build of this file stopped at line " +
+					(checkpoint.getLine() + 1) + ".\nContinue from there?",
+					"Continue Build?", JOptionPane.YES_NO_CANCEL_OPTION);
+			if (result == JOptionPane.CANCEL_OPTION ||
+					result == JOptionPane.CLOSED_OPTION) {
+				message("");
+				return;
+			}
+			if (result != JOptionPane.YES_OPTION) {
+				checkpoint = null;
+			}
+		}
+		startBuild(checkpoint);
+	}
+
+	private void startBuild(BuildJournal.Checkpoint checkpoint) {
+		// close stuff.
+		doClose();
 
-			// build specific stuff
-			building = true;
-			//buttons.activate(MainButtonPanel.BUILD);
+		// build specific stuff
+		building = true;
+		//buttons.activate(MainButtonPanel.BUILD);
 
-			setEditorBusy(true);
+		setEditorBusy(true);
 
-			// start our building thread.
+		// start our building thread.
 
-			message("Building...");
-			buildStart = new Date();
+		message("Building...");
+		buildStart = new Date();
+		if (checkpoint != null) {
+			machine.executeFrom(checkpoint);
+		} else {
 			machine.execute();
 		}
 	}
@@ -1546,6 +1610,7 @@ public class MainWindow extends JFrame implements MRJAboutHandler, MRJQuitHandle
 
 		public void run() {
 			message("Simulating...");
+			machine.setCodeFile(getCodeFile());
 			machine.simulate();
 			EventQueue.invokeLater(new Runnable() {
 				public void run() {
@@ -1573,6 +1638,7 @@ public class MainWindow extends JFrame implements MRJAboutHandler, MRJQuitHandle
 
 		public void run() {
 			message("Estimating...");
+			machine.setCodeFile(getCodeFile());
 			machine.estimate();
 			editor.estimationOver();
 		}
@@ -1908,6 +1974,7 @@ public class MainWindow extends JFrame implements MRJAboutHandler, MRJQuitHandle
 			if (Base.preferences.getBoolean("console.auto_clear",true)) {
 				console.clear();
 			}
+			indexLayers();
 		} catch (Exception e) {
 			error(e);
 		} finally {
@@ -2259,6 +2326,46 @@ public class MainWindow extends JFrame implements MRJAboutHandler, MRJQuitHandle
 		}
 	}
 
+	/**
+	 * @return the file backing the code being edited, or null if it has none.
+	 */
+	private File getCodeFile() {
+		if (sketch == null || sketch.current == null)
+			return null;
+		return sketch.current.file;
+	}
+
+	/**
+	 * Find the layers of the code just opened in the background, so that the
+	 * simulator and builds from a layer needn't wait for them, and say what
+	 * the build comes to. They're found from a copy of the text taken here,
+	 * so editing straight away can't mix two versions of it.
+	 */
+	private void indexLayers() {
+		final MachineController machine = this.machine;
+		if (machine == null)
+			return;
+		final File file = getCodeFile();
+		machine.setCodeFile(file);
+		final Vector<String> text = new Vector<String>(textarea.getLineCount());
+		for (String line : new JEditTextAreaSource(textarea))
+			text.add(line);
+		Thread thread = new Thread("Layer index") {
+			public void run() {
+				try {
+					LayerIndex layers = machine.getLayerIndex(
+							new StringListSource(text), file);
+					if (layers != null)
+						message(layers.getStatistics().toString());
+				} catch (InterruptedException e) {
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MIN_PRIORITY);
+		thread.start();
+	}
+
 	protected void setMachine(MachineController machine) {
 		if (this.machine != null) {
 			this.machine.dispose();
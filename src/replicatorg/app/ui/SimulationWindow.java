@@ -34,8 +34,13 @@ import java.awt.geom.Rectangle2D;
 import javax.swing.JFrame;
 import javax.vecmath.Point3d;
 
+import replicatorg.app.LayerIndex;
+
 public abstract class SimulationWindow extends JFrame {
 	protected Rectangle2D.Double simulationBounds;
+
+	// the build's layers, if they are known.
+	protected LayerIndex layers;
 	
 	public SimulationWindow() {
 		super("Build Simulation");
@@ -66,6 +71,10 @@ public abstract class SimulationWindow extends JFrame {
 	public void setSimulationBounds(Rectangle2D.Double bounds) {
 		this.simulationBounds = bounds;
 	}
+
+	public void setLayers(LayerIndex layers) {
+		this.layers = layers;
+	}
 	
 	public abstract void queuePoint(Point3d p);
 }
@@ -501,7 +501,13 @@ public class SimulationWindow2D extends SimulationWindow implements
 			// draw some helper text.
 			g.setFont(new Font("SansSerif", Font.PLAIN, 14));
 			g.setColor(Color.black);
-			g.drawString("Layer at z: " + currentZ + "mm", 10, 20);
+			String layer = "Layer";
+			if (layers != null) {
+				int number = layers.findHeight(currentZ);
+				if (number >= 0)
+					layer += " " + (number + 1) + " of " + layers.size();
+			}
+			g.drawString(layer + " at z: " + currentZ + "mm", 10, 20);
 
 			// draw our mouse position
 			double mouseRealX = convertPointXToRealX(mouseX);
@@ -34,6 +34,7 @@ import replicatorg.app.exceptions.BuildFailureException;
 import replicatorg.app.exceptions.GCodeException;
 import replicatorg.machine.model.Axis;
 import replicatorg.machine.model.MachineModel;
+import replicatorg.model.GCodeStream;
 
 // import org.xml.sax.*;
 // import org.xml.sax.helpers.XMLReaderFactory;
@@ -54,6 +55,11 @@ public interface Driver {
 	 */
 	public void parse(String cmd);
 
+	/**
+	 * load a precompiled command from a compiled gcode stream.
+	 */
+	public void parse(GCodeStream.Cursor cursor);
+
 	/**
 	 * get our parser object
 	 */
@@ -74,6 +80,36 @@ public interface Driver {
 	 */
 	public void waitUntilBufferEmpty();
 
+	/**
+	 * Wait until the machine has finished every command sent to it. The
+	 * machine is only asked once it could have finished, going by
+	 * getEstimatedRemainingMillis().
+	 * 
+	 * @param timeout
+	 *            the longest to wait in ms, or 0 to wait as long as it takes
+	 * @return true if the machine finished, false if the timeout passed
+	 */
+	public boolean waitUntilFinished(long timeout) throws InterruptedException;
+
+	/**
+	 * @return how long the machine should take to finish the commands sent
+	 * to it, in ms, or -1 if the driver can't tell.
+	 */
+	public long getEstimatedRemainingMillis();
+
+	/**
+	 * @return how many commands have been sent to the machine.
+	 */
+	public long getCommandsSent();
+
+	/**
+	 * @return how many of the commands sent the machine has answered. They
+	 * are answered in order, so once this reaches an earlier count from
+	 * getCommandsSent(), every command sent before then was received.
+	 * Drivers that never hear back from a machine report 0 for both.
+	 */
+	public long getCommandsAcknowledged();
+
 	/**
 	 * do we have any errors? this method handles them.
 	 */
@@ -166,6 +202,13 @@ public interface Driver {
 	 */
 	public double getCurrentFeedrate();
 
+	/**
+	 * sets the feedrate in mm/minute for the next queued point only, as
+	 * worked out by the motion planner; it is used as is, without being
+	 * limited to the slowest moving axis.
+	 */
+	public void setPlannedFeedrate(double feed);
+
 	/**
 	 * various homing functions
 	 */
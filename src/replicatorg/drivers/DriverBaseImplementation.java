@@ -34,6 +34,7 @@ import replicatorg.app.exceptions.BuildFailureException;
 import replicatorg.app.exceptions.GCodeException;
 import replicatorg.machine.model.Axis;
 import replicatorg.machine.model.MachineModel;
+import replicatorg.model.GCodeStream;
 
 public class DriverBaseImplementation implements Driver {
 	// our gcode parser
@@ -64,6 +65,9 @@ public class DriverBaseImplementation implements Driver {
 	// how fast are we moving in mm/minute
 	private double currentFeedrate;
 
+	// true if currentFeedrate came from the motion planner.
+	private boolean feedratePlanned = false;
+
 	// what is our mode of positioning?
 	protected int positioningMode = 0;
 
@@ -71,6 +75,11 @@ public class DriverBaseImplementation implements Driver {
 
 	static public int INCREMENTAL = 1;
 
+	// shortest and longest time between asking the machine whether it's done.
+	private static final long MIN_POLL_MILLIS = 10;
+
+	private static final long MAX_POLL_MILLIS = 100;
+
 	/**
 	 * Creates the driver object.
 	 */
@@ -123,8 +132,12 @@ public class DriverBaseImplementation implements Driver {
 	}
 
 	public void checkErrors() throws BuildFailureException {
-		if (error.length() > 0)
-			throw new BuildFailureException(error);
+		if (error.length() > 0) {
+			// an error fails one build, not every one after it.
+			String e = error;
+			error = "";
+			throw new BuildFailureException(e);
+		}
 	}
 
 	/***************************************************************************
@@ -138,6 +151,13 @@ public class DriverBaseImplementation implements Driver {
 		parser.parse(cmd);
 	}
 
+	public void parse(GCodeStream.Cursor cursor) {
+		// reset our values.
+		moveLength = 0.0;
+
+		parser.parse(cursor);
+	}
+
 	public GCodeParser getParser() {
 		return parser;
 	}
@@ -167,14 +187,60 @@ public class DriverBaseImplementation implements Driver {
 	 */
 	public void waitUntilBufferEmpty() {
 		// sleep until we're empty.
+		long poll = MIN_POLL_MILLIS;
 		while (!isBufferEmpty()) {
+			long remaining = getEstimatedRemainingMillis();
 			try {
-				Thread.sleep(50);
-			} catch (Exception e) {
+				Thread.sleep(remaining > 0 ? remaining : poll);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
 			}
+			poll = Math.min(poll * 2, 50);
 		}
 	}
 
+	public boolean waitUntilFinished(long timeout) throws InterruptedException {
+		long deadline = timeout > 0 ? System.currentTimeMillis() + timeout : Long.MAX_VALUE;
+		long poll = MIN_POLL_MILLIS;
+		while (true) {
+			long remaining = getEstimatedRemainingMillis();
+			long wait;
+			if (remaining > 0) {
+				// it can't be done before then, so don't ask.
+				wait = remaining;
+				poll = MIN_POLL_MILLIS;
+			} else {
+				if (isFinished()) return true;
+				if (remaining < 0) {
+					wait = MAX_POLL_MILLIS;
+				} else {
+					// it should be done by now; ask more and more slowly.
+					wait = poll;
+					poll = Math.min(poll * 2, MAX_POLL_MILLIS);
+				}
+			}
+			long now = System.currentTimeMillis();
+			if (now >= deadline) return false;
+			Thread.sleep(Math.min(wait, deadline - now));
+		}
+	}
+
+	/**
+	 * Without a model of the machine's queue we can't tell.
+	 */
+	public long getEstimatedRemainingMillis() {
+		return -1;
+	}
+
+	public long getCommandsSent() {
+		return 0;
+	}
+
+	public long getCommandsAcknowledged() {
+		return 0;
+	}
+
 	/***************************************************************************
 	 * Firmware information functions
 	 **************************************************************************/
@@ -209,6 +275,14 @@ public class DriverBaseImplementation implements Driver {
 		currentPosition = p;
 	}
 
+	/**
+	 * Record where the machine is without telling it, as after a move that
+	 * takes it there anyway.
+	 */
+	protected void setInternalPosition(Point3d p) {
+		currentPosition = p;
+	}
+
 	/**
 	 * Indicate that the currently maintained position may no longer be the machine's position,
 	 * and that the machine should be queried for its actual location.
@@ -254,7 +328,7 @@ public class DriverBaseImplementation implements Driver {
 		queuePoint(p, feedrate);
 
 		// save it as our current position now.
-		setCurrentPosition(p);
+		setInternalPosition(p);
 	}
 
 	protected void queuePoint(Point3d p, Double feedrate) {
@@ -270,6 +344,12 @@ public class DriverBaseImplementation implements Driver {
 	 */
 	public void setFeedrate(double feed) {
 		currentFeedrate = feed;
+		feedratePlanned = false;
+	}
+
+	public void setPlannedFeedrate(double feed) {
+		currentFeedrate = feed;
+		feedratePlanned = true;
 	}
 
 	/**
@@ -282,6 +362,10 @@ public class DriverBaseImplementation implements Driver {
 	public double getSafeFeedrate(Point3d delta) {
 		double feedrate = getCurrentFeedrate();
 
+		// the planner has already limited each axis.
+		if (feedratePlanned && feedrate > 0)
+			return feedrate;
+
 		Point3d maxFeedrates = machine.getMaximumFeedrates();
 
 		// System.out.println("max feedrates: " + maxFeedrates);
@@ -25,25 +25,69 @@ package replicatorg.drivers;
 
 import java.awt.geom.Rectangle2D;
 
-import replicatorg.app.exceptions.GCodeException;
 import javax.vecmath.Point3d;
 
+import replicatorg.app.exceptions.GCodeException;
+import replicatorg.machine.model.MachineModel;
+
+/**
+ * Estimates a build's time and bounds. Moves go straight from the parser to a
+ * MotionEstimator, which times them the way the machine accelerates through
+ * them; the parser doesn't merge or plan them first.
+ */
 public class EstimationDriver extends DriverBaseImplementation {
-	// build time in milliseconds
-	private double buildTime = 0.0;
+	private MotionEstimator motion;
 
-	private Rectangle2D.Double bounds = new Rectangle2D.Double();
+	// where moves go instead, if they are being kept to be timed later.
+	private MotionEstimator.Recording recording;
+
+	// the XY extent of every point, as min x, min y, max x, max y; it always
+	// takes in the origin.
+	private final double[] extent = new double[4];
 	
 	public EstimationDriver() {
 		super();
 
-		buildTime = 0.0;
+		getParser().disablePlanning();
+		motion = MotionEstimator.create(getMachine());
+	}
+
+	public void setMachine(MachineModel m) {
+		super.setMachine(m);
+		motion = MotionEstimator.create(m);
 	}
 
-	public Rectangle2D.Double getBounds() { return bounds; }
+	public Rectangle2D.Double getBounds() {
+		return new Rectangle2D.Double(extent[0], extent[1],
+				extent[2] - extent[0], extent[3] - extent[1]);
+	}
+
+	/**
+	 * @return the XY extent of every point as { min x, min y, max x, max y },
+	 * which unlike the bounds can be combined with others without rounding.
+	 */
+	public double[] getExtent() { return extent.clone(); }
+
+	/**
+	 * @return the estimator timing this driver's moves, whose time doesn't yet
+	 * count the last few moves.
+	 */
+	public MotionEstimator getMotion() { return motion; }
+
+	/**
+	 * Keep moves in the given recording rather than timing them, or time them
+	 * again if it is null.
+	 */
+	public void setRecording(MotionEstimator.Recording recording) {
+		this.recording = recording;
+	}
 	
 	public void delay(long millis) {
-		buildTime += (double) millis / 1000;
+		// dwells wait for the moves before them to finish.
+		if (recording != null)
+			recording.dwell(millis);
+		else
+			motion.dwell(millis);
 	}
 
 	public void execute() throws InterruptedException {
@@ -55,24 +99,42 @@ public class EstimationDriver extends DriverBaseImplementation {
 		}
 	}
 
-	protected void queuePoint(Point3d p, Double feedrate) {
-		// our speed is feedrate * distance * 60000 (milliseconds in 1 minute)
-		// feedrate is mm per minute
-		double millis = getMoveLength() / feedrate * 60000.0;
-
-		bounds.add(p.x,p.y);
-		
-		// add it in!
-		if (millis > 0) {
-			buildTime = buildTime + millis;
-			// System.out.println(getMoveLength() + "mm at " + feedrate + "
-			// takes " + Math.round(millis) + " millis (" + buildTime + "
-			// total).");
-		}
+	public void queuePoint(Point3d p) {
+		if (recording != null)
+			recording.add(p.x, p.y, p.z, getCurrentFeedrate());
+		else
+			motion.add(p.x, p.y, p.z, getCurrentFeedrate(), getMoveTag(p));
+		if (p.x < extent[0]) extent[0] = p.x;
+		if (p.y < extent[1]) extent[1] = p.y;
+		if (p.x > extent[2]) extent[2] = p.x;
+		if (p.y > extent[3]) extent[3] = p.y;
+		super.setCurrentPosition(p);
+	}
+
+	/**
+	 * @return the tag the estimator's listener is given with the move to the
+	 * given point, from where the driver is now; moves being recorded aren't
+	 * tagged.
+	 */
+	protected int getMoveTag(Point3d p) {
+		return 0;
+	}
+
+	public void setCurrentPosition(Point3d p) {
+		super.setCurrentPosition(p);
+		if (recording != null)
+			recording.setPosition(p.x, p.y, p.z);
+		else
+			motion.setPosition(p.x, p.y, p.z);
 	}
 
+	/**
+	 * @return the build time in ms, once the machine has come to rest after
+	 * the last move.
+	 */
 	public double getBuildTime() {
-		return buildTime;
+		motion.flush();
+		return motion.getTime();
 	}
 
 	static public String getBuildTimeString(double tempTime) {
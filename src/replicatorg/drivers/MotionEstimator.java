@@ -0,0 +1,425 @@
+package replicatorg.drivers;
+
+import java.util.Arrays;
+
+import javax.vecmath.Point3d;
+
+import replicatorg.app.Base;
+import replicatorg.machine.model.MachineModel;
+
+/**
+ * Works out how long a run of moves takes on a machine that accelerates.
+ * Each move follows a trapezoidal profile: it speeds up from its entry speed
+ * towards its nominal one, cruises, and slows for its exit. The nominal
+ * speed is the requested feedrate cut down so that no axis goes faster than
+ * its maximum, the acceleration is the most every moving axis allows, and
+ * the speed through each corner is limited by how much each axis' speed
+ * changes there, the same way the MotionPlanner limits it.
+ *
+ * The last few moves are held back so that a move's exit speed is known
+ * before it is timed. Moves are kept in parallel arrays used as a ring, so
+ * nothing is allocated per move; run this class for a benchmark.
+ */
+public class MotionEstimator {
+
+	// fields of a held move, and how many there are.
+	private static final int X = 0, Y = 1, Z = 2, UX = 3, UY = 4, UZ = 5,
+		LENGTH = 6, NOMINAL = 7, ACCELERATION = 8, MAX_ENTRY = 9,
+		// the limits found looking back from the end...
+		ENTRY_LIMIT = 10, EXIT_LIMIT = 11,
+		// ...and the speeds found looking forward from the start.
+		ENTRY = 12, EXIT = 13,
+		// what the caller said the move was part of.
+		TAG = 14, FIELDS = 15;
+
+	/**
+	 * Told how long each move took, as it is timed.
+	 */
+	public interface MoveListener {
+		/**
+		 * @param tag
+		 *            the tag the move was added with
+		 * @param millis
+		 *            how long the move took
+		 */
+		void moveTimed(int tag, double millis);
+	}
+
+	/**
+	 * The moves held back and the position after them, so that moves read
+	 * later can be timed just as if they had followed without a break.
+	 */
+	public static class State {
+		private final double[] data;
+
+		State(double[] data) {
+			this.data = data;
+		}
+
+		public boolean equals(Object o) {
+			return o instanceof State && Arrays.equals(data, ((State) o).data);
+		}
+
+		public int hashCode() {
+			return Arrays.hashCode(data);
+		}
+	}
+
+	/**
+	 * Moves, dwells and position changes kept to be timed later, so that
+	 * stretches of a file can be read in parallel and still timed in order by
+	 * one estimator, just as if it had been given them directly.
+	 */
+	public static class Recording {
+		private static final double MOVE = 0, DWELL = 1, POSITION = 2;
+
+		// five doubles each: what it is, then its values.
+		private double[] events = new double[5 * 256];
+
+		private int size = 0;
+
+		public void add(double x, double y, double z, double feedrate) {
+			record(MOVE, x, y, z, feedrate);
+		}
+
+		public void dwell(double millis) {
+			record(DWELL, millis, 0, 0, 0);
+		}
+
+		public void setPosition(double x, double y, double z) {
+			record(POSITION, x, y, z, 0);
+		}
+
+		private void record(double event, double a, double b, double c, double d) {
+			if (size == events.length) {
+				double[] bigger = new double[events.length * 2];
+				System.arraycopy(events, 0, bigger, 0, size);
+				events = bigger;
+			}
+			events[size] = event;
+			events[size + 1] = a;
+			events[size + 2] = b;
+			events[size + 3] = c;
+			events[size + 4] = d;
+			size += 5;
+		}
+
+		/**
+		 * Give everything recorded to the estimator, in the order recorded.
+		 */
+		public void replay(MotionEstimator estimator) {
+			for (int i = 0; i < size; i += 5) {
+				double event = events[i];
+				if (event == MOVE)
+					estimator.add(events[i + 1], events[i + 2], events[i + 3], events[i + 4]);
+				else if (event == DWELL)
+					estimator.dwell(events[i + 1]);
+				else
+					estimator.setPosition(events[i + 1], events[i + 2], events[i + 3]);
+			}
+		}
+	}
+
+	// all speeds are in mm/minute, accelerations in mm/minute^2.
+	private final double[] maxFeedrate = new double[3];
+
+	private final double[] maxAcceleration = new double[3];
+
+	private final double jerkFraction;
+
+	// the fastest requested feedrate is used where none is given.
+	private final double defaultFeedrate;
+
+	// held moves, FIELDS doubles each; the oldest starts at head.
+	private final double[] moves;
+
+	private final int lookahead;
+
+	private int head = 0;
+
+	private int count = 0;
+
+	// where the newest move ends.
+	private double px, py, pz;
+
+	// ms taken by the moves and dwells already timed.
+	private double time = 0;
+
+	private long movesTimed = 0;
+
+	private MoveListener listener;
+
+	/**
+	 * @param maxFeedrates
+	 *            each axis' maximum feedrate in mm/minute; zero for none
+	 * @param maxAccelerations
+	 *            each axis' maximum acceleration in mm/s^2; zero for none,
+	 *            i.e. instant changes of speed
+	 * @param jerkFraction
+	 *            the fraction of an axis' maximum feedrate it can change by
+	 *            instantly
+	 * @param lookahead
+	 *            how many moves are held back before the oldest is timed
+	 */
+	public MotionEstimator(Point3d maxFeedrates, Point3d maxAccelerations,
+			double jerkFraction, int lookahead) {
+		maxFeedrate[0] = maxFeedrates.x;
+		maxFeedrate[1] = maxFeedrates.y;
+		maxFeedrate[2] = maxFeedrates.z;
+		maxAcceleration[0] = maxAccelerations.x * 60 * 60;
+		maxAcceleration[1] = maxAccelerations.y * 60 * 60;
+		maxAcceleration[2] = maxAccelerations.z * 60 * 60;
+		this.jerkFraction = jerkFraction;
+		this.lookahead = Math.max(1, lookahead);
+		moves = new double[(this.lookahead + 1) * FIELDS];
+		double fastest = Math.max(maxFeedrate[0], Math.max(maxFeedrate[1], maxFeedrate[2]));
+		defaultFeedrate = Math.max(fastest, 1);
+	}
+
+	/**
+	 * @return an estimator for the given machine. An axis without a
+	 * maxacceleration in machines.xml is taken to accelerate at
+	 * estimate.acceleration (mm/s^2, 1000 by default); corners and look-ahead
+	 * follow the planner's preferences.
+	 */
+	public static MotionEstimator create(MachineModel machine) {
+		double fallback = Base.preferences.getDouble("estimate.acceleration", 1000);
+		Point3d accelerations = new Point3d(machine.getMaximumAccelerations());
+		if (accelerations.x <= 0) accelerations.x = fallback;
+		if (accelerations.y <= 0) accelerations.y = fallback;
+		if (accelerations.z <= 0) accelerations.z = fallback;
+		return new MotionEstimator(machine.getMaximumFeedrates(), accelerations,
+				Base.preferences.getDouble("planner.jerk_fraction", 0.2),
+				Math.max(Base.preferences.getInt("planner.lookahead", 16), 2));
+	}
+
+	/**
+	 * Tell the given listener how long each move takes, or nobody if null.
+	 */
+	public void setListener(MoveListener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Add a move from the end of the last one to the given point.
+	 *
+	 * @param feedrate
+	 *            the requested feedrate in mm/minute, or zero for the fastest
+	 */
+	public void add(double x, double y, double z, double feedrate) {
+		add(x, y, z, feedrate, 0);
+	}
+
+	/**
+	 * Add a move with a tag, which is handed back to the listener with the
+	 * time the move took, e.g. to total the time spent on each layer.
+	 */
+	public void add(double x, double y, double z, double feedrate, int tag) {
+		double dx = x - px, dy = y - py, dz = z - pz;
+		double length = Math.sqrt(dx * dx + dy * dy + dz * dz);
+		if (length == 0) return;
+		px = x;
+		py = y;
+		pz = z;
+
+		int m = slot(count);
+		double ux = dx / length, uy = dy / length, uz = dz / length;
+		double nominal = feedrate > 0 ? feedrate : defaultFeedrate;
+		double acceleration = Double.MAX_VALUE;
+		for (int i = 0; i < 3; i++) {
+			double u = Math.abs(i == 0 ? ux : i == 1 ? uy : uz);
+			if (u == 0) continue;
+			if (maxFeedrate[i] > 0)
+				nominal = Math.min(nominal, maxFeedrate[i] / u);
+			if (maxAcceleration[i] > 0)
+				acceleration = Math.min(acceleration, maxAcceleration[i] / u);
+		}
+		moves[m + X] = x;
+		moves[m + Y] = y;
+		moves[m + Z] = z;
+		moves[m + UX] = ux;
+		moves[m + UY] = uy;
+		moves[m + UZ] = uz;
+		moves[m + LENGTH] = length;
+		moves[m + NOMINAL] = nominal;
+		moves[m + ACCELERATION] = acceleration;
+		moves[m + TAG] = tag;
+		int prev = count == 0 ? -1 : slot(count - 1);
+		double maxEntry = Math.min(nominal, getJunctionSpeed(prev, m));
+		if (prev >= 0)
+			maxEntry = Math.min(maxEntry, moves[prev + NOMINAL]);
+		moves[m + MAX_ENTRY] = maxEntry;
+		count++;
+
+		plan();
+		if (count > lookahead)
+			release();
+	}
+
+	/**
+	 * Time every held move, ending at rest.
+	 */
+	public void flush() {
+		while (count > 0)
+			release();
+	}
+
+	/**
+	 * Come to rest and wait.
+	 */
+	public void dwell(double millis) {
+		flush();
+		time += millis;
+	}
+
+	/**
+	 * Start again from the given position without a move, e.g. after homing.
+	 * Held moves are timed first.
+	 */
+	public void setPosition(double x, double y, double z) {
+		if (x == px && y == py && z == pz) return;
+		flush();
+		px = x;
+		py = y;
+		pz = z;
+	}
+
+	/**
+	 * @return the ms taken by every move timed so far; held moves aren't
+	 * counted until they are released or flushed.
+	 */
+	public double getTime() {
+		return time;
+	}
+
+	public long getMovesTimed() {
+		return movesTimed;
+	}
+
+	/**
+	 * @return the held moves and position, for carrying on from in another
+	 * estimator of the same machine.
+	 */
+	public State getState() {
+		double[] data = new double[3 + count * FIELDS];
+		data[0] = px;
+		data[1] = py;
+		data[2] = pz;
+		for (int i = 0; i < count; i++)
+			System.arraycopy(moves, slot(i), data, 3 + i * FIELDS, FIELDS);
+		return new State(data);
+	}
+
+	/**
+	 * Carry on from a state taken from another estimator, as if the moves
+	 * that led to it had been added here. The time so far isn't changed.
+	 */
+	public void setState(State state) {
+		double[] data = state.data;
+		px = data[0];
+		py = data[1];
+		pz = data[2];
+		head = 0;
+		count = (data.length - 3) / FIELDS;
+		System.arraycopy(data, 3, moves, 0, count * FIELDS);
+	}
+
+	private int slot(int i) {
+		int j = head + i;
+		if (j > lookahead) j -= lookahead + 1;
+		return j * FIELDS;
+	}
+
+	/**
+	 * The fastest speed at which the machine can go from one move into the
+	 * next; -1 on either side means being at rest.
+	 */
+	private double getJunctionSpeed(int prev, int next) {
+		double speed = Double.MAX_VALUE;
+		for (int i = 0; i < 3; i++) {
+			double change = Math.abs((next < 0 ? 0 : moves[next + UX + i])
+					- (prev < 0 ? 0 : moves[prev + UX + i]));
+			if (change > 0 && maxFeedrate[i] > 0)
+				speed = Math.min(speed, maxFeedrate[i] * jerkFraction / change);
+		}
+		return speed;
+	}
+
+	private static double getReachableSpeed(double from, double acceleration,
+			double length) {
+		if (acceleration == Double.MAX_VALUE) return Double.MAX_VALUE;
+		return Math.sqrt(from * from + 2 * acceleration * length);
+	}
+
+	/**
+	 * Find each held move's entry and exit speeds. Adding a move only ever
+	 * raises the limits of the ones before it, so looking back stops at the
+	 * first move whose entry limit didn't change; nothing before it can have.
+	 */
+	private void plan() {
+		// backward: be able to stop after the last move.
+		double exit = getJunctionSpeed(slot(count - 1), -1);
+		int from = 0;
+		for (int i = count - 1; i >= 0; i--) {
+			int m = slot(i);
+			moves[m + EXIT_LIMIT] = Math.min(exit, moves[m + NOMINAL]);
+			double entry = Math.min(moves[m + MAX_ENTRY], getReachableSpeed(
+					moves[m + EXIT_LIMIT], moves[m + ACCELERATION], moves[m + LENGTH]));
+			if (i < count - 1 && entry == moves[m + ENTRY_LIMIT]) {
+				from = i;
+				break;
+			}
+			moves[m + ENTRY_LIMIT] = entry;
+			exit = entry;
+		}
+		// forward: don't enter a move faster than the one before could reach.
+		double entry = from == 0 ? Double.MAX_VALUE : moves[slot(from - 1) + EXIT];
+		for (int i = from; i < count; i++) {
+			int m = slot(i);
+			moves[m + ENTRY] = Math.min(moves[m + ENTRY_LIMIT], entry);
+			moves[m + EXIT] = Math.min(moves[m + EXIT_LIMIT], getReachableSpeed(
+					moves[m + ENTRY], moves[m + ACCELERATION], moves[m + LENGTH]));
+			entry = moves[m + EXIT];
+		}
+	}
+
+	private void release() {
+		int m = slot(0);
+		double millis = getDuration(m) * 60000.0;
+		time += millis;
+		movesTimed++;
+		if (listener != null)
+			listener.moveTimed((int) moves[m + TAG], millis);
+		if (++head > lookahead) head = 0;
+		count--;
+		// the next move can't start any faster than this one ended; it was
+		// planned that way, but later planning must keep to it too.
+		if (count > 0) {
+			int next = slot(0);
+			moves[next + MAX_ENTRY] = Math.min(moves[next + MAX_ENTRY], moves[m + EXIT]);
+			moves[next + ENTRY_LIMIT] = Math.min(moves[next + ENTRY_LIMIT], moves[m + EXIT]);
+		}
+	}
+
+	/**
+	 * @return the time the move takes in minutes.
+	 */
+	private double getDuration(int m) {
+		double length = moves[m + LENGTH];
+		double cruise = moves[m + NOMINAL];
+		double a = moves[m + ACCELERATION];
+		if (a == Double.MAX_VALUE) return length / cruise;
+		double entry = Math.min(moves[m + ENTRY], cruise);
+		double exit = Math.min(moves[m + EXIT], cruise);
+		double accelLength = (cruise * cruise - entry * entry) / (2 * a);
+		double decelLength = (cruise * cruise - exit * exit) / (2 * a);
+		if (accelLength + decelLength > length) {
+			// never reaches the nominal speed
+			cruise = Math.sqrt((2 * a * length + entry * entry + exit * exit) / 2);
+			cruise = Math.max(cruise, Math.max(entry, exit));
+			return Math.max((cruise - entry) / a + (cruise - exit) / a, length / cruise);
+		}
+		return (cruise - entry) / a + (cruise - exit) / a
+				+ (length - accelLength - decelLength) / cruise;
+	}
+}
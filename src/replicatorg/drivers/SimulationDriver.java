@@ -27,6 +27,7 @@ import java.awt.geom.Rectangle2D;
 
 import javax.vecmath.Point3d;
 
+import replicatorg.app.LayerIndex;
 import replicatorg.app.exceptions.GCodeException;
 import replicatorg.app.ui.SimulationWindow;
 import replicatorg.app.ui.SimulationWindow2D;
@@ -41,6 +42,14 @@ public class SimulationDriver extends DriverBaseImplementation {
 	public void setSimulationBounds(Rectangle2D.Double bounds) {
 		simulation.setSimulationBounds(bounds);
 	}
+
+	/**
+	 * Tell the simulation where the build's layers are, or that it doesn't
+	 * know if null.
+	 */
+	public void setLayers(LayerIndex layers) {
+		simulation.setLayers(layers);
+	}
 	
 	public boolean isSimulating() {
 		return simulation != null;
@@ -0,0 +1,192 @@
+package replicatorg.drivers.gen3;
+
+/**
+ * Keeps track of how much motion is queued up on the firmware, based on the
+ * durations of the moves we have sent it, so that the driver can wait for
+ * space to free up instead of blindly resending packets into a full buffer.
+ *
+ * The firmware executes its queue in order, so each accepted command is
+ * recorded with the time it should finish. When the firmware reports a
+ * buffer overflow, the number of commands still expected to be in its queue
+ * tells us roughly how many it can hold; from then on the driver holds back
+ * new moves until the oldest one should have finished.
+ */
+public class FlowController {
+	private static final int MAX_TRACKED = 1024;
+
+	// shortest and longest we'll back off after an overflow, in millis.
+	private static final long MIN_BACKOFF = 1;
+
+	private static final long MAX_BACKOFF = 100;
+
+	// used when we have no idea what the firmware is doing.
+	private static final long DEFAULT_BACKOFF = 25;
+
+	// estimated finish time of each queued command, in nanos; a ring buffer.
+	private final long[] finishTimes = new long[MAX_TRACKED];
+
+	private int head = 0;
+
+	private int count = 0;
+
+	// when the last queued command should finish.
+	private long queueEnd = 0;
+
+	// how many commands the firmware seems to be able to hold, or -1.
+	private int capacity = -1;
+
+	// statistics
+	private long overflows = 0;
+
+	private long retries = 0;
+
+	private long heldBack = 0;
+
+	private long backoffMillis = 0;
+
+	/**
+	 * Record that a command taking the given time was accepted by the
+	 * firmware.
+	 */
+	public synchronized void commandQueued(long durationMicros) {
+		long now = System.nanoTime();
+		purge(now);
+		if (count == 0 || queueEnd < now)
+			queueEnd = now;
+		queueEnd += Math.max(0, durationMicros) * 1000;
+
+		if (count == MAX_TRACKED) {
+			head = (head + 1) % MAX_TRACKED;
+			count--;
+		}
+		finishTimes[(head + count) % MAX_TRACKED] = queueEnd;
+		count++;
+	}
+
+	/**
+	 * Drop commands that should have finished by now.
+	 */
+	private void purge(long now) {
+		while (count > 0 && finishTimes[head] <= now) {
+			head = (head + 1) % MAX_TRACKED;
+			count--;
+		}
+	}
+
+	/**
+	 * @return the number of milliseconds until the oldest queued command
+	 *         should finish, or 0 if nothing is queued.
+	 */
+	private long millisUntilNextFinish(long now) {
+		if (count == 0)
+			return 0;
+		return (finishTimes[head] - now + 999999) / 1000000;
+	}
+
+	/**
+	 * Returns how long to wait before sending another command so that it
+	 * arrives just as the firmware has room for it.
+	 */
+	public synchronized long getSendDelay() {
+		if (capacity <= 0)
+			return 0;
+		long now = System.nanoTime();
+		purge(now);
+		if (count < capacity)
+			return 0;
+		heldBack++;
+		long wait = Math.min(millisUntilNextFinish(now), MAX_BACKOFF);
+		backoffMillis += wait;
+		return wait;
+	}
+
+	/**
+	 * Record a buffer overflow and learn from it.
+	 *
+	 * @return the number of milliseconds to wait before resending.
+	 */
+	public synchronized long bufferOverflowed() {
+		overflows++;
+		long now = System.nanoTime();
+		purge(now);
+
+		long wait;
+		if (count == 0) {
+			wait = DEFAULT_BACKOFF;
+		} else {
+			// the firmware was full with this many commands queued.
+			capacity = count;
+			wait = Math.max(MIN_BACKOFF, Math.min(MAX_BACKOFF,
+					millisUntilNextFinish(now)));
+		}
+		backoffMillis += wait;
+		return wait;
+	}
+
+	/**
+	 * Record that a packet had to be sent again.
+	 */
+	public synchronized void packetRetried() {
+		retries++;
+	}
+
+	/**
+	 * Forget everything we think is queued, e.g. after the firmware was
+	 * stopped or reset.
+	 */
+	public synchronized void reset() {
+		head = 0;
+		count = 0;
+		queueEnd = 0;
+	}
+
+	/**
+	 * @return the estimated number of commands waiting on the firmware.
+	 */
+	public synchronized int getQueuedCount() {
+		purge(System.nanoTime());
+		return count;
+	}
+
+	/**
+	 * @return the estimated time until the firmware's queue runs dry, in
+	 *         milliseconds.
+	 */
+	public synchronized long getQueuedMillis() {
+		long now = System.nanoTime();
+		purge(now);
+		if (count == 0)
+			return 0;
+		return (queueEnd - now) / 1000000;
+	}
+
+	/**
+	 * @return the number of commands the firmware seems to hold, or -1 if we
+	 *         haven't filled it up yet.
+	 */
+	public synchronized int getEstimatedCapacity() {
+		return capacity;
+	}
+
+	public synchronized long getOverflowCount() {
+		return overflows;
+	}
+
+	public synchronized long getRetryCount() {
+		return retries;
+	}
+
+	/**
+	 * @return how many times a command was held back to avoid an overflow.
+	 */
+	public synchronized long getHeldBackCount() {
+		return heldBack;
+	}
+
+	/**
+	 * @return the total time spent waiting on the firmware, in milliseconds.
+	 */
+	public synchronized long getBackoffMillis() {
+		return backoffMillis;
+	}
+}
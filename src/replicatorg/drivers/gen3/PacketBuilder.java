@@ -5,6 +5,16 @@ import replicatorg.app.tools.IButtonCrc;
 public class PacketBuilder implements PacketConstants {
 	final static int MAX_PACKET_LENGTH = 256;
 
+	/**
+	 * One builder per thread, so that building a packet doesn't allocate a
+	 * fresh buffer every time. See obtain().
+	 */
+	private static final ThreadLocal<PacketBuilder> builders = new ThreadLocal<PacketBuilder>() {
+		protected PacketBuilder initialValue() {
+			return new PacketBuilder();
+		}
+	};
+
 	/**
 	 * A class for building a new packet to send down the wire to the
 	 * Sanguino3G.
@@ -15,7 +25,8 @@ public class PacketBuilder implements PacketConstants {
 	// and packet payload length.
 	int idx = 2;
 
-	IButtonCrc crc = new IButtonCrc();
+	// the crc of the payload so far.
+	int crc = 0;
 
 	/**
 	 * Start building a new command packet.
@@ -26,7 +37,35 @@ public class PacketBuilder implements PacketConstants {
 	 *            the command identifier for this packet.
 	 */
 	PacketBuilder(int command) {
+		reset(command);
+	}
+
+	private PacketBuilder() {
+	}
+
+	/**
+	 * Get this thread's builder, reset to start a new packet. The builder is
+	 * reused by the next call on the same thread, so finish the packet with
+	 * getPacket() before obtaining another one.
+	 * 
+	 * @param command
+	 *            the command identifier for this packet.
+	 */
+	static PacketBuilder obtain(int command) {
+		PacketBuilder pb = builders.get();
+		pb.reset(command);
+		return pb;
+	}
+
+	/**
+	 * Throw away the current packet and start a new one.
+	 * 
+	 * @param command
+	 *            the command identifier for the new packet.
+	 */
+	void reset(int command) {
 		idx = 2;
+		crc = 0;
 		data[0] = START_BYTE;
 		// data[1] = length; // just to avoid confusion
 		add8((byte) command);
@@ -40,7 +79,7 @@ public class PacketBuilder implements PacketConstants {
 	 */
 	void add8(int v) {
 		data[idx++] = (byte) v;
-		crc.update((byte) v);
+		crc = IButtonCrc.update(crc, (byte) v);
 	}
 
 	/**
@@ -65,17 +104,26 @@ public class PacketBuilder implements PacketConstants {
 		add16((int) ((v >> 16) & 0xffff));
 	}
 
+	/**
+	 * Fill in the length and crc bytes.
+	 * 
+	 * @return the length of the complete packet.
+	 */
+	private int finish() {
+		data[idx] = (byte) crc;
+		data[1] = (byte) (idx - 2); // len does not count packet header
+		return idx + 1;
+	}
+
 	/**
 	 * Complete the packet.
 	 * 
 	 * @return a byte array representing the completed packet.
 	 */
 	byte[] getPacket() {
-		data[idx] = crc.getCrc();
-		data[1] = (byte) (idx - 2); // len does not count packet header
-		byte[] rv = new byte[idx + 1];
-		System.arraycopy(data, 0, rv, 0, idx + 1);
+		int length = finish();
+		byte[] rv = new byte[length];
+		System.arraycopy(data, 0, rv, 0, length);
 		return rv;
 	}
-
 }
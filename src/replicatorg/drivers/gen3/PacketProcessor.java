@@ -21,18 +21,22 @@ public class PacketProcessor implements PacketConstants {
 
 	int payloadIdx = 0;
 
-	byte[] payload;
+	// reused for every packet; the length byte limits payloads to 255 bytes.
+	byte[] payload = new byte[256];
 
 	byte targetCrc = 0;
 
-	IButtonCrc crc;
+	int crc = 0;
 
 	/**
-	 * Reset the packet's state. (The crc is (re-)generated on the length byte
-	 * and thus doesn't need to be reset.(
+	 * Reset the packet's state, so that this processor can be used for the
+	 * next packet.
 	 */
 	public void reset() {
 		packetState = PacketState.START;
+		payloadLength = -1;
+		payloadIdx = 0;
+		crc = 0;
 	}
 
 	/**
@@ -41,7 +45,9 @@ public class PacketProcessor implements PacketConstants {
 	 * @return A valid PacketResponse object
 	 */
 	public PacketResponse getResponse() {
-		PacketResponse pr = new PacketResponse(payload);
+		byte[] rv = new byte[payloadLength];
+		System.arraycopy(payload, 0, rv, 0, payloadLength);
+		PacketResponse pr = new PacketResponse(rv);
 
 		pr.printDebug();
 
@@ -80,16 +86,17 @@ public class PacketProcessor implements PacketConstants {
 			}
 
 			payloadLength = ((int) b) & 0xFF;
-			payload = new byte[payloadLength];
-			crc = new IButtonCrc();
-			packetState = PacketState.PAYLOAD;
+			payloadIdx = 0;
+			crc = 0;
+			packetState = payloadLength == 0 ? PacketState.CRC
+					: PacketState.PAYLOAD;
 			break;
 
 		case PAYLOAD:
 			// sanity check
 			if (payloadIdx < payloadLength) {
 				payload[payloadIdx++] = b;
-				crc.update(b);
+				crc = IButtonCrc.update(crc, b);
 			}
 			if (payloadIdx >= payloadLength) {
 				packetState = PacketState.CRC;
@@ -103,9 +110,9 @@ public class PacketProcessor implements PacketConstants {
 				Base.logger.log(Level.FINER,"Target CRC: "
 						+ Integer.toHexString((int) targetCrc & 0xff)
 						+ " - expected CRC: "
-						+ Integer.toHexString((int) crc.getCrc() & 0xff));
+						+ Integer.toHexString(crc));
 			}
-			if (crc.getCrc() != targetCrc) {
+			if ((byte) crc != targetCrc) {
 				throw new java.lang.RuntimeException("CRC mismatch on reply");
 			}
 			return true;
@@ -26,6 +26,7 @@ package replicatorg.drivers.gen3;
 import java.io.UnsupportedEncodingException;
 import java.util.Arrays;
 import java.util.EnumSet;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Vector;
 import java.util.logging.Level;
@@ -35,6 +36,7 @@ import javax.vecmath.Point3d;
 import org.w3c.dom.Node;
 
 import replicatorg.app.Base;
+import replicatorg.app.Serial;
 import replicatorg.app.TimeoutException;
 import replicatorg.drivers.BadFirmwareVersionException;
 import replicatorg.drivers.OnboardParameters;
@@ -128,6 +130,12 @@ public class Sanguino3GDriver extends SerialDriver
 		int getCode() { return code; }
 	};
 
+	static {
+		// lets a machine be pointed at the emulator instead of a real port.
+		Serial.registerTransport(Sanguino3GEmulator.PORT_NAME,
+				new Sanguino3GEmulator.Factory());
+	}
+
 	public Sanguino3GDriver() {
 		super();
 
@@ -143,6 +151,22 @@ public class Sanguino3GDriver extends SerialDriver
 
 	}
 
+	public void setSerial(Serial serial) {
+		super.setSerial(serial);
+		if (serial != null) {
+			// pipelined packets go out as they're queued: held until the next
+			// read, they'd sit on the host while the firmware ran dry whenever
+			// the build stalled.
+			Serial.FlushPolicy policy = Serial.FlushPolicy.IMMEDIATE;
+			try {
+				policy = Serial.FlushPolicy.valueOf(Base.preferences.get(
+						"sanguino3g.flush_policy", policy.name()).toUpperCase());
+			} catch (IllegalArgumentException e) {
+			}
+			serial.setFlushPolicy(policy);
+		}
+	}
+
 	public void initialize() {
 		// Create our serial object
 		if (serial == null) {
@@ -233,72 +257,350 @@ public class Sanguino3GDriver extends SerialDriver
 	 * Sends the command over the serial connection and retrieves a result.
 	 */
 	protected PacketResponse runCommand(byte[] packet) {
+		return runCommand(packet, -1);
+	}
+
+	/**
+	 * Sends a command that keeps the firmware busy for the given time, or -1
+	 * if it doesn't queue, and retrieves the result. The flow controller only
+	 * counts the command once the firmware has accepted it.
+	 */
+	private PacketResponse runCommand(byte[] packet, long durationMicros) {
 		assert (serial != null);
 		
 		if (packet == null || packet.length < 4)
 			return null; // skip empty commands or broken commands
 
 		boolean packetSent = false;
-		PacketProcessor pp = new PacketProcessor();
 		PacketResponse pr = new PacketResponse();
+		int crcRetries = 0;
 
-		while (!packetSent) {
-			pp = new PacketProcessor();
+		synchronized (serial) {
+			// responses must come back in order, so anything still in
+			// flight has to be collected first.
+			drainWindow();
 
-			synchronized (serial) {
+			commandsSent++;
+			while (!packetSent) {
 				// make things play nice.
 				// try {
 				// Thread.sleep(0, 50000);
 				// } catch (Exception e) {}
 
 				// do the actual send.
-				serial.write(packet);
-
-				if (Base.logger.isLoggable(Level.FINER)) {
-					StringBuffer buf = new StringBuffer("OUT: ");
-					for (int i = 0; i < packet.length; i++) {
-						buf.append(Integer
-								.toHexString((int) packet[i] & 0xff));
-						buf.append(" ");
+				writePacket(packet);
+				pr = readResponse();
+
+				if (pr.isOK()) {
+					packetSent = true;
+					if (durationMicros >= 0)
+						flowController.commandQueued(durationMicros);
+				} else if (pr.getResponseCode() == PacketResponse.ResponseCode.BUFFER_OVERFLOW) {
+					// wait until the firmware should have room again.
+					long backoff = flowController.bufferOverflowed();
+					flowController.packetRetried();
+					try {
+						Thread.sleep(backoff);
+					} catch (Exception e) {
 					}
-					Base.logger.log(Level.FINER,buf.toString());
 				}
+				// the firmware got a corrupted packet; send it again.
+				else if (pr.getResponseCode() == PacketResponse.ResponseCode.CRC_MISMATCH &&
+						crcRetries++ < MAX_CRC_RETRIES) {
+					Base.logger.warning("Resending packet after CRC mismatch");
+					flowController.packetRetried();
+				}
+				// TODO: implement other error things.
+				else
+					break;
+			}
+			commandsAcknowledged++;
+		}
+		pr.printDebug();
+		return pr;
+	}
 
-					boolean c = false;
-					while (!c) {
-						int b = serial.read();
-						if (b == -1) {
-							/// Windows has no timeout; busywait
-							if (Base.isWindows()) continue;
-							throw new TimeoutException(serial);
-						}
-						c = pp.processByte((byte) b);
-					}
+	private static final int MAX_CRC_RETRIES = 3;
 
-					pr = pp.getResponse();
+	// our estimate of what is queued up on the firmware.
+	private final FlowController flowController = new FlowController();
 
-					if (pr.isOK())
-						packetSent = true;
-					else if (pr.getResponseCode() == PacketResponse.ResponseCode.BUFFER_OVERFLOW) {
-						try {
-							Thread.sleep(25);
-						} catch (Exception e) {
-						}
-					}
-					// TODO: implement other error things.
-					else
-						break;
+	// reused for every response; only touched while holding the serial lock.
+	private final PacketProcessor packetProcessor = new PacketProcessor();
 
+	/**
+	 * @return the flow controller, which holds the overflow and retry counts.
+	 */
+	public FlowController getFlowController() {
+		return flowController;
+	}
+
+	/**
+	 * Write a complete packet to the serial port.
+	 */
+	private void writePacket(byte[] packet) {
+		serial.write(packet);
+
+		if (Base.logger.isLoggable(Level.FINER)) {
+			StringBuffer buf = new StringBuffer("OUT: ");
+			for (int i = 0; i < packet.length; i++) {
+				buf.append(Integer
+						.toHexString((int) packet[i] & 0xff));
+				buf.append(" ");
+			}
+			Base.logger.log(Level.FINER,buf.toString());
+		}
+	}
+
+	/**
+	 * Read the next response packet from the serial port.
+	 */
+	private PacketResponse readResponse() {
+		PacketProcessor pp = packetProcessor;
+		pp.reset();
+		boolean c = false;
+		while (!c) {
+			int b = serial.read();
+			if (b == -1) {
+				/// Windows has no timeout; busywait
+				if (Base.isWindows()) continue;
+				throw new TimeoutException(serial);
 			}
+			c = pp.processByte((byte) b);
 		}
+		return pp.getResponse();
+	}
+
+	/***************************************************************************
+	 * Pipelined sending of queued commands.
+	 * 
+	 * Buffered commands (like QUEUE_POINT_ABS) don't need an immediate answer,
+	 * so several of them can be kept in flight instead of waiting a full
+	 * round trip for each one. To make sure the firmware never rejects a
+	 * packet that has later packets behind it (which would reorder moves),
+	 * packets are only pipelined while they fit into the free buffer space
+	 * reported by GET_BUFFER_SIZE. Responses are matched to packets in order.
+	 **************************************************************************/
+
+	// maximum number of bytes in flight; 0 disables pipelining.
+	private int windowBytes = Base.preferences.getInt("sanguino3g.window_bytes", 128);
+
+	// a packet sent without waiting for its response, and how long it keeps
+	// the firmware busy once accepted (-1 if it doesn't queue).
+	private static class InFlightPacket {
+		final byte[] packet;
+		final long durationMicros;
+
+		InFlightPacket(byte[] packet, long durationMicros) {
+			this.packet = packet;
+			this.durationMicros = durationMicros;
+		}
+	}
+
+	// packets whose responses haven't been read yet, oldest first.
+	private final LinkedList<InFlightPacket> inFlight = new LinkedList<InFlightPacket>();
+
+	private int inFlightBytes = 0;
+
+	// bytes the firmware is known to have free, beyond what's in flight.
+	private long windowCredit = 0;
+
+	// packets to send synchronously before asking for buffer space again.
+	private int creditBackoff = 0;
+
+	// cleared if the firmware can't report its buffer space.
+	private boolean windowSupported = true;
+
+	// commands sent, and how many of them have been answered; only changed
+	// while holding the serial lock.
+	private volatile long commandsSent = 0;
+
+	private volatile long commandsAcknowledged = 0;
+
+	// statistics
+	private long pipelinedPackets = 0;
+
+	private long retransmittedPackets = 0;
+
+	/**
+	 * Send a command whose response only needs to be checked, not read. If
+	 * there's room, the packet is sent without waiting for its response.
+	 */
+	protected void queueCommand(byte[] packet) {
+		queueCommand(packet, -1);
+	}
+
+	/**
+	 * Queue a command that keeps the firmware busy for the given time; see
+	 * runCommand(byte[], long).
+	 */
+	private void queueCommand(byte[] packet, long durationMicros) {
+		assert (serial != null);
+
+		if (packet == null || packet.length < 4)
+			return;
+
+		if (windowBytes < packet.length || !windowSupported) {
+			runCommand(packet, durationMicros);
+			return;
+		}
+
+		synchronized (serial) {
+			// make room in the window.
+			while (inFlightBytes + packet.length > windowBytes) {
+				readInFlightResponse();
+			}
+
+			// make sure the firmware has room for it.
+			if (packet.length > windowCredit) {
+				if (creditBackoff > 0) {
+					creditBackoff--;
+				} else {
+					drainWindow();
+					windowCredit = queryBufferSpace();
+					if (packet.length > windowCredit) {
+						// the buffer is full, so there's nothing to gain
+						// from pipelining for a while.
+						creditBackoff = 16;
+					}
+				}
+			}
+			if (packet.length > windowCredit) {
+				runCommand(packet, durationMicros);
+				return;
+			}
+
+			writePacket(packet);
+			commandsSent++;
+			inFlight.addLast(new InFlightPacket(packet, durationMicros));
+			inFlightBytes += packet.length;
+			windowCredit -= packet.length;
+			pipelinedPackets++;
+		}
+	}
+
+	/**
+	 * Ask the firmware how much room is left in its command buffer.
+	 * 
+	 * @return the free space in bytes, or 0 if it is unknown.
+	 */
+	private long queryBufferSpace() {
+		PacketBuilder pb = PacketBuilder.obtain(CommandCodeMaster.GET_BUFFER_SIZE.getCode());
+		PacketResponse pr = runCommand(pb.getPacket());
+		if (pr == null || !pr.isOK() || pr.getPayload().length < 5) {
+			Base.logger.info("Firmware does not report buffer space; packets will not be pipelined.");
+			windowSupported = false;
+			return 0;
+		}
+		return pr.get32() & 0xffffffffL;
+	}
+
+	/**
+	 * Read the response to the oldest packet in flight. If it failed with
+	 * nothing sent after it, it is simply sent again. If later packets were
+	 * already sent, some of them may have run, and sending it again would run
+	 * it out of order; so their responses are collected, pipelining is turned
+	 * off, and the build is failed instead.
+	 */
+	private void readInFlightResponse() {
+		InFlightPacket sent = inFlight.removeFirst();
+		inFlightBytes -= sent.packet.length;
+		PacketResponse pr = readResponse();
+		commandsAcknowledged++;
+		if (pr.isOK()) {
+			if (sent.durationMicros >= 0)
+				flowController.commandQueued(sent.durationMicros);
+			return;
+		}
+
 		pr.printDebug();
-		return pr;
+		// we can no longer trust our idea of the free space.
+		windowCredit = 0;
+		long backoff = 0;
+		if (pr.getResponseCode() == PacketResponse.ResponseCode.BUFFER_OVERFLOW)
+			backoff = flowController.bufferOverflowed();
+		if (inFlight.isEmpty()) {
+			retransmittedPackets++;
+			flowController.packetRetried();
+			if (backoff > 0) {
+				try {
+					Thread.sleep(backoff);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			runCommand(sent.packet, sent.durationMicros);
+			return;
+		}
+		int accepted = 0;
+		while (!inFlight.isEmpty()) {
+			InFlightPacket next = inFlight.removeFirst();
+			inFlightBytes -= next.packet.length;
+			if (readResponse().isOK()) {
+				accepted++;
+				if (next.durationMicros >= 0)
+					flowController.commandQueued(next.durationMicros);
+			}
+			commandsAcknowledged++;
+		}
+		windowBytes = 0;
+		String message = "A queued command was rejected (" + pr.getResponseCode()
+			+ ") with " + accepted + " later command(s) already accepted";
+		Base.logger.severe(message + "; pipelining is now off.");
+		setError(message + ".");
+	}
+
+	/**
+	 * Set the most bytes kept in flight, overriding the preference; 0 sends
+	 * one packet at a time.
+	 */
+	void setWindowBytes(int windowBytes) {
+		this.windowBytes = windowBytes;
+	}
+
+	/**
+	 * Collect the responses to every packet still in flight.
+	 */
+	private void drainWindow() {
+		while (!inFlight.isEmpty()) {
+			readInFlightResponse();
+		}
+	}
+
+	public long getCommandsSent() {
+		return commandsSent;
+	}
+
+	public long getCommandsAcknowledged() {
+		return commandsAcknowledged;
+	}
+
+	/**
+	 * @return the number of packets sent without waiting for their response.
+	 */
+	public long getPipelinedPacketCount() {
+		return pipelinedPackets;
+	}
+
+	/**
+	 * @return the number of pipelined packets that were rejected and sent
+	 * again.
+	 */
+	public long getRetransmittedPacketCount() {
+		return retransmittedPackets;
+	}
+
+	/**
+	 * Going by the durations of the moves the firmware has accepted.
+	 */
+	public long getEstimatedRemainingMillis() {
+		return flowController.getQueuedMillis();
 	}
 
 	static boolean isNotifiedFinishedFeature = false;
 
 	public boolean isFinished() {
-		PacketBuilder pb = new PacketBuilder(CommandCodeMaster.IS_FINISHED.getCode());
+		PacketBuilder pb = PacketBuilder.obtain(CommandCodeMaster.IS_FINISHED.getCode());
 		PacketResponse pr = runCommand(pb.getPacket());
 		int v = pr.get8();
 		if (pr.getResponseCode() == PacketResponse.ResponseCode.UNSUPPORTED) {
@@ -321,7 +623,7 @@ public class Sanguino3GDriver extends SerialDriver
 	 * commands used internally to driver
 	 **************************************************************************/
 	public Version getVersionInternal() {
-		PacketBuilder pb = new PacketBuilder(CommandCodeMaster.VERSION.getCode());
+		PacketBuilder pb = PacketBuilder.obtain(CommandCodeMaster.VERSION.getCode());
 		pb.add16(Base.VERSION);
 
 		PacketResponse pr = runCommand(pb.getPacket());
@@ -341,7 +643,7 @@ public class Sanguino3GDriver extends SerialDriver
 	
 
 	public void sendInit() {
-		PacketBuilder pb = new PacketBuilder(CommandCodeMaster.INIT.getCode());
+		PacketBuilder pb = PacketBuilder.obtain(CommandCodeMaster.INIT.getCode());
 		runCommand(pb.getPacket());
 	}
 
@@ -362,11 +664,16 @@ public class Sanguino3GDriver extends SerialDriver
 			Point3d steps = machine.mmToSteps(p);
 
 			// how fast are we doing it?
+			double feedrate = getSafeFeedrate(deltaSteps);
 			long micros = convertFeedrateToMicros(getCurrentPosition(),
-					p, getSafeFeedrate(deltaSteps));
+					p, feedrate);
+
+			// don't send it before the firmware has room for it.
+			holdForFirmware();
 
 			// okay, send it off!
-			queueAbsolutePoint(steps, micros);
+			queueAbsolutePoint(steps, micros, Math.round(getMoveDurationMicros(
+					getCurrentPosition(), p, feedrate)));
 
 			super.queuePoint(p);
 		}
@@ -403,8 +710,8 @@ public class Sanguino3GDriver extends SerialDriver
 	 * //send this segment queueIncrementalPoint(pb, segmentSteps, ticks); } }
 	 */
 
-	private void queueAbsolutePoint(Point3d steps, long micros) {
-		PacketBuilder pb = new PacketBuilder(CommandCodeMaster.QUEUE_POINT_ABS.getCode());
+	private void queueAbsolutePoint(Point3d steps, long micros, long durationMicros) {
+		PacketBuilder pb = PacketBuilder.obtain(CommandCodeMaster.QUEUE_POINT_ABS.getCode());
 
 		if (Base.logger.isLoggable(Level.FINE)) {
 			Base.logger.log(Level.FINE,"Queued absolute point " + steps + " at "
@@ -417,11 +724,11 @@ public class Sanguino3GDriver extends SerialDriver
 		pb.add32((int) steps.z);
 		pb.add32((int) micros);
 
-		runCommand(pb.getPacket());
+		queueCommand(pb.getPacket(), durationMicros);
 	}
 
 	public void setCurrentPosition(Point3d p) {
-		PacketBuilder pb = new PacketBuilder(CommandCodeMaster.SET_POSITION.getCode());
+		PacketBuilder pb = PacketBuilder.obtain(CommandCodeMaster.SET_POSITION.getCode());
 
 		Point3d steps = machine.mmToSteps(p);
 		pb.add32((long) steps.x);
@@ -466,7 +773,7 @@ public class Sanguino3GDriver extends SerialDriver
 		// calculate ticks
 		long micros = convertFeedrateToMicros(new Point3d(), target, feedrate);
 		// send it!
-		PacketBuilder pb = new PacketBuilder(
+		PacketBuilder pb = PacketBuilder.obtain(
 				CommandCodeMaster.FIND_AXES_MINIMUM.getCode());
 		pb.add8(flags);
 		pb.add32((int) micros);
@@ -482,9 +789,28 @@ public class Sanguino3GDriver extends SerialDriver
 		}
 
 		// send it!
-		PacketBuilder pb = new PacketBuilder(CommandCodeMaster.DELAY.getCode());
+		holdForFirmware();
+		PacketBuilder pb = PacketBuilder.obtain(CommandCodeMaster.DELAY.getCode());
 		pb.add32(millis);
-		runCommand(pb.getPacket());
+		runCommand(pb.getPacket(), millis * 1000);
+	}
+
+	/**
+	 * Wait until the firmware should have room for another queued command.
+	 */
+	private void holdForFirmware() {
+		long wait = flowController.getSendDelay();
+		if (wait > 0) {
+			// don't sit on packets the firmware could be working on.
+			synchronized (serial) {
+				serial.flush();
+			}
+			try {
+				Thread.sleep(wait);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
 	}
 
 	public void openClamp(int clampIndex) {
@@ -501,7 +827,7 @@ public class Sanguino3GDriver extends SerialDriver
 		// Command RMB to enable its steppers. Note that they are
 		// already automagically enabled by most commands and need
 		// not be explicitly enabled.
-		PacketBuilder pb = new PacketBuilder(CommandCodeMaster.ENABLE_AXES.getCode());
+		PacketBuilder pb = PacketBuilder.obtain(CommandCodeMaster.ENABLE_AXES.getCode());
 		pb.add8(0x87); // enable x,y,z
 		runCommand(pb.getPacket());
 		super.enableDrives();
@@ -509,7 +835,7 @@ public class Sanguino3GDriver extends SerialDriver
 
 	public void disableDrives() {
 		// Command RMB to disable its steppers.
-		PacketBuilder pb = new PacketBuilder(CommandCodeMaster.ENABLE_AXES.getCode());
+		PacketBuilder pb = PacketBuilder.obtain(CommandCodeMaster.ENABLE_AXES.getCode());
 		pb.add8(0x07); // disable x,y,z
 		runCommand(pb.getPacket());
 		super.disableDrives();
@@ -526,7 +852,7 @@ public class Sanguino3GDriver extends SerialDriver
 		Base.logger.log(Level.FINE,"Waiting for tool #" + toolIndex);
 
 		// send it!
-		PacketBuilder pb = new PacketBuilder(CommandCodeMaster.WAIT_FOR_TOOL.getCode());
+		PacketBuilder pb = PacketBuilder.obtain(CommandCodeMaster.WAIT_FOR_TOOL.getCode());
 		pb.add8((byte) toolIndex);
 		pb.add16(100); // delay between master -> slave pings (millis)
 		pb.add16(120); // timeout before continuing (seconds)
@@ -537,7 +863,7 @@ public class Sanguino3GDriver extends SerialDriver
 		Base.logger.log(Level.FINE,"Selecting tool #" + toolIndex);
 
 		// send it!
-		PacketBuilder pb = new PacketBuilder(CommandCodeMaster.CHANGE_TOOL.getCode());
+		PacketBuilder pb = PacketBuilder.obtain(CommandCodeMaster.CHANGE_TOOL.getCode());
 		pb.add8((byte) toolIndex);
 		runCommand(pb.getPacket());
 
@@ -558,7 +884,7 @@ public class Sanguino3GDriver extends SerialDriver
 					+ microseconds + " microseconds)");
 
 		// send it!
-		PacketBuilder pb = new PacketBuilder(CommandCodeMaster.TOOL_COMMAND.getCode());
+		PacketBuilder pb = PacketBuilder.obtain(CommandCodeMaster.TOOL_COMMAND.getCode());
 		pb.add8((byte) machine.currentTool().getIndex());
 		pb.add8(CommandCodeSlave.SET_MOTOR_1_RPM.getCode());
 		pb.add8((byte) 4); // length of payload.
@@ -572,7 +898,7 @@ public class Sanguino3GDriver extends SerialDriver
 		Base.logger.log(Level.FINE,"Setting motor 1 speed to " + pwm + " PWM");
 
 		// send it!
-		PacketBuilder pb = new PacketBuilder(CommandCodeMaster.TOOL_COMMAND.getCode());
+		PacketBuilder pb = PacketBuilder.obtain(CommandCodeMaster.TOOL_COMMAND.getCode());
 		pb.add8((byte) machine.currentTool().getIndex());
 		pb.add8(CommandCodeSlave.SET_MOTOR_1_PWM.getCode());
 		pb.add8((byte) 1); // length of payload.
@@ -594,7 +920,7 @@ public class Sanguino3GDriver extends SerialDriver
 					+ Integer.toBinaryString(flags));
 
 		// send it!
-		PacketBuilder pb = new PacketBuilder(CommandCodeMaster.TOOL_COMMAND.getCode());
+		PacketBuilder pb = PacketBuilder.obtain(CommandCodeMaster.TOOL_COMMAND.getCode());
 		pb.add8((byte) machine.currentTool().getIndex());
 		pb.add8(CommandCodeSlave.TOGGLE_MOTOR_1.getCode());
 		pb.add8((byte) 1); // payload length
@@ -612,7 +938,7 @@ public class Sanguino3GDriver extends SerialDriver
 
 		Base.logger.log(Level.FINE,"Disabling motor 1");
 
-		PacketBuilder pb = new PacketBuilder(CommandCodeMaster.TOOL_COMMAND.getCode());
+		PacketBuilder pb = PacketBuilder.obtain(CommandCodeMaster.TOOL_COMMAND.getCode());
 		pb.add8((byte) machine.currentTool().getIndex());
 		pb.add8(CommandCodeSlave.TOGGLE_MOTOR_1.getCode());
 		pb.add8((byte) 1); // payload length
@@ -623,7 +949,7 @@ public class Sanguino3GDriver extends SerialDriver
 	}
 
 	public int getMotorSpeedPWM() {
-		PacketBuilder pb = new PacketBuilder(CommandCodeMaster.TOOL_QUERY.getCode());
+		PacketBuilder pb = PacketBuilder.obtain(CommandCodeMaster.TOOL_QUERY.getCode());
 		pb.add8((byte) machine.currentTool().getIndex());
 		pb.add8(CommandCodeSlave.GET_MOTOR_1_PWM.getCode());
 		PacketResponse pr = runCommand(pb.getPacket());
@@ -640,7 +966,7 @@ public class Sanguino3GDriver extends SerialDriver
 	}
 
 	public double getMotorSpeedRPM() {
-		PacketBuilder pb = new PacketBuilder(CommandCodeMaster.TOOL_QUERY.getCode());
+		PacketBuilder pb = PacketBuilder.obtain(CommandCodeMaster.TOOL_QUERY.getCode());
 		pb.add8((byte) machine.currentTool().getIndex());
 		pb.add8(CommandCodeSlave.GET_MOTOR_1_RPM.getCode());
 		PacketResponse pr = runCommand(pb.getPacket());
@@ -671,7 +997,7 @@ public class Sanguino3GDriver extends SerialDriver
 					+ microseconds + " microseconds)");
 
 		// send it!
-		PacketBuilder pb = new PacketBuilder(CommandCodeMaster.TOOL_COMMAND.getCode());
+		PacketBuilder pb = PacketBuilder.obtain(CommandCodeMaster.TOOL_COMMAND.getCode());
 		pb.add8((byte) machine.currentTool().getIndex());
 		pb.add8(CommandCodeSlave.SET_MOTOR_2_RPM.getCode());
 		pb.add8((byte) 4); // payload length
@@ -685,7 +1011,7 @@ public class Sanguino3GDriver extends SerialDriver
 		Base.logger.log(Level.FINE,"Setting motor 2 speed to " + pwm + " PWM");
 
 		// send it!
-		PacketBuilder pb = new PacketBuilder(CommandCodeMaster.TOOL_COMMAND.getCode());
+		PacketBuilder pb = PacketBuilder.obtain(CommandCodeMaster.TOOL_COMMAND.getCode());
 		pb.add8((byte) machine.currentTool().getIndex());
 		pb.add8(CommandCodeSlave.SET_MOTOR_2_PWM.getCode());
 		pb.add8((byte) 1); // length of payload.
@@ -707,7 +1033,7 @@ public class Sanguino3GDriver extends SerialDriver
 					+ Integer.toBinaryString(flags));
 
 		// send it!
-		PacketBuilder pb = new PacketBuilder(CommandCodeMaster.TOOL_COMMAND.getCode());
+		PacketBuilder pb = PacketBuilder.obtain(CommandCodeMaster.TOOL_COMMAND.getCode());
 		pb.add8((byte) machine.currentTool().getIndex());
 		pb.add8(CommandCodeSlave.TOGGLE_MOTOR_2.getCode());
 		pb.add8((byte) 1); // payload length
@@ -725,7 +1051,7 @@ public class Sanguino3GDriver extends SerialDriver
 
 		Base.logger.log(Level.FINE,"Disabling motor 2");
 
-		PacketBuilder pb = new PacketBuilder(CommandCodeMaster.TOOL_COMMAND.getCode());
+		PacketBuilder pb = PacketBuilder.obtain(CommandCodeMaster.TOOL_COMMAND.getCode());
 		pb.add8((byte) machine.currentTool().getIndex());
 		pb.add8(CommandCodeSlave.TOGGLE_MOTOR_1.getCode());
 		pb.add8((byte) 1); // payload length
@@ -736,7 +1062,7 @@ public class Sanguino3GDriver extends SerialDriver
 	}
 
 	public double getSpindleSpeedRPM() {
-		PacketBuilder pb = new PacketBuilder(CommandCodeMaster.TOOL_QUERY.getCode());
+		PacketBuilder pb = PacketBuilder.obtain(CommandCodeMaster.TOOL_QUERY.getCode());
 		pb.add8((byte) machine.currentTool().getIndex());
 		pb.add8(CommandCodeSlave.GET_MOTOR_2_RPM.getCode());
 		PacketResponse pr = runCommand(pb.getPacket());
@@ -755,7 +1081,7 @@ public class Sanguino3GDriver extends SerialDriver
 	}
 
 	public int getSpindleSpeedPWM() {
-		PacketBuilder pb = new PacketBuilder(CommandCodeMaster.TOOL_QUERY.getCode());
+		PacketBuilder pb = PacketBuilder.obtain(CommandCodeMaster.TOOL_QUERY.getCode());
 		pb.add8((byte) machine.currentTool().getIndex());
 		pb.add8(CommandCodeSlave.GET_MOTOR_2_PWM.getCode());
 		PacketResponse pr = runCommand(pb.getPacket());
@@ -781,7 +1107,7 @@ public class Sanguino3GDriver extends SerialDriver
 
 		Base.logger.log(Level.FINE,"Setting temperature to " + temp + "C");
 
-		PacketBuilder pb = new PacketBuilder(CommandCodeMaster.TOOL_COMMAND.getCode());
+		PacketBuilder pb = PacketBuilder.obtain(CommandCodeMaster.TOOL_COMMAND.getCode());
 		pb.add8((byte) machine.currentTool().getIndex());
 		pb.add8(CommandCodeSlave.SET_TEMP.getCode());
 		pb.add8((byte) 2); // payload length
@@ -792,7 +1118,7 @@ public class Sanguino3GDriver extends SerialDriver
 	}
 
 	public void readTemperature() {
-		PacketBuilder pb = new PacketBuilder(CommandCodeMaster.TOOL_QUERY.getCode());
+		PacketBuilder pb = PacketBuilder.obtain(CommandCodeMaster.TOOL_QUERY.getCode());
 		pb.add8((byte) machine.currentTool().getIndex());
 		pb.add8(CommandCodeSlave.GET_TEMP.getCode());
 		PacketResponse pr = runCommand(pb.getPacket());
@@ -842,7 +1168,7 @@ public class Sanguino3GDriver extends SerialDriver
 	public void enableFan() {
 		Base.logger.log(Level.FINE,"Enabling fan");
 
-		PacketBuilder pb = new PacketBuilder(CommandCodeMaster.TOOL_COMMAND.getCode());
+		PacketBuilder pb = PacketBuilder.obtain(CommandCodeMaster.TOOL_COMMAND.getCode());
 		pb.add8((byte) machine.currentTool().getIndex());
 		pb.add8(CommandCodeSlave.TOGGLE_FAN.getCode());
 		pb.add8((byte) 1); // payload length
@@ -855,7 +1181,7 @@ public class Sanguino3GDriver extends SerialDriver
 	public void disableFan() {
 		Base.logger.log(Level.FINE,"Disabling fan");
 
-		PacketBuilder pb = new PacketBuilder(CommandCodeMaster.TOOL_COMMAND.getCode());
+		PacketBuilder pb = PacketBuilder.obtain(CommandCodeMaster.TOOL_COMMAND.getCode());
 		pb.add8((byte) machine.currentTool().getIndex());
 		pb.add8(CommandCodeSlave.TOGGLE_FAN.getCode());
 		pb.add8((byte) 1); // payload length
@@ -871,7 +1197,7 @@ public class Sanguino3GDriver extends SerialDriver
 	public void openValve() {
 		Base.logger.log(Level.FINE,"Opening valve");
 
-		PacketBuilder pb = new PacketBuilder(CommandCodeMaster.TOOL_COMMAND.getCode());
+		PacketBuilder pb = PacketBuilder.obtain(CommandCodeMaster.TOOL_COMMAND.getCode());
 		pb.add8((byte) machine.currentTool().getIndex());
 		pb.add8(CommandCodeSlave.TOGGLE_VALVE.getCode());
 		pb.add8((byte) 1); // payload length
@@ -884,7 +1210,7 @@ public class Sanguino3GDriver extends SerialDriver
 	public void closeValve() {
 		Base.logger.log(Level.FINE,"Closing valve");
 
-		PacketBuilder pb = new PacketBuilder(CommandCodeMaster.TOOL_COMMAND.getCode());
+		PacketBuilder pb = PacketBuilder.obtain(CommandCodeMaster.TOOL_COMMAND.getCode());
 		pb.add8((byte) machine.currentTool().getIndex());
 		pb.add8(CommandCodeSlave.TOGGLE_VALVE.getCode());
 		pb.add8((byte) 1); // payload length
@@ -914,7 +1240,7 @@ public class Sanguino3GDriver extends SerialDriver
 	 **************************************************************************/
 	public void pause() {
 		Base.logger.log(Level.FINE,"Sending asynch pause command");
-		PacketBuilder pb = new PacketBuilder(CommandCodeMaster.PAUSE.getCode());
+		PacketBuilder pb = PacketBuilder.obtain(CommandCodeMaster.PAUSE.getCode());
 		runCommand(pb.getPacket());
 	}
 
@@ -923,7 +1249,7 @@ public class Sanguino3GDriver extends SerialDriver
 		// There is no explicit unpause command on the Sanguino3G; instead we
 		// use
 		// the pause command to toggle the pause state.
-		PacketBuilder pb = new PacketBuilder(CommandCodeMaster.PAUSE.getCode());
+		PacketBuilder pb = PacketBuilder.obtain(CommandCodeMaster.PAUSE.getCode());
 		runCommand(pb.getPacket());
 	}
 
@@ -960,10 +1286,27 @@ public class Sanguino3GDriver extends SerialDriver
 		return machine.mmToSteps(getAbsDeltaDistance(current, target));
 	}
 
+	/**
+	 * Get the time a move takes at the given feedrate, in microseconds.
+	 */
+	private double getMoveDurationMicros(Point3d current, Point3d target,
+			double feedrate) {
+		Point3d deltaDistance = getAbsDeltaDistance(current, target);
+
+		// how long is our line length?
+		double distance = Math.sqrt(deltaDistance.x * deltaDistance.x
+				+ deltaDistance.y * deltaDistance.y + deltaDistance.z
+				* deltaDistance.z);
+
+		// distance is in steps
+		// feedrate is in steps/
+		// distance / feedrate * 60,000,000 = move duration in microseconds
+		return distance / feedrate * 60000000.0;
+	}
+
 	private long convertFeedrateToMicros(Point3d current, Point3d target,
 			double feedrate) {
 
-		Point3d deltaDistance = getAbsDeltaDistance(current, target);
 		Point3d deltaSteps = getAbsDeltaSteps(current, target);
 
 		// System.out.println("current: " + current);
@@ -974,17 +1317,9 @@ public class Sanguino3GDriver extends SerialDriver
 		// Thread.sleep(10000);
 		// } catch (Exception e) {}
 
-		// how long is our line length?
-		double distance = Math.sqrt(deltaDistance.x * deltaDistance.x
-				+ deltaDistance.y * deltaDistance.y + deltaDistance.z
-				* deltaDistance.z);
-
 		double masterSteps = getLongestLength(deltaSteps);
 
-		// distance is in steps
-		// feedrate is in steps/
-		// distance / feedrate * 60,000,000 = move duration in microseconds
-		double micros = distance / feedrate * 60000000.0;
+		double micros = getMoveDurationMicros(current, target, feedrate);
 
 		// micros / masterSteps = time between steps for master axis.
 		double step_delay = micros / masterSteps;
@@ -1022,14 +1357,15 @@ public class Sanguino3GDriver extends SerialDriver
 	 **************************************************************************/
 	public void stop() {
 		System.out.println("Stop.");
-		PacketBuilder pb = new PacketBuilder(CommandCodeMaster.ABORT.getCode());
+		PacketBuilder pb = PacketBuilder.obtain(CommandCodeMaster.ABORT.getCode());
 		runCommand(pb.getPacket());
+		flowController.reset();
 		// invalidate position, force reconciliation.
 		invalidatePosition();
 	}
 
 	protected Point3d reconcilePosition() {
-		PacketBuilder pb = new PacketBuilder(CommandCodeMaster.GET_POSITION.getCode());
+		PacketBuilder pb = PacketBuilder.obtain(CommandCodeMaster.GET_POSITION.getCode());
 		PacketResponse pr = runCommand(pb.getPacket());
 		Point3d steps = new Point3d(pr.get32(), pr.get32(), pr.get32());
 		return machine.stepsToMM(steps);
@@ -1038,9 +1374,10 @@ public class Sanguino3GDriver extends SerialDriver
 	public void reset() {
 		System.out.println("Reset.");
 		setInitialized(false);
+		flowController.reset();
 		if (version.compareTo(new Version(1,4)) >= 0) {
 			// WDT reset introduced in version 1.4 firmware
-			PacketBuilder pb = new PacketBuilder(CommandCodeMaster.RESET.getCode());
+			PacketBuilder pb = PacketBuilder.obtain(CommandCodeMaster.RESET.getCode());
 			runCommand(pb.getPacket());
 		}
 		initialize();
@@ -1072,7 +1409,7 @@ public class Sanguino3GDriver extends SerialDriver
 	}
 	
 	private void writeToEEPROM(int offset, byte[] data) {
-		PacketBuilder pb = new PacketBuilder(CommandCodeMaster.WRITE_EEPROM.getCode());
+		PacketBuilder pb = PacketBuilder.obtain(CommandCodeMaster.WRITE_EEPROM.getCode());
 		pb.add16(offset);
 		pb.add8(data.length);
 		for (byte b : data) {
@@ -1083,7 +1420,7 @@ public class Sanguino3GDriver extends SerialDriver
 	}
 	
 	private byte[] readFromEEPROM(int offset, int len) {
-		PacketBuilder pb = new PacketBuilder(CommandCodeMaster.READ_EEPROM.getCode());
+		PacketBuilder pb = PacketBuilder.obtain(CommandCodeMaster.READ_EEPROM.getCode());
 		pb.add16(offset);
 		pb.add8(len);
 		PacketResponse pr = runCommand(pb.getPacket());
@@ -1180,7 +1517,7 @@ public class Sanguino3GDriver extends SerialDriver
 	}
 
 	public ResponseCode beginCapture(String filename) {
-		PacketBuilder pb = new PacketBuilder(CommandCodeMaster.CAPTURE_TO_FILE.getCode());
+		PacketBuilder pb = PacketBuilder.obtain(CommandCodeMaster.CAPTURE_TO_FILE.getCode());
 		for (byte b : filename.getBytes()) {
 			pb.add8(b);
 		}
@@ -1190,13 +1527,13 @@ public class Sanguino3GDriver extends SerialDriver
 	}
 
 	public int endCapture() {
-		PacketBuilder pb = new PacketBuilder(CommandCodeMaster.END_CAPTURE.getCode());
+		PacketBuilder pb = PacketBuilder.obtain(CommandCodeMaster.END_CAPTURE.getCode());
 		PacketResponse pr = runCommand(pb.getPacket());
 		return pr.get32();
 	}
 
 	public ResponseCode playback(String filename) {
-		PacketBuilder pb = new PacketBuilder(CommandCodeMaster.PLAYBACK_CAPTURE.getCode());
+		PacketBuilder pb = PacketBuilder.obtain(CommandCodeMaster.PLAYBACK_CAPTURE.getCode());
 		for (byte b : filename.getBytes()) {
 			pb.add8(b);
 		}
@@ -1213,7 +1550,7 @@ public class Sanguino3GDriver extends SerialDriver
 		Vector<String> fileList = new Vector<String>();
 		boolean reset = true;
 		while (true) {
-			PacketBuilder pb = new PacketBuilder(CommandCodeMaster.NEXT_FILENAME.getCode());
+			PacketBuilder pb = PacketBuilder.obtain(CommandCodeMaster.NEXT_FILENAME.getCode());
 			pb.add8(reset?1:0);
 			reset = false;
 			PacketResponse pr = runCommand(pb.getPacket());
@@ -0,0 +1,823 @@
+package replicatorg.drivers.gen3;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeMap;
+
+import replicatorg.app.Base;
+import replicatorg.app.SerialTransport;
+import replicatorg.app.exceptions.SerialException;
+import replicatorg.drivers.gen3.Sanguino3GDriver.CommandCodeMaster;
+import replicatorg.drivers.gen3.Sanguino3GDriver.CommandCodeSlave;
+
+/**
+ * An in-process stand-in for a Sanguino3G motherboard. It speaks the same
+ * packet protocol as the firmware over in-memory streams, so the driver can
+ * be run end to end without any hardware.
+ *
+ * Buffered commands (codes 128 and up) go into a bounded queue and take as
+ * long to run as they would on a real machine: moves last for their step
+ * count times the step delay, delays for their length, and waits for a tool
+ * until it has heated up. The emulator can run in real time, at some
+ * multiple of real time, or at full speed, where everything queued finishes
+ * immediately.
+ *
+ * To use it, set the port name of a Sanguino3G machine to "sanguino3g-emulator"
+ * (full speed), "sanguino3g-emulator:realtime", or
+ * "sanguino3g-emulator:<speed>" where speed is a multiple of real time.
+ */
+public class Sanguino3GEmulator implements SerialTransport, PacketConstants {
+
+	/** The port name the emulator is registered under. */
+	public static final String PORT_NAME = "sanguino3g-emulator";
+
+	/** Opens emulators for the names registered with Serial. */
+	public static class Factory implements SerialTransport.Factory {
+		public SerialTransport open(String name) throws SerialException {
+			double speed = 0;
+			int colon = name.indexOf(':');
+			if (colon != -1) {
+				String option = name.substring(colon + 1);
+				if (option.equals("realtime")) {
+					speed = 1;
+				} else {
+					try {
+						speed = Double.parseDouble(option);
+					} catch (NumberFormatException e) {
+						throw new SerialException("Unknown emulator speed '"
+								+ option + "'");
+					}
+				}
+			}
+			return new Sanguino3GEmulator(speed);
+		}
+	}
+
+	// response codes; see PacketResponse.ResponseCode.
+	private static final int RC_GENERIC_ERROR = 0;
+
+	private static final int RC_OK = 1;
+
+	private static final int RC_BUFFER_OVERFLOW = 2;
+
+	private static final int RC_CRC_MISMATCH = 3;
+
+	private static final int RC_UNSUPPORTED = 5;
+
+	// SD card response codes; see Sanguino3GDriver.convertSDCode().
+	private static final int SD_SUCCESS = 0;
+
+	private static final int SD_FAIL_NO_FILE = 7;
+
+	private static final int DEFAULT_BUFFER_SIZE = 256;
+
+	private static final int EEPROM_SIZE = 4096;
+
+	private static final int TOOL_COUNT = 8;
+
+	private static final double AMBIENT_TEMPERATURE = 22;
+
+	// how fast the emulated heaters heat up, in degrees C per second.
+	private static final double HEATING_RATE = 2;
+
+	/**
+	 * A buffered command waiting in the queue.
+	 */
+	private static class QueuedCommand {
+		final byte[] payload;
+
+		// emulated time left until this command is done, in micros.
+		long remaining;
+
+		QueuedCommand(byte[] payload, long duration) {
+			this.payload = payload;
+			this.remaining = duration;
+		}
+
+		int getCode() {
+			return payload[0] & 0xff;
+		}
+
+		// commands take their length byte as well as the payload.
+		int getSize() {
+			return payload.length + 1;
+		}
+	}
+
+	/**
+	 * The state of one emulated tool.
+	 */
+	private static class Tool {
+		double temperature = AMBIENT_TEMPERATURE;
+
+		int targetTemperature = 0;
+
+		int motor1PWM = 0;
+
+		long motor1Micros = 0;
+
+		int motor2PWM = 0;
+
+		long motor2Micros = 0;
+
+		boolean motor1On, motor2On, fanOn, valveOpen;
+
+		boolean isHot() {
+			return temperature >= targetTemperature - 1;
+		}
+	}
+
+	// multiple of real time that the emulator runs at; 0 or less for full
+	// speed.
+	private final double speed;
+
+	private int version = 104;
+
+	private final int bufferSize;
+
+	private final LinkedList<QueuedCommand> queue = new LinkedList<QueuedCommand>();
+
+	private int queuedBytes = 0;
+
+	private long lastNanos = System.nanoTime();
+
+	private boolean paused = false;
+
+	// current position, in steps.
+	private final int[] position = new int[3];
+
+	// position at the end of the queue; step counts are relative to it.
+	private final int[] queueEnd = new int[3];
+
+	private final Tool[] tools = new Tool[TOOL_COUNT];
+
+	private int currentTool = 0;
+
+	private final byte[] eeprom = new byte[EEPROM_SIZE];
+
+	// files on the emulated SD card.
+	private final Map<String, byte[]> sdFiles = new TreeMap<String, byte[]>();
+
+	private Iterator<String> fileIterator = null;
+
+	private String captureName = null;
+
+	private ByteArrayOutputStream capture = null;
+
+	private final PacketProcessor processor = new PacketProcessor();
+
+	private final PacketBuilder response = new PacketBuilder(RC_OK);
+
+	private final ResponseStream input = new ResponseStream();
+
+	private final CommandStream output = new CommandStream();
+
+	private int timeoutMillis = 0;
+
+	// how long each response takes to come back, in ns.
+	private long latencyNanos = 0;
+
+	// statistics
+	private long packetsReceived = 0;
+
+	private long overflows = 0;
+
+	private long crcErrors = 0;
+
+	private long commandsExecuted = 0;
+
+	private long emulatedMicros = 0;
+
+	/**
+	 * @param speed
+	 *            the multiple of real time to run at: 1 for real time, or 0
+	 *            to finish everything immediately.
+	 */
+	public Sanguino3GEmulator(double speed) {
+		this(speed, DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 * @param speed
+	 *            the multiple of real time to run at: 1 for real time, or 0
+	 *            to finish everything immediately.
+	 * @param bufferSize
+	 *            the size of the command buffer, in bytes.
+	 */
+	public Sanguino3GEmulator(double speed, int bufferSize) {
+		this.speed = speed;
+		this.bufferSize = bufferSize;
+		Arrays.fill(eeprom, (byte) 0xff);
+		for (int i = 0; i < TOOL_COUNT; i++)
+			tools[i] = new Tool();
+	}
+
+	/**
+	 * Set the firmware version reported to the driver, e.g. 103 for 1.3.
+	 */
+	public synchronized void setVersion(int version) {
+		this.version = version;
+	}
+
+	/***************************************************************************
+	 * SerialTransport
+	 **************************************************************************/
+
+	public InputStream getInputStream() {
+		return input;
+	}
+
+	public OutputStream getOutputStream() {
+		return output;
+	}
+
+	/**
+	 * Hold each response back for the given time after its packet arrives,
+	 * as a serial link's round trip would.
+	 */
+	public synchronized void setLatency(long micros) {
+		this.latencyNanos = micros * 1000;
+	}
+
+	public synchronized void setTimeout(int timeoutMillis) {
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	/**
+	 * Resets the emulated board, as the RTS line would.
+	 */
+	public synchronized void pulseRTSLow() {
+		reset();
+		input.clear();
+	}
+
+	public void close() {
+	}
+
+	/***************************************************************************
+	 * Streams
+	 **************************************************************************/
+
+	/**
+	 * Responses waiting to be read by the driver.
+	 */
+	private class ResponseStream extends InputStream {
+		private byte[] data = new byte[512];
+
+		private int head = 0;
+
+		private int count = 0;
+
+		// bytes at the end of the buffer that can't be read yet.
+		private int held = 0;
+
+		// the length of each held response and when it can be read.
+		private final LinkedList<long[]> pending = new LinkedList<long[]>();
+
+		public int read() {
+			synchronized (Sanguino3GEmulator.this) {
+				if (!waitForData())
+					return -1;
+				int b = data[head] & 0xff;
+				head = (head + 1) % data.length;
+				count--;
+				return b;
+			}
+		}
+
+		public int read(byte[] b, int off, int len) {
+			if (len == 0)
+				return 0;
+			synchronized (Sanguino3GEmulator.this) {
+				// the board never goes away, so this only times out.
+				if (!waitForData())
+					return 0;
+				int n = Math.min(len, count - held);
+				for (int i = 0; i < n; i++) {
+					b[off + i] = data[head];
+					head = (head + 1) % data.length;
+				}
+				count -= n;
+				return n;
+			}
+		}
+
+		public int available() {
+			synchronized (Sanguino3GEmulator.this) {
+				release(System.nanoTime());
+				return count - held;
+			}
+		}
+
+		private void release(long now) {
+			while (!pending.isEmpty() && pending.getFirst()[1] <= now)
+				held -= (int) pending.removeFirst()[0];
+		}
+
+		private boolean waitForData() {
+			long deadline = System.currentTimeMillis() + timeoutMillis;
+			while (true) {
+				long now = System.nanoTime();
+				release(now);
+				if (count > held)
+					break;
+				long wait = 0;
+				if (timeoutMillis > 0) {
+					wait = deadline - System.currentTimeMillis();
+					if (wait <= 0)
+						return false;
+				}
+				int nanos = 0;
+				if (!pending.isEmpty()) {
+					long ready = pending.getFirst()[1] - now;
+					if (wait == 0 || ready / 1000000 < wait) {
+						wait = ready / 1000000;
+						nanos = (int) (ready % 1000000);
+					}
+				}
+				try {
+					Sanguino3GEmulator.this.wait(wait, nanos);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return false;
+				}
+			}
+			return true;
+		}
+
+		void write(byte[] packet, int length) {
+			if (count + length > data.length) {
+				byte[] grown = new byte[Math.max(data.length * 2, count + length)];
+				for (int i = 0; i < count; i++)
+					grown[i] = data[(head + i) % data.length];
+				data = grown;
+				head = 0;
+			}
+			for (int i = 0; i < length; i++)
+				data[(head + count + i) % data.length] = packet[i];
+			count += length;
+			if (latencyNanos > 0) {
+				held += length;
+				pending.addLast(new long[] { length, System.nanoTime() + latencyNanos });
+			}
+			Sanguino3GEmulator.this.notifyAll();
+		}
+
+		void clear() {
+			head = 0;
+			count = 0;
+			held = 0;
+			pending.clear();
+		}
+	}
+
+	/**
+	 * Bytes written by the driver; complete packets are handled as soon as
+	 * their last byte arrives.
+	 */
+	private class CommandStream extends OutputStream {
+		public void write(int b) {
+			synchronized (Sanguino3GEmulator.this) {
+				receive((byte) b);
+			}
+		}
+
+		public void write(byte[] b, int off, int len) {
+			synchronized (Sanguino3GEmulator.this) {
+				for (int i = 0; i < len; i++)
+					receive(b[off + i]);
+			}
+		}
+	}
+
+	private void receive(byte b) {
+		boolean complete;
+		try {
+			complete = processor.processByte(b);
+		} catch (RuntimeException e) {
+			// the packet processor throws on a CRC mismatch.
+			crcErrors++;
+			processor.reset();
+			respond(RC_CRC_MISMATCH);
+			return;
+		}
+		if (complete) {
+			byte[] payload = new byte[processor.payloadLength];
+			System.arraycopy(processor.payload, 0, payload, 0, payload.length);
+			processor.reset();
+			packetsReceived++;
+			if (payload.length == 0) {
+				respond(RC_GENERIC_ERROR);
+				return;
+			}
+			advance();
+			handle(payload);
+		}
+	}
+
+	/***************************************************************************
+	 * Command handling
+	 **************************************************************************/
+
+	private void startResponse(int code) {
+		response.reset(code);
+	}
+
+	private void sendResponse() {
+		byte[] packet = response.getPacket();
+		input.write(packet, packet.length);
+	}
+
+	private void respond(int code) {
+		startResponse(code);
+		sendResponse();
+	}
+
+	private void handle(byte[] payload) {
+		int code = payload[0] & 0xff;
+		if (code >= 128) {
+			handleBuffered(payload);
+			return;
+		}
+
+		// reads arguments in order, starting after the command byte.
+		PacketResponse args = new PacketResponse(payload);
+
+		if (code == CommandCodeMaster.VERSION.getCode()) {
+			startResponse(RC_OK);
+			response.add16(version);
+			sendResponse();
+		} else if (code == CommandCodeMaster.INIT.getCode()
+				|| code == CommandCodeMaster.CLEAR_BUFFER.getCode()
+				|| code == CommandCodeMaster.ABORT.getCode()) {
+			clearQueue();
+			paused = false;
+			respond(RC_OK);
+		} else if (code == CommandCodeMaster.GET_BUFFER_SIZE.getCode()) {
+			startResponse(RC_OK);
+			response.add32(bufferSize - queuedBytes);
+			sendResponse();
+		} else if (code == CommandCodeMaster.GET_POSITION.getCode()) {
+			startResponse(RC_OK);
+			for (int i = 0; i < 3; i++)
+				response.add32(position[i]);
+			response.add8(0); // endstops
+			sendResponse();
+		} else if (code == CommandCodeMaster.PAUSE.getCode()) {
+			paused = !paused;
+			respond(RC_OK);
+		} else if (code == CommandCodeMaster.IS_FINISHED.getCode()) {
+			startResponse(RC_OK);
+			response.add8(queue.isEmpty() ? 1 : 0);
+			sendResponse();
+		} else if (code == CommandCodeMaster.TOOL_QUERY.getCode()) {
+			queryTool(args.get8(), args.get8());
+		} else if (code == CommandCodeMaster.READ_EEPROM.getCode()) {
+			int offset = args.get16();
+			int length = args.get8();
+			if (offset + length > EEPROM_SIZE) {
+				respond(RC_GENERIC_ERROR);
+				return;
+			}
+			startResponse(RC_OK);
+			for (int i = 0; i < length; i++)
+				response.add8(eeprom[offset + i]);
+			sendResponse();
+		} else if (code == CommandCodeMaster.WRITE_EEPROM.getCode()) {
+			int offset = args.get16();
+			int length = args.get8();
+			if (offset + length > EEPROM_SIZE || 4 + length > payload.length) {
+				respond(RC_GENERIC_ERROR);
+				return;
+			}
+			System.arraycopy(payload, 4, eeprom, offset, length);
+			startResponse(RC_OK);
+			response.add8(length);
+			sendResponse();
+		} else if (code == CommandCodeMaster.CAPTURE_TO_FILE.getCode()) {
+			captureName = readString(payload, 1);
+			capture = new ByteArrayOutputStream();
+			startResponse(RC_OK);
+			response.add8(SD_SUCCESS);
+			sendResponse();
+		} else if (code == CommandCodeMaster.END_CAPTURE.getCode()) {
+			int size = 0;
+			if (capture != null) {
+				size = capture.size();
+				sdFiles.put(captureName, capture.toByteArray());
+				capture = null;
+				captureName = null;
+			}
+			startResponse(RC_OK);
+			response.add32(size);
+			sendResponse();
+		} else if (code == CommandCodeMaster.PLAYBACK_CAPTURE.getCode()) {
+			byte[] file = sdFiles.get(readString(payload, 1));
+			startResponse(RC_OK);
+			if (file == null) {
+				response.add8(SD_FAIL_NO_FILE);
+			} else {
+				playback(file);
+				response.add8(SD_SUCCESS);
+			}
+			sendResponse();
+		} else if (code == CommandCodeMaster.NEXT_FILENAME.getCode()) {
+			if (args.get8() != 0 || fileIterator == null)
+				fileIterator = sdFiles.keySet().iterator();
+			startResponse(RC_OK);
+			response.add8(SD_SUCCESS);
+			if (fileIterator.hasNext()) {
+				for (byte b : fileIterator.next().getBytes())
+					response.add8(b);
+			}
+			response.add8(0);
+			sendResponse();
+		} else if (code == CommandCodeMaster.RESET.getCode()) {
+			respond(RC_OK);
+			reset();
+		} else {
+			respond(RC_UNSUPPORTED);
+		}
+	}
+
+	private void handleBuffered(byte[] payload) {
+		if (capture != null) {
+			// while capturing, buffered commands go to the card instead.
+			capture.write(payload.length);
+			capture.write(payload, 0, payload.length);
+			respond(RC_OK);
+			return;
+		}
+		if (queuedBytes + payload.length + 1 > bufferSize) {
+			overflows++;
+			respond(RC_BUFFER_OVERFLOW);
+			return;
+		}
+		enqueue(payload);
+		respond(RC_OK);
+		// let zero-length commands run right away.
+		advance();
+	}
+
+	private void enqueue(byte[] payload) {
+		QueuedCommand c = new QueuedCommand(payload, getDuration(payload));
+		queue.addLast(c);
+		queuedBytes += c.getSize();
+	}
+
+	/**
+	 * Queue every command in a captured file. The firmware streams these
+	 * from the card, so they don't count against the buffer.
+	 */
+	private void playback(byte[] file) {
+		int i = 0;
+		while (i < file.length) {
+			int length = file[i++] & 0xff;
+			if (i + length > file.length)
+				break;
+			byte[] payload = new byte[length];
+			System.arraycopy(file, i, payload, 0, length);
+			i += length;
+			QueuedCommand c = new QueuedCommand(payload, getDuration(payload));
+			queue.addLast(c);
+		}
+	}
+
+	/**
+	 * Work out how long a buffered command will take to run, in micros.
+	 */
+	private long getDuration(byte[] payload) {
+		PacketResponse args = new PacketResponse(payload);
+		int code = payload[0] & 0xff;
+		if (code == CommandCodeMaster.QUEUE_POINT_ABS.getCode()) {
+			long steps = 0;
+			for (int i = 0; i < 3; i++) {
+				int target = args.get32();
+				steps = Math.max(steps, Math.abs((long) target - queueEnd[i]));
+				queueEnd[i] = target;
+			}
+			return steps * (args.get32() & 0xffffffffL);
+		} else if (code == CommandCodeMaster.SET_POSITION.getCode()) {
+			for (int i = 0; i < 3; i++)
+				queueEnd[i] = args.get32();
+		} else if (code == CommandCodeMaster.FIND_AXES_MINIMUM.getCode()
+				|| code == CommandCodeMaster.FIND_AXES_MAXIMUM.getCode()) {
+			int flags = args.get8();
+			long micros = args.get32() & 0xffffffffL;
+			long steps = 0;
+			for (int i = 0; i < 3; i++) {
+				if ((flags & (1 << i)) != 0) {
+					steps = Math.max(steps, Math.abs((long) queueEnd[i]));
+					queueEnd[i] = 0;
+				}
+			}
+			return steps * micros;
+		} else if (code == CommandCodeMaster.DELAY.getCode()) {
+			return (args.get32() & 0xffffffffL) * 1000;
+		} else if (code == CommandCodeMaster.WAIT_FOR_TOOL.getCode()) {
+			// finishes early once the tool is hot; see advance().
+			args.get8();
+			args.get16();
+			return args.get16() * 1000000L;
+		}
+		return 0;
+	}
+
+	/**
+	 * Run the queue up to the present.
+	 */
+	private void advance() {
+		long nanos = System.nanoTime();
+		long elapsed = Long.MAX_VALUE;
+		if (speed > 0)
+			elapsed = (long) ((nanos - lastNanos) / 1000 * speed);
+		lastNanos = nanos;
+		if (paused)
+			return;
+
+		heat(elapsed);
+		while (!queue.isEmpty()) {
+			QueuedCommand c = queue.getFirst();
+			if (c.getCode() == CommandCodeMaster.WAIT_FOR_TOOL.getCode()
+					&& tools[(c.payload[1] & 0xff) % TOOL_COUNT].isHot()) {
+				c.remaining = 0;
+			}
+			if (c.remaining > elapsed) {
+				c.remaining -= elapsed;
+				emulatedMicros += elapsed;
+				break;
+			}
+			elapsed -= c.remaining;
+			emulatedMicros += c.remaining;
+			queue.removeFirst();
+			queuedBytes = Math.max(0, queuedBytes - c.getSize());
+			execute(c.payload);
+			commandsExecuted++;
+		}
+	}
+
+	private void heat(long elapsedMicros) {
+		double change = HEATING_RATE * elapsedMicros / 1000000.0;
+		for (Tool tool : tools) {
+			double target = Math.max(tool.targetTemperature, AMBIENT_TEMPERATURE);
+			if (tool.temperature < target)
+				tool.temperature = Math.min(target, tool.temperature + change);
+			else
+				tool.temperature = Math.max(target, tool.temperature - change);
+		}
+	}
+
+	/**
+	 * Apply the effects of a buffered command once it has run.
+	 */
+	private void execute(byte[] payload) {
+		PacketResponse args = new PacketResponse(payload);
+		int code = payload[0] & 0xff;
+		if (code == CommandCodeMaster.QUEUE_POINT_ABS.getCode()
+				|| code == CommandCodeMaster.SET_POSITION.getCode()) {
+			for (int i = 0; i < 3; i++)
+				position[i] = args.get32();
+		} else if (code == CommandCodeMaster.FIND_AXES_MINIMUM.getCode()
+				|| code == CommandCodeMaster.FIND_AXES_MAXIMUM.getCode()) {
+			int flags = args.get8();
+			for (int i = 0; i < 3; i++) {
+				if ((flags & (1 << i)) != 0)
+					position[i] = 0;
+			}
+		} else if (code == CommandCodeMaster.CHANGE_TOOL.getCode()) {
+			currentTool = args.get8() % TOOL_COUNT;
+		} else if (code == CommandCodeMaster.TOOL_COMMAND.getCode()) {
+			Tool tool = tools[args.get8() % TOOL_COUNT];
+			int command = args.get8();
+			args.get8(); // payload length
+			if (command == CommandCodeSlave.SET_TEMP.getCode()) {
+				tool.targetTemperature = args.get16();
+			} else if (command == CommandCodeSlave.SET_MOTOR_1_PWM.getCode()) {
+				tool.motor1PWM = args.get8();
+			} else if (command == CommandCodeSlave.SET_MOTOR_1_RPM.getCode()) {
+				tool.motor1Micros = args.get32() & 0xffffffffL;
+			} else if (command == CommandCodeSlave.SET_MOTOR_2_PWM.getCode()) {
+				tool.motor2PWM = args.get8();
+			} else if (command == CommandCodeSlave.SET_MOTOR_2_RPM.getCode()) {
+				tool.motor2Micros = args.get32() & 0xffffffffL;
+			} else if (command == CommandCodeSlave.TOGGLE_MOTOR_1.getCode()) {
+				tool.motor1On = (args.get8() & 1) != 0;
+			} else if (command == CommandCodeSlave.TOGGLE_MOTOR_2.getCode()) {
+				tool.motor2On = (args.get8() & 1) != 0;
+			} else if (command == CommandCodeSlave.TOGGLE_FAN.getCode()) {
+				tool.fanOn = args.get8() != 0;
+			} else if (command == CommandCodeSlave.TOGGLE_VALVE.getCode()) {
+				tool.valveOpen = args.get8() != 0;
+			}
+		}
+	}
+
+	private void queryTool(int index, int command) {
+		Tool tool = tools[index % TOOL_COUNT];
+		startResponse(RC_OK);
+		if (command == CommandCodeSlave.VERSION.getCode()) {
+			response.add16(version);
+		} else if (command == CommandCodeSlave.GET_TEMP.getCode()) {
+			response.add16((int) Math.round(tool.temperature));
+		} else if (command == CommandCodeSlave.GET_MOTOR_1_PWM.getCode()) {
+			response.add8(tool.motor1PWM);
+		} else if (command == CommandCodeSlave.GET_MOTOR_1_RPM.getCode()) {
+			response.add32(tool.motor1Micros);
+		} else if (command == CommandCodeSlave.GET_MOTOR_2_PWM.getCode()) {
+			response.add8(tool.motor2PWM);
+		} else if (command == CommandCodeSlave.GET_MOTOR_2_RPM.getCode()) {
+			response.add32(tool.motor2Micros);
+		} else {
+			startResponse(RC_UNSUPPORTED);
+		}
+		sendResponse();
+	}
+
+	private static String readString(byte[] payload, int offset) {
+		int end = offset;
+		while (end < payload.length && payload[end] != 0)
+			end++;
+		return new String(payload, offset, end - offset);
+	}
+
+	private void clearQueue() {
+		queue.clear();
+		queuedBytes = 0;
+		System.arraycopy(position, 0, queueEnd, 0, 3);
+	}
+
+	/**
+	 * Put the board back in its power-on state. The EEPROM and SD card keep
+	 * their contents.
+	 */
+	private void reset() {
+		Base.logger.fine("Emulated Sanguino3G reset");
+		clearQueue();
+		Arrays.fill(position, 0);
+		Arrays.fill(queueEnd, 0);
+		for (int i = 0; i < TOOL_COUNT; i++)
+			tools[i] = new Tool();
+		currentTool = 0;
+		paused = false;
+		capture = null;
+		captureName = null;
+		fileIterator = null;
+		processor.reset();
+		lastNanos = System.nanoTime();
+	}
+
+	/***************************************************************************
+	 * Inspection, for tests and benchmarks
+	 **************************************************************************/
+
+	/** @return the number of complete packets received. */
+	public synchronized long getPacketCount() {
+		return packetsReceived;
+	}
+
+	/** @return the number of times a command was refused with BUFFER_OVERFLOW. */
+	public synchronized long getOverflowCount() {
+		return overflows;
+	}
+
+	/** @return the number of packets that arrived with a bad CRC. */
+	public synchronized long getCRCErrorCount() {
+		return crcErrors;
+	}
+
+	/** @return the number of buffered commands that have finished running. */
+	public synchronized long getExecutedCount() {
+		return commandsExecuted;
+	}
+
+	/** @return the number of commands waiting in the queue. */
+	public synchronized int getQueuedCount() {
+		advance();
+		return queue.size();
+	}
+
+	/** @return how long the machine has spent running commands, in millis. */
+	public synchronized long getEmulatedMillis() {
+		return emulatedMicros / 1000;
+	}
+
+	/** @return the current position, in steps. */
+	public synchronized int[] getPosition() {
+		advance();
+		return position.clone();
+	}
+
+	public synchronized int getCurrentTool() {
+		return currentTool;
+	}
+
+	/** @return the names of the files on the emulated SD card. */
+	public synchronized String[] getFileNames() {
+		return sdFiles.keySet().toArray(new String[sdFiles.size()]);
+	}
+}
@@ -0,0 +1,156 @@
+package replicatorg.machine;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import replicatorg.app.Base;
+
+/**
+ * Delivers a machine's events to its listeners away from the thread that
+ * raised them, so that a listener that is slow (or busy waiting on the Swing
+ * thread) can never hold up a build.
+ *
+ * Each listener has its own queue, drained in order by a pooled thread; one
+ * slow listener only falls behind itself. While a listener is behind, a new
+ * progress event replaces one still waiting at the end of its queue, and a
+ * tool event replaces one for the same tool, so a queue can't grow with the
+ * length of a build. State changes are never dropped.
+ */
+public class MachineEventDispatcher {
+
+	// shared by every machine; a thread only exists while a queue is drained.
+	private static final ExecutorService executor =
+		Executors.newCachedThreadPool(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Machine events");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+
+	/**
+	 * The events waiting for one listener.
+	 */
+	private static class Mailbox implements Runnable {
+		final MachineListener listener;
+
+		private final LinkedList<Object> events = new LinkedList<Object>();
+
+		private boolean scheduled = false;
+
+		private boolean closed = false;
+
+		Mailbox(MachineListener listener) {
+			this.listener = listener;
+		}
+
+		synchronized void post(Object event) {
+			if (closed) return;
+			Object last = events.isEmpty() ? null : events.getLast();
+			if (event instanceof MachineProgressEvent && last instanceof MachineProgressEvent) {
+				events.set(events.size() - 1, event);
+			} else if (event instanceof MachineToolStatusEvent && last instanceof MachineToolStatusEvent &&
+					((MachineToolStatusEvent)event).getTool() == ((MachineToolStatusEvent)last).getTool()) {
+				events.set(events.size() - 1, event);
+			} else {
+				events.add(event);
+			}
+			if (!scheduled) {
+				scheduled = true;
+				executor.execute(this);
+			}
+		}
+
+		synchronized void close() {
+			closed = true;
+			events.clear();
+		}
+
+		public void run() {
+			while (true) {
+				Object event;
+				synchronized (this) {
+					if (events.isEmpty()) {
+						scheduled = false;
+						return;
+					}
+					event = events.removeFirst();
+				}
+				try {
+					if (event instanceof MachineStateChangeEvent)
+						listener.machineStateChanged((MachineStateChangeEvent)event);
+					else if (event instanceof MachineProgressEvent)
+						listener.machineProgress((MachineProgressEvent)event);
+					else
+						listener.toolStatusChanged((MachineToolStatusEvent)event);
+				} catch (RuntimeException e) {
+					Base.logger.warning("Machine listener " + listener + " failed: " + e);
+				}
+			}
+		}
+	}
+
+	private final List<Mailbox> mailboxes = new CopyOnWriteArrayList<Mailbox>();
+
+	// least time between progress events, in ms.
+	private final long progressInterval;
+
+	private long lastProgress = 0;
+
+	/**
+	 * @param progressInterval
+	 *            the least time between progress events, in ms
+	 */
+	public MachineEventDispatcher(long progressInterval) {
+		this.progressInterval = progressInterval;
+	}
+
+	/**
+	 * Add a listener, whose first event will be the given one.
+	 */
+	public void addListener(MachineListener listener, MachineStateChangeEvent current) {
+		Mailbox mailbox = new Mailbox(listener);
+		mailbox.post(current);
+		mailboxes.add(mailbox);
+	}
+
+	/**
+	 * Remove a listener. Events still waiting for it are dropped.
+	 */
+	public void removeListener(MachineListener listener) {
+		for (Mailbox m : mailboxes) {
+			if (m.listener == listener) {
+				mailboxes.remove(m);
+				m.close();
+			}
+		}
+	}
+
+	/**
+	 * @return true if enough time has passed since the last progress event
+	 * for another to be worth making.
+	 */
+	public boolean isProgressDue() {
+		return System.currentTimeMillis() - lastProgress >= progressInterval;
+	}
+
+	public void stateChanged(MachineStateChangeEvent event) {
+		for (Mailbox m : mailboxes)
+			m.post(event);
+	}
+
+	public void progress(MachineProgressEvent event) {
+		lastProgress = System.currentTimeMillis();
+		for (Mailbox m : mailboxes)
+			m.post(event);
+	}
+
+	public void toolStatusChanged(MachineToolStatusEvent event) {
+		for (Mailbox m : mailboxes)
+			m.post(event);
+	}
+}
@@ -45,7 +45,10 @@ public class MachineModel
 
 	//feedrate information
 	private Point3d maximumFeedrates;
+	private Point3d maximumAccelerations;
 	private Point3d stepsPerMM;
+	//whether any axis gave its scale.
+	private boolean scaled = false;
 	
 	//our drive status
 	protected boolean drivesEnabled = true;
@@ -70,6 +73,7 @@ public class MachineModel
 		minimum = new Point3d();
 		maximum = new Point3d();
 		maximumFeedrates = new Point3d();
+		maximumAccelerations = new Point3d();
 		stepsPerMM = new Point3d(1, 1, 1); //use ones, because we divide by this!
 		
 		currentTool = new ToolModel();
@@ -113,6 +117,13 @@ public class MachineModel
 					 	length = Double.parseDouble(XML.getAttributeValue(axis, "length"));
 					 	maxFeedrate = Double.parseDouble(XML.getAttributeValue(axis, "maxfeedrate"));
 					 	scale = Double.parseDouble(XML.getAttributeValue(axis, "scale"));
+					 	scaled = true;
+					} catch (Exception e) {}
+
+					//optional, in mm/s^2; zero means unknown.
+				 	double maxAcceleration = 0.0;
+					try {
+						maxAcceleration = Double.parseDouble(XML.getAttributeValue(axis, "maxacceleration"));
 					} catch (Exception e) {}
 					
 					//create the right variables.
@@ -120,18 +131,21 @@ public class MachineModel
 					{
 						maximum.x = length;
 						maximumFeedrates.x = maxFeedrate;
+						maximumAccelerations.x = maxAcceleration;
 						stepsPerMM.x = scale;
 					}
 					else if (id.toLowerCase().equals("y"))
 					{
 						maximum.y = length;
 						maximumFeedrates.y = maxFeedrate;
+						maximumAccelerations.y = maxAcceleration;
 						stepsPerMM.y = scale;
 					}
 					else if (id.toLowerCase().equals("z"))
 					{
 						maximum.z = length;
 						maximumFeedrates.z = maxFeedrate;
+						maximumAccelerations.z = maxAcceleration;
 						stepsPerMM.z = scale;
 					}
 
@@ -354,4 +368,37 @@ public class MachineModel
     return maximumFeedrates;
   }
 
+  /**
+   * @return each axis' maximum acceleration in mm/s^2, or zero where the
+   * machine description doesn't give one.
+   */
+  public Point3d getMaximumAccelerations() {
+    return maximumAccelerations;
+  }
+
+  /**
+   * @return each axis' steps per mm, or null if the machine description
+   * gives no scale, in which case steps are taken to be 1mm.
+   */
+  public Point3d getStepsPerMM() {
+    return scaled ? stepsPerMM : null;
+  }
+
+  /**
+   * @return a fresh model of the same machine, e.g. for another thread to
+   * select tools and run motors on.
+   */
+  public MachineModel copy() {
+    MachineModel copy = new MachineModel();
+    if (xml != null) {
+      copy.loadXML(xml);
+    } else {
+      copy.maximumFeedrates.set(maximumFeedrates);
+      copy.maximumAccelerations.set(maximumAccelerations);
+      copy.stepsPerMM.set(stepsPerMM);
+      copy.scaled = scaled;
+    }
+    return copy;
+  }
+
 }
@@ -52,6 +52,8 @@ public class ToolModel
 	protected int motorEncoderPPR;
 	protected boolean motorIsStepper;
 	protected int motorSteps;
+	// how much material the motor feeds in a turn, in mm; zero if unknown.
+	protected double motorFeedPerRevolution;
 
 	//spindle stuff
 	protected boolean spindleEnabled;
@@ -167,6 +169,12 @@ public class ToolModel
 					}
 				} catch (Exception e) {} // ignore parse errors.
 
+				n = XML.getAttributeValue(xml, "motor_mm_per_revolution");
+				try{
+					if (Double.parseDouble(n) > 0)
+						motorFeedPerRevolution = Double.parseDouble(n);
+				} catch (Exception e) {} // ignore parse errors.
+
 			}
 		} catch (Exception e) {} //ignore boolean/integer parse errors
 
@@ -271,6 +279,11 @@ public class ToolModel
 		return type;
 	}
 
+	public String getMaterial()
+	{
+		return material;
+	}
+
 	/*************************************
 	*  Motor interface functions
 	*************************************/
@@ -354,6 +367,15 @@ public class ToolModel
 		return motorIsStepper;
 	}
 
+	/**
+	 * @return the mm of material fed by one turn of the motor, from the
+	 * tool's motor_mm_per_revolution, or zero if it isn't known.
+	 */
+	public double getMotorFeedPerRevolution()
+	{
+		return motorFeedPerRevolution;
+	}
+
 	/*************************************
 	*  Spindle interface functions
 	*************************************/
@@ -449,6 +471,11 @@ public class ToolModel
 	{
 		return currentTemperature;
 	}
+
+	public double getTargetTemperature()
+	{
+		return targetTemperature;
+	}
 	
 	public boolean hasHeater()
 	{
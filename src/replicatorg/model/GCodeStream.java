@@ -0,0 +1,538 @@
+package replicatorg.model;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import replicatorg.app.Base;
+import replicatorg.app.GCodeParser;
+
+/**
+ * A GCode source compiled into a compact binary stream. Each line is stored as
+ * an opcode followed by the bitmask of codes it contains and the values of
+ * those codes as raw doubles, so consumers like the estimator and simulator
+ * can replay a file without tokenizing any text.
+ *
+ * Compiled streams are keyed by a hash of the source text and can be cached
+ * on disk next to the file they were compiled from. A cached stream is
+ * compiled straight to its file and read from it mapped, so only a stream
+ * with nowhere to be cached is kept on the heap.
+ */
+public class GCodeStream {
+
+	/** A line with no codes and no comment. */
+	static final byte OP_EMPTY = 0;
+
+	/** A line with codes. */
+	static final byte OP_CODES = 1;
+
+	/** A line with codes and a comment. */
+	static final byte OP_CODES_COMMENT = 2;
+
+	private static final int MAGIC = 0x52474353; // "RGCS"
+
+	private static final int FORMAT_VERSION = 1;
+
+	/** Suffix of the cache file written next to a gcode file. */
+	public static final String CACHE_SUFFIX = ".compiled";
+
+	private final byte[] hash;
+
+	// read with absolute gets only, so any number of cursors can share it.
+	private final ByteBuffer data;
+
+	private final int length;
+
+	private final int lineCount;
+
+	private GCodeStream(byte[] hash, ByteBuffer data, int lineCount) {
+		this.hash = hash;
+		this.data = data;
+		this.length = data.limit();
+		this.lineCount = lineCount;
+	}
+
+	public int getLineCount() {
+		return lineCount;
+	}
+
+	/**
+	 * @return the size of the compiled stream, in bytes.
+	 */
+	public int getSize() {
+		return length;
+	}
+
+	/**
+	 * @return the hash of the text this stream was compiled from.
+	 */
+	public byte[] getHash() {
+		return hash.clone();
+	}
+
+	/**
+	 * Check whether this stream was compiled from text with the given hash.
+	 */
+	public boolean matches(byte[] sourceHash) {
+		return Arrays.equals(hash, sourceHash);
+	}
+
+	/**
+	 * Returns a cursor positioned before the first line of this stream.
+	 */
+	public Cursor cursor() {
+		return new Cursor();
+	}
+
+	/**
+	 * A cursor over the lines of a compiled stream. The current line is
+	 * decoded once by next() and can then be loaded into any number of
+	 * parsers.
+	 */
+	public class Cursor {
+		private int position = 0;
+
+		private int line = -1;
+
+		private int seenCodes;
+
+		private int valuedCodes;
+
+		private final double[] values = new double[26];
+
+		private String comment = "";
+
+		/**
+		 * Advance to the next line.
+		 *
+		 * @return false if there are no more lines.
+		 */
+		public boolean next() {
+			if (position >= length)
+				return false;
+
+			byte op = data.get(position++);
+			line++;
+			comment = "";
+			if (op == OP_EMPTY) {
+				seenCodes = 0;
+				valuedCodes = 0;
+				return true;
+			}
+
+			seenCodes = readInt();
+			valuedCodes = readInt();
+			int mask = valuedCodes;
+			while (mask != 0) {
+				int letter = Integer.numberOfTrailingZeros(mask);
+				values[letter] = Double.longBitsToDouble(readLong());
+				mask &= mask - 1;
+			}
+
+			if (op == OP_CODES_COMMENT) {
+				int commentLength = data.getShort(position) & 0xffff;
+				position += 2;
+				byte[] bytes = new byte[commentLength];
+				for (int i = 0; i < commentLength; i++)
+					bytes[i] = data.get(position + i);
+				try {
+					comment = new String(bytes, "UTF-8");
+				} catch (UnsupportedEncodingException e) {
+					// UTF-8 is always supported.
+				}
+				position += commentLength;
+			}
+			return true;
+		}
+
+		/**
+		 * Move back to the start of the stream.
+		 */
+		public void rewind() {
+			position = 0;
+			line = -1;
+		}
+
+		/**
+		 * @return where the line after the current one starts, for seek().
+		 */
+		public int getPosition() {
+			return position;
+		}
+
+		/**
+		 * Jump straight to a place saved from getPosition(), without reading
+		 * the lines before it.
+		 * 
+		 * @param line
+		 *            the number of the line getPosition() was called on
+		 */
+		public void seek(int position, int line) {
+			if (position < 0 || position > length)
+				throw new IllegalArgumentException("Bad stream position " + position);
+			this.position = position;
+			this.line = line;
+		}
+
+		/**
+		 * @return the zero-based number of the current line.
+		 */
+		public int getLine() {
+			return line;
+		}
+
+		public int getSeenCodes() {
+			return seenCodes;
+		}
+
+		public int getValuedCodes() {
+			return valuedCodes;
+		}
+
+		/**
+		 * Copy the values of the current line into a 26-entry array indexed by
+		 * letter. Only the entries flagged in getValuedCodes() are written.
+		 */
+		public void getCodeValues(double[] target) {
+			int mask = valuedCodes;
+			while (mask != 0) {
+				int letter = Integer.numberOfTrailingZeros(mask);
+				target[letter] = values[letter];
+				mask &= mask - 1;
+			}
+		}
+
+		public String getComment() {
+			return comment;
+		}
+
+		private int readInt() {
+			int v = data.getInt(position);
+			position += 4;
+			return v;
+		}
+
+		private long readLong() {
+			long v = data.getLong(position);
+			position += 8;
+			return v;
+		}
+	}
+
+	/***************************************************************************
+	 * Compiling
+	 **************************************************************************/
+
+	/**
+	 * Compute the hash that identifies the text of a source.
+	 */
+	public static byte[] hash(GCodeSource source) {
+		MessageDigest digest = newDigest();
+		try {
+			for (String line : source) {
+				digest.update(line.getBytes("UTF-8"));
+				digest.update((byte) '\n');
+			}
+		} catch (UnsupportedEncodingException e) {
+			// UTF-8 is always supported.
+		}
+		return digest.digest();
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException("MD5 is not available", e);
+		}
+	}
+
+	/**
+	 * Compile a source into a binary stream.
+	 */
+	public static GCodeStream compile(GCodeSource source) {
+		return compile(source, hash(source));
+	}
+
+	private static GCodeStream compile(GCodeSource source, byte[] hash) {
+		HeapSink sink = new HeapSink(Math.max(source.getLineCount(), 16) * 16);
+		try {
+			int lines = compile(source, sink);
+			return new GCodeStream(hash, sink.toBuffer(), lines);
+		} catch (IOException e) {
+			// a byte array can't fail to be written to.
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Compile a source into a stream of bytes.
+	 *
+	 * @return the number of lines
+	 */
+	private static int compile(GCodeSource source, OutputStream out)
+			throws IOException {
+		GCodeParser parser = new GCodeParser();
+		Writer writer = new Writer(out);
+		int lines = 0;
+
+		for (String line : source) {
+			parser.parse(line);
+			writer.writeLine(parser);
+			lines++;
+		}
+		writer.flush();
+		return lines;
+	}
+
+	/**
+	 * Holds a stream compiled with nowhere to cache it, without copying it
+	 * once it's done.
+	 */
+	private static class HeapSink extends ByteArrayOutputStream {
+		HeapSink(int capacity) {
+			super(capacity);
+		}
+
+		ByteBuffer toBuffer() {
+			return ByteBuffer.wrap(buf, 0, count);
+		}
+	}
+
+	/**
+	 * Encodes lines into a small buffer, passing it on as it fills.
+	 */
+	private static class Writer {
+		private final OutputStream out;
+
+		// room for the longest line: every code valued, and a full comment.
+		private final byte[] data = new byte[1 + 8 + 8 * 26 + 2 + 0xffff];
+
+		private int length = 0;
+
+		Writer(OutputStream out) {
+			this.out = out;
+		}
+
+		void writeLine(GCodeParser parser) throws IOException {
+			int seen = parser.getSeenCodes();
+			String comment = parser.getComment();
+			if (seen == 0 && comment.length() == 0) {
+				ensure(1);
+				data[length++] = OP_EMPTY;
+				return;
+			}
+
+			byte[] commentBytes = null;
+			if (comment.length() > 0) {
+				try {
+					commentBytes = comment.getBytes("UTF-8");
+				} catch (UnsupportedEncodingException e) {
+					// UTF-8 is always supported.
+				}
+				if (commentBytes.length > 0xffff) {
+					byte[] truncated = new byte[0xffff];
+					System.arraycopy(commentBytes, 0, truncated, 0, 0xffff);
+					commentBytes = truncated;
+				}
+			}
+
+			int valued = parser.getValuedCodes();
+			ensure(9 + 8 * Integer.bitCount(valued)
+					+ (commentBytes == null ? 0 : 2 + commentBytes.length));
+			data[length++] = commentBytes == null ? OP_CODES : OP_CODES_COMMENT;
+			writeInt(seen);
+			writeInt(valued);
+			int mask = valued;
+			while (mask != 0) {
+				int letter = Integer.numberOfTrailingZeros(mask);
+				long bits = Double.doubleToLongBits(parser
+						.getCodeValue((char) ('A' + letter)));
+				writeInt((int) (bits >>> 32));
+				writeInt((int) bits);
+				mask &= mask - 1;
+			}
+			if (commentBytes != null) {
+				data[length++] = (byte) (commentBytes.length >> 8);
+				data[length++] = (byte) commentBytes.length;
+				System.arraycopy(commentBytes, 0, data, length,
+						commentBytes.length);
+				length += commentBytes.length;
+			}
+		}
+
+		private void writeInt(int v) {
+			data[length++] = (byte) (v >>> 24);
+			data[length++] = (byte) (v >>> 16);
+			data[length++] = (byte) (v >>> 8);
+			data[length++] = (byte) v;
+		}
+
+		private void ensure(int extra) throws IOException {
+			if (length + extra > data.length)
+				flush();
+		}
+
+		void flush() throws IOException {
+			out.write(data, 0, length);
+			length = 0;
+		}
+	}
+
+	/***************************************************************************
+	 * Disk cache
+	 **************************************************************************/
+
+	/**
+	 * Returns the cache file used for the given gcode file.
+	 */
+	public static File getCacheFile(File gcodeFile) {
+		return new File(gcodeFile.getParentFile(), gcodeFile.getName()
+				+ CACHE_SUFFIX);
+	}
+
+	/**
+	 * Get the compiled form of a source, loading it from the cache file next
+	 * to the given gcode file if the cached copy matches the source text, and
+	 * compiling and caching it otherwise.
+	 *
+	 * @param source
+	 *            the source to compile
+	 * @param gcodeFile
+	 *            the file the source was loaded from, or null to skip the
+	 *            disk cache
+	 */
+	public static GCodeStream forSource(GCodeSource source, File gcodeFile) {
+		return forSource(source, hash(source), gcodeFile);
+	}
+
+	/**
+	 * Same as forSource(source, gcodeFile), for callers that already have the
+	 * hash of the source text.
+	 */
+	public static GCodeStream forSource(GCodeSource source, byte[] sourceHash,
+			File gcodeFile) {
+		if (gcodeFile == null)
+			return compile(source, sourceHash);
+
+		File cacheFile = getCacheFile(gcodeFile);
+		if (cacheFile.exists()) {
+			try {
+				GCodeStream cached = load(cacheFile);
+				if (cached.matches(sourceHash))
+					return cached;
+			} catch (IOException e) {
+				Base.logger.info("Ignoring unreadable gcode cache "
+						+ cacheFile + ": " + e.getMessage());
+			}
+		}
+		try {
+			return compile(source, sourceHash, cacheFile);
+		} catch (IOException e) {
+			Base.logger.info("Could not write gcode cache " + cacheFile
+					+ ": " + e.getMessage());
+			return compile(source, sourceHash);
+		}
+	}
+
+	// bytes before the stream itself in a cache file.
+	private static int getHeaderSize() {
+		return 16 + newDigest().getDigestLength();
+	}
+
+	/**
+	 * Compile a source straight into a cache file and map it. It's written
+	 * beside the file and renamed over it, so a stream still mapped from the
+	 * old file keeps reading what it did.
+	 */
+	private static GCodeStream compile(GCodeSource source, byte[] hash,
+			File cacheFile) throws IOException {
+		File temp = new File(cacheFile.getParentFile(), cacheFile.getName() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(temp)));
+		int lines;
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(FORMAT_VERSION);
+			out.write(hash);
+			// the counts are filled in once they're known.
+			out.writeInt(0);
+			out.writeInt(0);
+			lines = compile(source, out);
+		} finally {
+			out.close();
+		}
+		RandomAccessFile file = new RandomAccessFile(temp, "rw");
+		try {
+			file.seek(getHeaderSize() - 8);
+			file.writeInt(lines);
+			file.writeInt((int) (file.length() - getHeaderSize()));
+		} finally {
+			file.close();
+		}
+		// windows won't rename over a file, or delete one that's mapped.
+		if (!temp.renameTo(cacheFile) && !(cacheFile.delete() && temp.renameTo(cacheFile))) {
+			temp.delete();
+			throw new IOException("could not replace " + cacheFile);
+		}
+		return load(cacheFile);
+	}
+
+	/**
+	 * Write this stream to a file.
+	 */
+	public void save(File file) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(file)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(FORMAT_VERSION);
+			out.write(hash);
+			out.writeInt(lineCount);
+			out.writeInt(length);
+			for (int i = 0; i < length; i++)
+				out.write(data.get(i));
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Map a stream previously written by save().
+	 */
+	public static GCodeStream load(File file) throws IOException {
+		FileInputStream stream = new FileInputStream(file);
+		try {
+			DataInputStream in = new DataInputStream(stream);
+			if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION)
+				throw new IOException("not a compiled gcode file");
+			byte[] hash = new byte[newDigest().getDigestLength()];
+			in.readFully(hash);
+			int lineCount = in.readInt();
+			int length = in.readInt();
+			FileChannel channel = stream.getChannel();
+			if (lineCount < 0 || length < 0
+					|| getHeaderSize() + (long) length > channel.size())
+				throw new IOException("corrupt compiled gcode file");
+			// the mapping outlives the channel.
+			ByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY,
+					getHeaderSize(), length);
+			return new GCodeStream(hash, data, lineCount);
+		} finally {
+			stream.close();
+		}
+	}
+}
@@ -5,7 +5,11 @@ package replicatorg.model;
 
 import java.util.Iterator;
 
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+
 import replicatorg.app.syntax.JEditTextArea;
+import replicatorg.app.syntax.SyntaxDocument;
 
 /**
  * @author phooky
@@ -14,10 +18,41 @@ import replicatorg.app.syntax.JEditTextArea;
 public class JEditTextAreaSource implements GCodeSource {
 	
 	private JEditTextArea textarea;
+
+	// the document being watched for edits, and how many have been seen.
+	private SyntaxDocument document;
+
+	private long edits = 0;
+
+	private final DocumentListener listener = new DocumentListener() {
+		public void insertUpdate(DocumentEvent e) { edited(); }
+		public void removeUpdate(DocumentEvent e) { edited(); }
+		public void changedUpdate(DocumentEvent e) { }
+	};
 	
 	public JEditTextAreaSource(JEditTextArea textarea) {
 		this.textarea = textarea;
 	}
+
+	private synchronized void edited() {
+		edits++;
+	}
+
+	/**
+	 * @return a count that changes whenever the text does, including when
+	 * the text area is given another document; what's worked out from the
+	 * text can be kept until it changes.
+	 */
+	public synchronized long getEditCount() {
+		SyntaxDocument current = textarea.getDocument();
+		if (current != document) {
+			if (document != null) document.removeDocumentListener(listener);
+			document = current;
+			if (document != null) document.addDocumentListener(listener);
+			edits++;
+		}
+		return edits;
+	}
 	
 	public Iterator<String> iterator() {
 		final JEditTextArea ta = this.textarea;
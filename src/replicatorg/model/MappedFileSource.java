@@ -0,0 +1,268 @@
+package replicatorg.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import replicatorg.app.Base;
+
+/**
+ * A GCode source backed by a memory-mapped file. Opening the source only maps
+ * the file; an index of line offsets is built by a background thread and lines
+ * are decoded as they are requested. The headless runner and the job queue
+ * build from one, and the compiled stream made alongside is mapped from its
+ * cache file too, so they can build very large files without loading them
+ * onto the heap. Only the line index is kept there. Files opened in the
+ * editor are still loaded into its document.
+ *
+ * Lines are split the same way BufferedReader.readLine() splits them, and are
+ * decoded as ISO-8859-1.
+ */
+public class MappedFileSource implements GCodeSource {
+
+	// files are mapped in segments of this size, since a single mapping can't
+	// exceed 2GB.
+	private static final int SEGMENT_SHIFT = 30;
+
+	private static final long SEGMENT_SIZE = 1L << SEGMENT_SHIFT;
+
+	private static final long SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+	private final File file;
+
+	private final long length;
+
+	private final MappedByteBuffer[] segments;
+
+	// start offset of each line, filled in by the indexer.
+	private long[] lineStarts = new long[1024];
+
+	private int indexedLines = 0;
+
+	private boolean indexComplete = false;
+
+	/**
+	 * Map the given file and start indexing it in the background.
+	 */
+	public MappedFileSource(File file) throws IOException {
+		this.file = file;
+
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			length = channel.size();
+			int count = (int) ((length + SEGMENT_SIZE - 1) >>> SEGMENT_SHIFT);
+			segments = new MappedByteBuffer[count];
+			for (int i = 0; i < count; i++) {
+				long start = (long) i << SEGMENT_SHIFT;
+				long size = Math.min(SEGMENT_SIZE, length - start);
+				segments[i] = channel.map(FileChannel.MapMode.READ_ONLY,
+						start, size);
+			}
+		} finally {
+			// the mappings stay valid after the channel is closed.
+			raf.close();
+		}
+
+		Thread indexer = new Thread("Line indexer: " + file.getName()) {
+			public void run() {
+				buildIndex();
+			}
+		};
+		indexer.setDaemon(true);
+		indexer.start();
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	private byte byteAt(long position) {
+		return segments[(int) (position >>> SEGMENT_SHIFT)]
+				.get((int) (position & SEGMENT_MASK));
+	}
+
+	/**
+	 * Returns the offset just past the end of the line starting at the given
+	 * position (the offset of its terminator, or the end of the file).
+	 */
+	private long findLineEnd(long position) {
+		while (position < length) {
+			byte b = byteAt(position);
+			if (b == '\n' || b == '\r')
+				break;
+			position++;
+		}
+		return position;
+	}
+
+	/**
+	 * Returns the offset of the line following the one ending at lineEnd.
+	 */
+	private long skipTerminator(long lineEnd) {
+		if (lineEnd >= length)
+			return length;
+		if (byteAt(lineEnd) == '\r' && lineEnd + 1 < length
+				&& byteAt(lineEnd + 1) == '\n')
+			return lineEnd + 2;
+		return lineEnd + 1;
+	}
+
+	private void buildIndex() {
+		long position = 0;
+		long started = System.currentTimeMillis();
+		while (position < length) {
+			addLine(position);
+			position = skipTerminator(findLineEnd(position));
+		}
+		synchronized (this) {
+			indexComplete = true;
+			notifyAll();
+		}
+		Base.logger.fine("Indexed " + indexedLines + " lines of "
+				+ file.getName() + " in "
+				+ (System.currentTimeMillis() - started) + " ms");
+	}
+
+	private synchronized void addLine(long start) {
+		if (indexedLines == lineStarts.length) {
+			long[] grown = new long[lineStarts.length * 2];
+			System.arraycopy(lineStarts, 0, grown, 0, indexedLines);
+			lineStarts = grown;
+		}
+		lineStarts[indexedLines++] = start;
+		// wake up anybody waiting for a line, but not on every single one.
+		if ((indexedLines & 0xfff) == 0)
+			notifyAll();
+	}
+
+	/**
+	 * @return true once every line of the file has been indexed.
+	 */
+	public synchronized boolean isIndexComplete() {
+		return indexComplete;
+	}
+
+	/**
+	 * @return the number of lines indexed so far.
+	 */
+	public synchronized int getIndexedLineCount() {
+		return indexedLines;
+	}
+
+	/**
+	 * Wait until the index covers the given line, or is complete.
+	 */
+	private synchronized void waitForLine(int line) {
+		while (line >= indexedLines && !indexComplete) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Returns the total number of lines, waiting for the indexer to finish
+	 * if necessary.
+	 */
+	public int getLineCount() {
+		synchronized (this) {
+			while (!indexComplete) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+			return indexedLines;
+		}
+	}
+
+	/**
+	 * Returns the text of a single line, waiting for the indexer to reach it
+	 * if necessary.
+	 *
+	 * @param line
+	 *            the zero-based line number
+	 */
+	public String getLine(int line) {
+		waitForLine(line);
+		long start;
+		synchronized (this) {
+			if (line < 0 || line >= indexedLines)
+				throw new IndexOutOfBoundsException("No line " + line + " in "
+						+ file.getName());
+			start = lineStarts[line];
+		}
+		return decode(start, findLineEnd(start));
+	}
+
+	private String decode(long start, long end) {
+		int count = (int) (end - start);
+		char[] chars = new char[count];
+		for (int i = 0; i < count; i++)
+			chars[i] = (char) (byteAt(start + i) & 0xff);
+		return new String(chars);
+	}
+
+	/**
+	 * Iterates over the file sequentially. This scans the mapped file
+	 * directly, so it does not wait for the index.
+	 */
+	public Iterator<String> iterator() {
+		return new Iterator<String>() {
+			long position = 0;
+
+			public boolean hasNext() {
+				return position < length;
+			}
+
+			public String next() {
+				if (position >= length)
+					throw new NoSuchElementException();
+				long end = findLineEnd(position);
+				String line = decode(position, end);
+				position = skipTerminator(end);
+				return line;
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	/**
+	 * Returns an iterator starting at the given line.
+	 */
+	public Iterator<String> iterator(final int firstLine) {
+		return new Iterator<String>() {
+			int line = firstLine;
+
+			public boolean hasNext() {
+				waitForLine(line);
+				synchronized (MappedFileSource.this) {
+					return line < indexedLines;
+				}
+			}
+
+			public String next() {
+				if (!hasNext())
+					throw new NoSuchElementException();
+				return getLine(line++);
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+}
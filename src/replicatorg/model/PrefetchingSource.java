@@ -0,0 +1,180 @@
+package replicatorg.model;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Wraps another GCode source so that its lines are read ahead of time by a
+ * separate thread. Slow reads from the underlying source (disk stalls, page
+ * faults on a mapped file, etc.) then happen while the build thread is busy
+ * talking to the machine, instead of stalling it.
+ */
+public class PrefetchingSource implements GCodeSource {
+
+	private final GCodeSource source;
+
+	private final int depth;
+
+	/**
+	 * @param source
+	 *            the source to read from
+	 * @param depth
+	 *            the maximum number of lines to read ahead
+	 */
+	public PrefetchingSource(GCodeSource source, int depth) {
+		if (depth < 1)
+			throw new IllegalArgumentException("Prefetch depth must be positive");
+		this.source = source;
+		this.depth = depth;
+	}
+
+	public int getLineCount() {
+		return source.getLineCount();
+	}
+
+	/**
+	 * Returns an iterator that starts a reader thread for the underlying
+	 * source. Callers that stop iterating early should close() it.
+	 */
+	public Iterator<String> iterator() {
+		return new Prefetcher(source.iterator(), depth);
+	}
+
+	/**
+	 * An iterator fed by a background reader thread through a bounded queue.
+	 */
+	public static class Prefetcher implements Iterator<String> {
+		// marks the end of the underlying source; compared by identity.
+		private static final String END = new String("");
+
+		private final ArrayBlockingQueue<String> queue;
+
+		private final int capacity;
+
+		private final Thread reader;
+
+		private volatile RuntimeException failure = null;
+
+		private String next = null;
+
+		private boolean finished = false;
+
+		// metrics
+		private long linesRead = 0;
+
+		private long stalls = 0;
+
+		private int minimumDepth = Integer.MAX_VALUE;
+
+		private long depthTotal = 0;
+
+		public Prefetcher(final Iterator<String> lines, int capacity) {
+			this.capacity = capacity;
+			queue = new ArrayBlockingQueue<String>(capacity);
+			reader = new Thread("GCode prefetch") {
+				public void run() {
+					try {
+						while (lines.hasNext()) {
+							queue.put(lines.next());
+						}
+					} catch (InterruptedException e) {
+						return;
+					} catch (RuntimeException e) {
+						failure = e;
+					}
+					try {
+						queue.put(END);
+					} catch (InterruptedException e) {
+					}
+				}
+			};
+			reader.setDaemon(true);
+			reader.start();
+		}
+
+		public boolean hasNext() {
+			if (next == null && !finished) {
+				int depth = queue.size();
+				depthTotal += depth;
+				if (depth < minimumDepth)
+					minimumDepth = depth;
+
+				String line = queue.poll();
+				if (line == null) {
+					stalls++;
+					try {
+						line = queue.take();
+					} catch (InterruptedException e) {
+						// let the caller notice the interruption.
+						Thread.currentThread().interrupt();
+						finished = true;
+						return false;
+					}
+				}
+				if (line == END) {
+					finished = true;
+					if (failure != null)
+						throw failure;
+				} else {
+					next = line;
+				}
+			}
+			return next != null;
+		}
+
+		public String next() {
+			if (!hasNext())
+				throw new NoSuchElementException();
+			String line = next;
+			next = null;
+			linesRead++;
+			return line;
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		/**
+		 * Stop the reader thread. Safe to call more than once.
+		 */
+		public void close() {
+			finished = true;
+			next = null;
+			reader.interrupt();
+			queue.clear();
+		}
+
+		/** @return the maximum number of lines read ahead. */
+		public int getCapacity() {
+			return capacity;
+		}
+
+		/** @return the number of lines currently waiting in the queue. */
+		public int getQueueDepth() {
+			return queue.size();
+		}
+
+		/** @return the smallest queue depth seen by the consumer. */
+		public int getMinimumQueueDepth() {
+			return minimumDepth == Integer.MAX_VALUE ? 0 : minimumDepth;
+		}
+
+		/** @return the average queue depth seen by the consumer. */
+		public double getAverageQueueDepth() {
+			long samples = linesRead + (finished ? 1 : 0);
+			return samples == 0 ? 0 : (double) depthTotal / samples;
+		}
+
+		/** @return how many times the consumer had to wait for the reader. */
+		public long getStallCount() {
+			return stalls;
+		}
+
+		/** @return the number of lines handed to the consumer. */
+		public long getLinesRead() {
+			return linesRead;
+		}
+	}
+}